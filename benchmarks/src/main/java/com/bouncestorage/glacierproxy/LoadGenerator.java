@@ -0,0 +1,431 @@
+package com.bouncestorage.glacierproxy;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.io.Writer;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Stream;
+
+import com.google.common.io.ByteStreams;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+/**
+ * Drives a proxy started in-process on an ephemeral port with a weighted mix of Glacier operations from a number of
+ * concurrent clients, and reports the latency percentiles and throughput of every operation. Payloads and the choice of
+ * operations are derived from a seed, so two runs with the same options issue the same requests in the same order per
+ * client, which makes the results of two proxy builds comparable.
+ *
+ * <pre>
+ * java -cp target/benchmarks.jar com.bouncestorage.glacierproxy.LoadGenerator --concurrency 32 --duration 60 \
+ *     --mix upload=40,multipart=10,retrieval=30,inventory=5,vault=5 --output build-a.json
+ * java -cp target/benchmarks.jar com.bouncestorage.glacierproxy.LoadGenerator ... --baseline build-a.json
+ * </pre>
+ *
+ * With {@code --baseline}, operations whose throughput dropped or whose p99 latency grew by more than
+ * {@code --tolerance} are listed and the exit status is 1. System properties starting with {@code glacier-proxy.} or
+ * {@code jclouds.} are passed on to the proxy.
+ */
+public final class LoadGenerator {
+    private static final String VAULT = "load";
+    private static final int MAX_ARCHIVES_PER_CLIENT = 8;
+    private static final Map<String, String> DEFAULTS = new LinkedHashMap<>();
+
+    static {
+        DEFAULTS.put("concurrency", "16");
+        DEFAULTS.put("duration", "30");
+        DEFAULTS.put("warmup", "5");
+        DEFAULTS.put("mix", "upload=40,multipart=10,retrieval=30,inventory=5,vault=5");
+        DEFAULTS.put("size", Integer.toString(4 * TreeHash.CHUNK_SIZE));
+        DEFAULTS.put("part-size", Integer.toString(TreeHash.CHUNK_SIZE));
+        DEFAULTS.put("provider", OffHeapApiMetadata.ID);
+        DEFAULTS.put("seed", "1");
+        DEFAULTS.put("tolerance", "0.1");
+        DEFAULTS.put("output", null);
+        DEFAULTS.put("baseline", null);
+    }
+
+    private final Map<String, String> options;
+    private final Map<String, Integer> mix = new LinkedHashMap<>();
+    private final int totalWeight;
+    private final byte[] payload;
+    private final String contentHash;
+    private final String treeHash;
+    private final int partSize;
+    private final List<String> partContentHashes = new ArrayList<>();
+    private final List<String> partTreeHashes = new ArrayList<>();
+    private final AtomicReference<ConcurrentMap<String, Stats>> stats = new AtomicReference<>(
+            new ConcurrentHashMap<>());
+    private String endpoint;
+    private String seedArchive;
+    private volatile boolean running = true;
+
+    private LoadGenerator(Map<String, String> options) throws IOException {
+        this.options = options;
+        int weights = 0;
+        for (String entry : options.get("mix").split(",")) {
+            String[] kv = entry.split("=", 2);
+            int weight = Integer.parseInt(kv[1]);
+            if (!Arrays.asList("upload", "multipart", "retrieval", "inventory", "vault").contains(kv[0])) {
+                throw new IllegalArgumentException("Unknown operation " + kv[0] + " in the mix");
+            }
+            mix.put(kv[0], weight);
+            weights += weight;
+        }
+        totalWeight = weights;
+        payload = new byte[Integer.parseInt(options.get("size"))];
+        new Random(Long.parseLong(options.get("seed"))).nextBytes(payload);
+        partSize = Integer.parseInt(options.get("part-size"));
+        TreeHashingInputStream in = hash(payload, 0, payload.length);
+        contentHash = TreeHash.toHex(in.getLinearHash());
+        treeHash = TreeHash.toHex(in.getTreeHash());
+        for (int start = 0; start < payload.length; start += partSize) {
+            in = hash(payload, start, Math.min(partSize, payload.length - start));
+            partContentHashes.add(TreeHash.toHex(in.getLinearHash()));
+            partTreeHashes.add(TreeHash.toHex(in.getTreeHash()));
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new LinkedHashMap<>(DEFAULTS);
+        for (int i = 0; i < args.length; i += 2) {
+            String name = args[i].startsWith("--") ? args[i].substring(2) : null;
+            if (name == null || !options.containsKey(name) || i + 1 == args.length) {
+                System.err.println("Usage: LoadGenerator [--option value]...; options and defaults: " + DEFAULTS);
+                System.exit(2);
+            }
+            options.put(name, args[i + 1]);
+        }
+        System.exit(new LoadGenerator(options).run() ? 0 : 1);
+    }
+
+    /** @return false if the results regressed from the baseline */
+    private boolean run() throws Exception {
+        Path directory = Files.createTempDirectory("glacier-proxy-load");
+        Properties properties = new Properties();
+        properties.setProperty(GlacierProxyConstants.PROPERTY_PORT, "0");
+        properties.setProperty(GlacierProxyConstants.PROPERTY_JCLOUDS_PROVIDER, options.get("provider"));
+        properties.setProperty(GlacierProxyConstants.PROPERTY_DATA_DIRECTORY, directory.resolve("data").toString());
+        if (options.get("provider").equals("filesystem")) {
+            properties.setProperty(GlacierProxyConstants.PROPERTY_JCLOUDS_BASEDIR,
+                    Files.createDirectories(directory.resolve("vaults")).toString());
+        }
+        for (String name : System.getProperties().stringPropertyNames()) {
+            if (name.startsWith("glacier-proxy.") || name.startsWith("jclouds.")) {
+                properties.setProperty(name, System.getProperty(name));
+            }
+        }
+        GlacierProxy proxy = new GlacierProxy(properties);
+        proxy.start();
+        endpoint = "http://127.0.0.1:" + proxy.getPort() + "/-/vaults/";
+        int concurrency = Integer.parseInt(options.get("concurrency"));
+        ExecutorService clients = Executors.newFixedThreadPool(concurrency);
+        Map<String, Stats> results;
+        long elapsed;
+        try {
+            call("PUT", VAULT, null, 201);
+            seedArchive = uploadArchive(VAULT, new ConcurrentHashMap<>());
+            List<Future<?>> futures = new ArrayList<>();
+            for (int i = 0; i < concurrency; i++) {
+                Random random = new Random(Long.parseLong(options.get("seed")) + i);
+                int client = i;
+                futures.add(clients.submit(() -> {
+                    drive(client, random);
+                    return null;
+                }));
+            }
+            Thread.sleep(TimeUnit.SECONDS.toMillis(Long.parseLong(options.get("warmup"))));
+            stats.set(new ConcurrentHashMap<>());
+            long start = System.nanoTime();
+            Thread.sleep(TimeUnit.SECONDS.toMillis(Long.parseLong(options.get("duration"))));
+            results = new TreeMap<>(stats.get());
+            elapsed = System.nanoTime() - start;
+            running = false;
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } finally {
+            clients.shutdownNow();
+            proxy.stop();
+            try (Stream<Path> paths = Files.walk(directory)) {
+                paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+            }
+        }
+        return report(results, elapsed);
+    }
+
+    private void drive(int client, Random random) throws IOException {
+        Deque<String> archives = new ArrayDeque<>();
+        int vaults = 0;
+        while (running) {
+            int pick = random.nextInt(totalWeight);
+            String operation = null;
+            for (Map.Entry<String, Integer> entry : mix.entrySet()) {
+                pick -= entry.getValue();
+                if (pick < 0) {
+                    operation = entry.getKey();
+                    break;
+                }
+            }
+            ConcurrentMap<String, Stats> current = stats.get();
+            try {
+                switch (operation) {
+                    case "upload":
+                        archives.add(uploadArchive(VAULT, current));
+                        break;
+                    case "multipart":
+                        archives.add(uploadMultipart(current));
+                        break;
+                    case "retrieval":
+                        retrieve(current, "archive-retrieval", seedArchive, "job");
+                        break;
+                    case "inventory":
+                        retrieve(current, "inventory-retrieval", null, "inventory");
+                        break;
+                    default:
+                        String vault = String.format("load-%d-%d", client, vaults++);
+                        timed(current, "vault-create", 0, () -> call("PUT", vault, null, 201));
+                        timed(current, "vault-delete", 0, () -> call("DELETE", vault, null, 204));
+                        break;
+                }
+                // Keep the memory of in-memory providers bounded
+                while (archives.size() > MAX_ARCHIVES_PER_CLIENT) {
+                    String archiveId = archives.remove();
+                    timed(current, "archive-delete", 0, () -> call("DELETE", VAULT + "/archives/" + archiveId,
+                            null, 204));
+                }
+            } catch (IOException e) {
+                System.err.printf("%s failed: %s%n", operation, e.getMessage());
+                current.computeIfAbsent(operation, k -> new Stats()).errors.incrementAndGet();
+            }
+        }
+    }
+
+    private String uploadArchive(String vault, ConcurrentMap<String, Stats> current) throws IOException {
+        HttpURLConnection connection = timed(current, "archive-upload", payload.length, () -> call("POST",
+                vault + "/archives", new ByteArrayInputStream(payload), 201, "x-amz-content-sha256", contentHash,
+                "x-amz-sha256-tree-hash", treeHash));
+        return connection.getHeaderField("x-amz-archive-id");
+    }
+
+    private String uploadMultipart(ConcurrentMap<String, Stats> current) throws IOException {
+        String uploadId = timed(current, "multipart-initiate", 0, () -> call("POST", VAULT + "/multipart-uploads",
+                null, 201, "x-amz-part-size", Integer.toString(partSize)))
+                .getHeaderField("x-amz-multipart-upload-id");
+        String path = VAULT + "/multipart-uploads/" + uploadId;
+        for (int part = 0; part < partTreeHashes.size(); part++) {
+            int start = part * partSize;
+            int length = Math.min(partSize, payload.length - start);
+            String range = String.format("bytes %d-%d/*", start, start + length - 1);
+            int index = part;
+            timed(current, "multipart-part", length, () -> call("PUT", path,
+                    new ByteArrayInputStream(payload, start, length), 204, "Content-Range", range,
+                    "x-amz-content-sha256", partContentHashes.get(index),
+                    "x-amz-sha256-tree-hash", partTreeHashes.get(index)));
+        }
+        return timed(current, "multipart-complete", 0, () -> call("POST", path, null, 201,
+                "x-amz-sha256-tree-hash", treeHash, "x-amz-archive-size", Integer.toString(payload.length)))
+                .getHeaderField("x-amz-archive-id");
+    }
+
+    /** Initiate a job, poll it until it completes and read its output. */
+    private void retrieve(ConcurrentMap<String, Stats> current, String type, String archiveId, String name)
+            throws IOException {
+        JsonObject request = new JsonObject();
+        request.addProperty("Type", type);
+        if (archiveId != null) {
+            request.addProperty("ArchiveId", archiveId);
+        }
+        byte[] body = request.toString().getBytes(StandardCharsets.UTF_8);
+        String jobId = timed(current, name + "-initiate", 0, () -> call("POST", VAULT + "/jobs",
+                new ByteArrayInputStream(body), 202)).getHeaderField("x-amz-job-id");
+        while (true) {
+            HttpURLConnection connection = timed(current, "job-poll", 0, () -> call("GET", VAULT + "/jobs/" + jobId,
+                    null, 200));
+            JsonElement completed;
+            try (Reader reader = new InputStreamReader(connection.getInputStream(), StandardCharsets.UTF_8)) {
+                completed = JsonParser.parseReader(reader).getAsJsonObject().get("Completed");
+            }
+            if (completed.getAsBoolean()) {
+                break;
+            }
+            try {
+                Thread.sleep(10);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException(e);
+            }
+        }
+        long start = System.nanoTime();
+        HttpURLConnection connection = call("GET", VAULT + "/jobs/" + jobId + "/output", null, 200);
+        long bytes;
+        try (InputStream in = connection.getInputStream()) {
+            bytes = ByteStreams.copy(in, ByteStreams.nullOutputStream());
+        }
+        current.computeIfAbsent(name + "-output", k -> new Stats()).add(System.nanoTime() - start, bytes);
+    }
+
+    private interface Call {
+        HttpURLConnection call() throws IOException;
+    }
+
+    private static HttpURLConnection timed(ConcurrentMap<String, Stats> current, String operation, long bytes,
+                                           Call call) throws IOException {
+        long start = System.nanoTime();
+        HttpURLConnection connection = call.call();
+        current.computeIfAbsent(operation, k -> new Stats()).add(System.nanoTime() - start, bytes);
+        return connection;
+    }
+
+    /**
+     * Issue a request and wait for its status. The response body of a request that returns one is left for the
+     * caller to read.
+     */
+    private HttpURLConnection call(String method, String path, InputStream body, int expected, String... headers)
+            throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(endpoint + path).openConnection();
+        connection.setRequestMethod(method);
+        connection.setRequestProperty(GlacierProxyHandler.VERSION_HEADER, GlacierProxyHandler.CURRENT_VERSION);
+        for (int i = 0; i < headers.length; i += 2) {
+            connection.setRequestProperty(headers[i], headers[i + 1]);
+        }
+        if (body != null) {
+            connection.setDoOutput(true);
+            connection.setFixedLengthStreamingMode(body.available());
+            try (OutputStream out = connection.getOutputStream()) {
+                ByteStreams.copy(body, out);
+            }
+        }
+        int status = connection.getResponseCode();
+        if (status != expected) {
+            String error = "";
+            if (connection.getErrorStream() != null) {
+                try (InputStream in = connection.getErrorStream()) {
+                    error = new String(ByteStreams.toByteArray(in), StandardCharsets.UTF_8);
+                }
+            }
+            throw new IOException(String.format("%s %s answered %d %s", method, path, status, error));
+        }
+        return connection;
+    }
+
+    private boolean report(Map<String, Stats> results, long elapsed) throws IOException {
+        double seconds = (double) elapsed / TimeUnit.SECONDS.toNanos(1);
+        JsonObject summary = new JsonObject();
+        System.out.printf("%-20s %9s %7s %9s %9s %9s %10s %9s%n", "operation", "count", "errors", "p50 ms", "p99 ms",
+                "p999 ms", "ops/s", "MB/s");
+        for (Map.Entry<String, Stats> entry : results.entrySet()) {
+            JsonObject result = entry.getValue().summarize(seconds);
+            summary.add(entry.getKey(), result);
+            System.out.printf("%-20s %9d %7d %9.2f %9.2f %9.2f %10.1f %9.1f%n", entry.getKey(),
+                    result.get("count").getAsLong(), result.get("errors").getAsLong(),
+                    result.get("p50").getAsDouble(), result.get("p99").getAsDouble(),
+                    result.get("p999").getAsDouble(), result.get("opsPerSecond").getAsDouble(),
+                    result.get("mbPerSecond").getAsDouble());
+        }
+        if (options.get("output") != null) {
+            try (Writer writer = Files.newBufferedWriter(Paths.get(options.get("output")), StandardCharsets.UTF_8)) {
+                writer.write(summary.toString());
+            }
+        }
+        if (options.get("baseline") == null) {
+            return true;
+        }
+        JsonObject baseline;
+        try (Reader reader = Files.newBufferedReader(Paths.get(options.get("baseline")), StandardCharsets.UTF_8)) {
+            baseline = JsonParser.parseReader(reader).getAsJsonObject();
+        }
+        double tolerance = Double.parseDouble(options.get("tolerance"));
+        boolean passed = true;
+        for (Map.Entry<String, JsonElement> entry : summary.entrySet()) {
+            JsonObject before = baseline.getAsJsonObject(entry.getKey());
+            if (before == null || before.get("count").getAsLong() == 0) {
+                continue;
+            }
+            JsonObject after = entry.getValue().getAsJsonObject();
+            double throughput = after.get("opsPerSecond").getAsDouble() / before.get("opsPerSecond").getAsDouble();
+            double p99 = after.get("p99").getAsDouble() / before.get("p99").getAsDouble();
+            if (throughput < 1 - tolerance || p99 > 1 + tolerance) {
+                System.out.printf("REGRESSION %s: %.0f%% of the baseline throughput, %.0f%% of its p99 latency%n",
+                        entry.getKey(), 100 * throughput, 100 * p99);
+                passed = false;
+            }
+        }
+        return passed;
+    }
+
+    private static TreeHashingInputStream hash(byte[] data, int offset, int length) throws IOException {
+        TreeHashingInputStream in = new TreeHashingInputStream(new ByteArrayInputStream(data, offset, length));
+        ByteStreams.copy(in, ByteStreams.nullOutputStream());
+        in.finish();
+        return in;
+    }
+
+    /** Latencies and bytes of one operation; latencies are kept whole so that percentiles are exact. */
+    private static final class Stats {
+        private final AtomicLong errors = new AtomicLong();
+        private long[] latencies = new long[1024];
+        private int count;
+        private long bytes;
+
+        synchronized void add(long nanos, long size) {
+            if (count == latencies.length) {
+                latencies = Arrays.copyOf(latencies, 2 * count);
+            }
+            latencies[count++] = nanos;
+            bytes += size;
+        }
+
+        synchronized JsonObject summarize(double seconds) {
+            long[] sorted = Arrays.copyOf(latencies, count);
+            Arrays.sort(sorted);
+            JsonObject result = new JsonObject();
+            result.addProperty("count", count);
+            result.addProperty("errors", errors.get());
+            result.addProperty("p50", percentile(sorted, 0.5));
+            result.addProperty("p99", percentile(sorted, 0.99));
+            result.addProperty("p999", percentile(sorted, 0.999));
+            result.addProperty("opsPerSecond", count / seconds);
+            result.addProperty("mbPerSecond", bytes / seconds / (1 << 20));
+            return result;
+        }
+
+        /** @return the nearest-rank percentile in milliseconds */
+        private static double percentile(long[] sorted, double quantile) {
+            if (sorted.length == 0) {
+                return 0;
+            }
+            int rank = (int) Math.ceil(quantile * sorted.length);
+            return sorted[Math.max(0, rank - 1)] / 1e6;
+        }
+    }
+}
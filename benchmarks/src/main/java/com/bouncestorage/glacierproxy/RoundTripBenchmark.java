@@ -0,0 +1,176 @@
+package com.bouncestorage.glacierproxy;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.common.io.ByteStreams;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+/**
+ * Archive uploads through {@link Archive} and retrievals of job output through {@link Job}, over HTTP against a proxy
+ * backed by the offheap, transient or filesystem blobstore.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class RoundTripBenchmark {
+    private static final String VAULT = "benchmark";
+
+    @Param({"offheap", "transient", "filesystem"})
+    public String provider;
+
+    @Param({"1048576", "16777216"})
+    public int size;
+
+    private GlacierProxy proxy;
+    private Path directory;
+    private String endpoint;
+    private byte[] data;
+    private String contentHash;
+    private String treeHash;
+    private String jobId;
+
+    /** The archive uploaded by the last invocation of {@link #upload}, removed outside of the measurement. */
+    @State(Scope.Thread)
+    public static class Uploaded {
+        String archiveId;
+
+        @TearDown(Level.Invocation)
+        public void delete(RoundTripBenchmark benchmark) throws IOException {
+            if (archiveId != null) {
+                benchmark.request("DELETE", "/archives/" + archiveId, null, 204).disconnect();
+                archiveId = null;
+            }
+        }
+    }
+
+    @Setup
+    public void setUp() throws Exception {
+        directory = Files.createTempDirectory("glacier-proxy-benchmark");
+        Properties properties = new Properties();
+        properties.setProperty(GlacierProxyConstants.PROPERTY_PORT, "0");
+        properties.setProperty(GlacierProxyConstants.PROPERTY_JCLOUDS_PROVIDER, provider);
+        properties.setProperty(GlacierProxyConstants.PROPERTY_DATA_DIRECTORY, directory.resolve("data").toString());
+        if (provider.equals("filesystem")) {
+            Path basedir = Files.createDirectories(directory.resolve("vaults"));
+            properties.setProperty(GlacierProxyConstants.PROPERTY_JCLOUDS_BASEDIR, basedir.toString());
+        }
+        proxy = new GlacierProxy(properties);
+        proxy.start();
+        endpoint = "http://127.0.0.1:" + proxy.getPort() + "/-/vaults/" + VAULT;
+
+        data = new byte[size];
+        new Random(0).nextBytes(data);
+        TreeHashingInputStream in = new TreeHashingInputStream(new ByteArrayInputStream(data));
+        ByteStreams.copy(in, ByteStreams.nullOutputStream());
+        in.finish();
+        contentHash = TreeHash.toHex(in.getLinearHash());
+        treeHash = TreeHash.toHex(in.getTreeHash());
+
+        request("PUT", "", null, 201).disconnect();
+        String archiveId = upload();
+        JsonObject job = new JsonObject();
+        job.addProperty("Type", "archive-retrieval");
+        job.addProperty("ArchiveId", archiveId);
+        HttpURLConnection connection = request("POST", "/jobs", job.toString().getBytes(StandardCharsets.UTF_8), 202);
+        jobId = connection.getHeaderField("x-amz-job-id");
+        connection.disconnect();
+        // Jobs complete as soon as they are initiated with the default retrieval delay
+        while (true) {
+            connection = request("GET", "/jobs/" + jobId, null, 200);
+            JsonObject status;
+            try (InputStream body = connection.getInputStream()) {
+                status = JsonParser.parseString(new String(ByteStreams.toByteArray(body), StandardCharsets.UTF_8))
+                        .getAsJsonObject();
+            }
+            if (status.get("Completed").getAsBoolean()) {
+                break;
+            }
+            Thread.sleep(10);
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        proxy.stop();
+        try (Stream<Path> paths = Files.walk(directory)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    @Benchmark
+    public String upload(Uploaded uploaded, ByteCounter counter) throws IOException {
+        uploaded.archiveId = upload();
+        counter.bytes += size;
+        return uploaded.archiveId;
+    }
+
+    @Benchmark
+    public long retrieve(ByteCounter counter) throws IOException {
+        HttpURLConnection connection = request("GET", "/jobs/" + jobId + "/output", null, 200);
+        long read;
+        try (InputStream body = connection.getInputStream()) {
+            read = ByteStreams.copy(body, ByteStreams.nullOutputStream());
+        }
+        counter.bytes += read;
+        return read;
+    }
+
+    private String upload() throws IOException {
+        HttpURLConnection connection = request("POST", "/archives", data, 201);
+        String archiveId = connection.getHeaderField("x-amz-archive-id");
+        connection.disconnect();
+        return archiveId;
+    }
+
+    HttpURLConnection request(String method, String path, byte[] body, int expected) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(endpoint + path).openConnection();
+        connection.setRequestMethod(method);
+        connection.setRequestProperty(GlacierProxyHandler.VERSION_HEADER, GlacierProxyHandler.CURRENT_VERSION);
+        if (body != null) {
+            if (body == data) {
+                connection.setRequestProperty("x-amz-content-sha256", contentHash);
+                connection.setRequestProperty("x-amz-sha256-tree-hash", treeHash);
+            }
+            connection.setDoOutput(true);
+            connection.setFixedLengthStreamingMode(body.length);
+            try (OutputStream out = connection.getOutputStream()) {
+                out.write(body);
+            }
+        }
+        if (connection.getResponseCode() != expected) {
+            throw new IOException(String.format("%s %s answered %d", method, path, connection.getResponseCode()));
+        }
+        return connection;
+    }
+}
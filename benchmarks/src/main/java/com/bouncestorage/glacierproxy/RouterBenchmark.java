@@ -0,0 +1,82 @@
+package com.bouncestorage.glacierproxy;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.google.common.collect.ImmutableList;
+
+/**
+ * Routing of request paths by {@link PathParameters} against the chain of regular expressions it replaced, which
+ * tried the jobs, archives, multipart uploads and vaults patterns in turn. Run with {@code -prof gc} to compare the
+ * bytes allocated per request as well.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class RouterBenchmark {
+    private static final String VAULT_NAME = "(?<vault>[a-zA-Z0-9\\.\\-_]+)";
+    private static final String VAULT_PREFIX = "^/(?<account>(\\d{12}|-))/vaults";
+    private static final Pattern JOBS_RE = Pattern.compile(String.format(
+            "%s/%s/jobs(/(?<job>[a-zA-Z0-9-_]+))?(/output)?", VAULT_PREFIX, VAULT_NAME));
+    private static final Pattern ARCHIVES_RE = Pattern.compile(String.format(
+            "%s/%s/archives(/(?<archive>[a-zA-Z0-9-_]+))?", VAULT_PREFIX, VAULT_NAME));
+    private static final Pattern MULTIPART_RE = Pattern.compile(String.format(
+            "%s/%s/multipart-uploads(/(?<upload>[a-zA-Z0-9-_]+))?", VAULT_PREFIX, VAULT_NAME));
+    private static final Pattern VAULTS_RE = Pattern.compile(String.format("%s(/%s)?", VAULT_PREFIX, VAULT_NAME));
+
+    @Param({
+            "/-/vaults",
+            "/123456789012/vaults/backups/archives",
+            "/123456789012/vaults/backups/multipart-uploads/6f2b1c9e-2a4d-4f7e-9d3b-0c8a5e7f1b2d",
+            "/123456789012/vaults/backups/jobs/6f2b1c9e-2a4d-4f7e-9d3b-0c8a5e7f1b2d/output",
+    })
+    public String path;
+
+    @Benchmark
+    public void regexChain(Blackhole blackhole) {
+        Map<String, String> parameters = new HashMap<>();
+        Matcher matcher = JOBS_RE.matcher(path);
+        if (matcher.matches()) {
+            setParameters(matcher, ImmutableList.of("account", "vault", "job"), parameters);
+        } else if ((matcher = ARCHIVES_RE.matcher(path)).matches()) {
+            setParameters(matcher, ImmutableList.of("account", "vault", "archive"), parameters);
+        } else if ((matcher = MULTIPART_RE.matcher(path)).matches()) {
+            setParameters(matcher, ImmutableList.of("account", "vault", "upload"), parameters);
+        } else if ((matcher = VAULTS_RE.matcher(path)).matches()) {
+            setParameters(matcher, ImmutableList.of("account", "vault"), parameters);
+        }
+        blackhole.consume(parameters);
+    }
+
+    @Benchmark
+    public PathParameters pathParameters() {
+        return PathParameters.parse(path);
+    }
+
+    private static void setParameters(Matcher matcher, List<String> keys, Map<String, String> parameters) {
+        for (String key : keys) {
+            if (matcher.group(key) != null) {
+                parameters.put(key, matcher.group(key));
+            }
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package com.bouncestorage.glacierproxy;
+
+import java.io.ByteArrayInputStream;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.common.io.ByteStreams;
+
+/**
+ * Linear and tree hashing of an upload as it is read, on the request thread or on the given number of hashing threads
+ * (see glacier-proxy.tree-hash-threads).
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class TreeHashBenchmark {
+    @Param({"1048576", "33554432"})
+    public int size;
+
+    @Param({"0", "4"})
+    public int threads;
+
+    private byte[] data;
+    private ExecutorService executor;
+
+    @Setup
+    public void setUp() {
+        data = new byte[size];
+        new Random(0).nextBytes(data);
+        if (threads > 0) {
+            executor = Executors.newFixedThreadPool(threads);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        if (executor != null) {
+            executor.shutdown();
+        }
+    }
+
+    @Benchmark
+    public byte[] treeHash(ByteCounter counter) throws Exception {
+        TreeHashingInputStream in = executor == null ?
+                new TreeHashingInputStream(new ByteArrayInputStream(data)) :
+                new TreeHashingInputStream(new ByteArrayInputStream(data), executor, 2 * threads);
+        ByteStreams.copy(in, ByteStreams.nullOutputStream());
+        in.finish();
+        counter.bytes += in.getCount();
+        return in.getTreeHash();
+    }
+}
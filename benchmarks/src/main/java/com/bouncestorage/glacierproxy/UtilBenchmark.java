@@ -0,0 +1,98 @@
+package com.bouncestorage.glacierproxy;
+
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+import javax.ws.rs.core.Response;
+
+import org.jclouds.ContextBuilder;
+import org.jclouds.blobstore.BlobStore;
+import org.jclouds.blobstore.BlobStoreContext;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.common.collect.Multimap;
+import com.google.gson.JsonObject;
+
+/**
+ * The helpers that every request goes through: timestamps, query strings, JSON responses and, for archives stored by
+ * earlier versions, the metadata blobs next to them.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class UtilBenchmark {
+    private static final String VAULT = "benchmark";
+    private static final String ARCHIVE = "6f2b1c9e-2a4d-4f7e-9d3b-0c8a5e7f1b2d";
+
+    private final Date date = new Date();
+    private final BenchmarkExchange exchange = new BenchmarkExchange("GET", "/-/vaults/" + VAULT);
+    private JsonObject vault;
+    private BlobStoreContext context;
+    private BlobStore blobStore;
+
+    @Setup
+    public void setUp() {
+        vault = new JsonObject();
+        vault.addProperty("CreationDate", Util.getTimeStamp(date));
+        vault.addProperty("LastInventoryDate", Util.getTimeStamp(date));
+        vault.addProperty("NumberOfArchives", 1234);
+        vault.addProperty("SizeInBytes", 1234L << 20);
+        vault.addProperty("VaultARN", Util.getARN("123456789012", VAULT));
+        vault.addProperty("VaultName", VAULT);
+
+        context = ContextBuilder.newBuilder("transient").build(BlobStoreContext.class);
+        blobStore = context.getBlobStore();
+        blobStore.createContainerInLocation(null, VAULT);
+        JsonObject metadata = new JsonObject();
+        metadata.addProperty(Archive.METADATA_DESCRIPTION, "nightly backup of /var/lib/postgresql");
+        metadata.addProperty(Archive.METADATA_TREE_HASH,
+                "beb0fe31a1c7ca8c6c04d574ea906e3f97b31fdca7571defb5b44dca89b5af60");
+        metadata.addProperty(Archive.METADATA_CONTENT_HASH,
+                "beb0fe31a1c7ca8c6c04d574ea906e3f97b31fdca7571defb5b44dca89b5af60");
+        blobStore.putBlob(VAULT, blobStore.blobBuilder(Util.getMetadataBlobName(ARCHIVE))
+                .payload(metadata.toString())
+                .build());
+    }
+
+    @TearDown
+    public void tearDown() {
+        context.close();
+    }
+
+    @Benchmark
+    public String getTimeStamp() {
+        return Util.getTimeStamp(date);
+    }
+
+    @Benchmark
+    public Multimap<String, String> parseQuery() {
+        return Util.parseQuery("limit=50&marker=6f2b1c9e-2a4d-4f7e-9d3b-0c8a5e7f1b2d&completed=true"
+                + "&statuscode=Succeeded");
+    }
+
+    @Benchmark
+    public int sendJSON(ByteCounter counter) throws Exception {
+        exchange.reset();
+        Util.sendJSON(exchange, Response.Status.OK, vault);
+        counter.bytes += exchange.getResponseLength();
+        return exchange.getResponseLength();
+    }
+
+    @Benchmark
+    public JsonObject getMetadata() {
+        return Util.getMetadata(blobStore, VAULT, ARCHIVE);
+    }
+}
@@ -9,11 +9,11 @@ import javax.ws.rs.core.Response;
 
 import org.jclouds.blobstore.ContainerNotFoundException;
 import org.jclouds.blobstore.domain.Blob;
+import org.jclouds.blobstore.options.CopyOptions;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.google.common.collect.ImmutableList;
-import com.google.common.collect.ImmutableMap;
 import com.sun.net.httpserver.HttpExchange;
 
 public class Archive extends BaseRequestHandler {
@@ -27,12 +27,11 @@ public class Archive extends BaseRequestHandler {
             "x-amz-sha256-tree-hash");
 
     public Archive(GlacierProxy proxy) {
-        super(proxy);
+        super(proxy, "archives");
     }
 
     @Override
     public void handlePost(HttpExchange request, Map<String, String> parameters) throws IOException {
-        // TODO: should verify the hashes
         for (String header : REQUIRED_POST_HEADERS) {
             if (!request.getRequestHeaders().containsKey(header)) {
                 logger.warn("Missing x-amz-content-sha256 or x-amz-sha256-tree-hash hashes");
@@ -44,37 +43,68 @@ public class Archive extends BaseRequestHandler {
         String vault = parameters.get("vault");
         long length = Long.parseLong(request.getRequestHeaders().getFirst("Content-Length"));
         String treeHash = request.getRequestHeaders().getFirst("x-amz-sha256-tree-hash");
-        Map<String, String> metadata;
-        if (request.getRequestHeaders().containsKey("x-amz-archive-description")) {
-            metadata = ImmutableMap.of(
-                    METADATA_DESCRIPTION, request.getRequestHeaders().getFirst("x-amz-archive-description"),
-                    METADATA_TREE_HASH, request.getRequestHeaders().getFirst("x-amz-sha256-tree-hash"),
-                    METADATA_CONTENT_HASH, request.getRequestHeaders().getFirst("x-amz-content-sha256"));
-        } else {
-            metadata = ImmutableMap.of(
-                    METADATA_TREE_HASH, request.getRequestHeaders().getFirst("x-amz-sha256-tree-hash"),
-                    METADATA_CONTENT_HASH, request.getRequestHeaders().getFirst("x-amz-content-sha256"));
-        }
+        String contentHash = request.getRequestHeaders().getFirst("x-amz-content-sha256");
 
         UUID uuid = UUID.randomUUID();
-        String etag;
-        String metadataTag;
-        Blob newBlob = proxy.getBlobStore().blobBuilder(uuid.toString())
-                .payload(request.getRequestBody())
-                .contentLength(length)
-                .build();
+        TreeHashingInputStream payload = proxy.hashingStream(
+                proxy.getRateLimits().throttleUpload(parameters.get("account"), request.getRequestBody()));
+        FilesystemFastPath fastPath = proxy.getFilesystemFastPath();
+        // An archive that a crash leaves unverified or unindexed keeps an internal name, so it never passes for a real
+        // archive and is removed along with its vault
+        boolean staged = fastPath != null || proxy.isStagingArchives();
+        String name = staged ? Util.getStagingBlobName(uuid.toString()) : uuid.toString();
         try {
-            etag = proxy.getBlobStore().putBlob(vault, newBlob);
-            metadataTag = Util.putMetadataBlob(metadata, proxy.getBlobStore(), vault, uuid.toString());
+            if (fastPath != null) {
+                fastPath.write(vault, uuid.toString(), payload);
+            } else {
+                Blob newBlob = proxy.getBlobStore().blobBuilder(name)
+                        .payload(payload)
+                        .contentLength(length)
+                        .build();
+                if (proxy.getBlobStore().putBlob(vault, newBlob) == null) {
+                    logger.warn("Failed to create blob in {}", vault);
+                    Util.sendServerError("Failed to create the archive", request);
+                    return;
+                }
+            }
         } catch (ContainerNotFoundException cnfe) {
             Util.sendNotFound("vault", vault, request);
             return;
         }
-        if (etag == null || metadataTag == null) {
-            logger.warn("Failed to create blob in {}", vault);
+        String mismatch = payload.verify(contentHash, treeHash);
+        if (mismatch != null || payload.getCount() != length) {
+            proxy.getBlobStore().removeBlob(vault, name);
+            if (mismatch == null) {
+                mismatch = String.format("Received %d bytes, expected %d", payload.getCount(), length);
+            }
+            logger.warn("Rejected archive upload to {}: {}", vault, mismatch);
+            Util.sendInvalidParameter(mismatch, request);
+            return;
+        }
+        if (fastPath != null) {
+            fastPath.commit(vault, uuid.toString());
+        } else if (staged) {
+            // A copy within the backend, which does not transfer the archive through the proxy again on object stores
+            String eTag = proxy.getBlobStore().copyBlob(vault, name, vault, uuid.toString(), CopyOptions.NONE);
+            proxy.getBlobStore().removeBlob(vault, name);
+            if (eTag == null) {
+                logger.warn("Failed to copy staged archive {}/{}", vault, name);
+                Util.sendServerError("Failed to create the archive", request);
+                return;
+            }
+        }
+
+        // Keep every level of the tree so that range retrievals never need to rehash the archive
+        MetadataIndex.Entry entry = new MetadataIndex.Entry(uuid.toString(),
+                request.getRequestHeaders().getFirst("x-amz-archive-description"),
+                TreeHash.toHex(payload.getTreeHash()), TreeHash.toHex(payload.getLinearHash()), length,
+                System.currentTimeMillis(), false);
+        try {
+            proxy.getMetadataIndex().put(vault, entry, ArchiveTreeHash.fromLeaves(payload.getLeafHashes()));
+        } catch (IOException e) {
+            logger.warn("Failed to record the metadata of {}/{}", vault, uuid, e);
             Util.sendServerError("Failed to create the archive", request);
-            proxy.getBlobStore().removeBlobs(vault, ImmutableList.of(uuid.toString(),
-                    Util.getMetadataBlobName(uuid.toString())));
+            proxy.getBlobStore().removeBlob(vault, uuid.toString());
             return;
         }
 
@@ -83,7 +113,7 @@ public class Archive extends BaseRequestHandler {
         request.getResponseHeaders().put("Location", ImmutableList.of(String.format("/%s/%s/%s",
                 parameters.get("account"), vault, uuid)));
         request.getResponseHeaders().put("x-amz-archive-id", ImmutableList.of(uuid.toString()));
-        request.sendResponseHeaders(Response.Status.CREATED.getStatusCode(), -1);
+        Util.sendStatus(request, Response.Status.CREATED);
     }
 
     @Override
@@ -97,9 +127,14 @@ public class Archive extends BaseRequestHandler {
         String blob = parameters.get("archive");
         String vault = parameters.get("vault");
 
+        MetadataIndex.Entry entry = proxy.getMetadataIndex().get(vault, blob);
         proxy.getBlobStore().removeBlob(vault, blob);
-        proxy.getBlobStore().removeBlob(vault, Util.getMetadataBlobName(blob));
+        proxy.getMetadataIndex().remove(vault, blob);
+        if (entry != null && entry.isLegacy()) {
+            proxy.getBlobStore().removeBlobs(vault, ImmutableList.of(Util.getMetadataBlobName(blob),
+                    Util.getTreeHashBlobName(blob)));
+        }
         logger.debug("Removed archive {}/{}", vault, blob);
-        request.sendResponseHeaders(Response.Status.NO_CONTENT.getStatusCode(), -1);
+        Util.sendStatus(request, Response.Status.NO_CONTENT);
     }
 }
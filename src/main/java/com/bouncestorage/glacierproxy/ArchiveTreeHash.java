@@ -0,0 +1,147 @@
+package com.bouncestorage.glacierproxy;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.util.List;
+
+/**
+ * Every level of an archive's SHA-256 tree hash, computed once from the 1 MiB leaf hashes when the archive is written.
+ * The root is available in O(1) and the tree hash of any tree-hash aligned byte range in O(log n), without reading the
+ * archive.
+ *
+ * Level 0 holds the leaf hashes; node {@code j} of level {@code k} covers leaves {@code [j * 2^k, (j + 1) * 2^k)}.
+ */
+public final class ArchiveTreeHash {
+    private final int leafCount;
+    private final byte[][] levels;
+
+    private ArchiveTreeHash(int leafCount, byte[][] levels) {
+        this.leafCount = leafCount;
+        this.levels = levels;
+    }
+
+    public static ArchiveTreeHash fromLeaves(List<byte[]> leaves) {
+        byte[] level = new byte[leaves.size() * TreeHash.HASH_SIZE];
+        for (int i = 0; i < leaves.size(); i++) {
+            System.arraycopy(leaves.get(i), 0, level, i * TreeHash.HASH_SIZE, TreeHash.HASH_SIZE);
+        }
+        return fromLeaves(level);
+    }
+
+    private static ArchiveTreeHash fromLeaves(byte[] leaves) {
+        int leafCount = leaves.length / TreeHash.HASH_SIZE;
+        if (leafCount == 0) {
+            throw new IllegalArgumentException("An archive has at least one leaf hash");
+        }
+        int height = 1;
+        for (int n = leafCount; n > 1; n = (n + 1) / 2) {
+            height++;
+        }
+        byte[][] levels = new byte[height][];
+        levels[0] = leaves;
+        MessageDigest digest = TreeHash.newDigest();
+        for (int k = 1; k < height; k++) {
+            byte[] below = levels[k - 1];
+            int belowCount = below.length / TreeHash.HASH_SIZE;
+            byte[] level = new byte[((belowCount + 1) / 2) * TreeHash.HASH_SIZE];
+            for (int i = 0; i + 1 < belowCount; i += 2) {
+                digest.update(below, i * TreeHash.HASH_SIZE, 2 * TreeHash.HASH_SIZE);
+                System.arraycopy(digest.digest(), 0, level, (i / 2) * TreeHash.HASH_SIZE, TreeHash.HASH_SIZE);
+            }
+            if (belowCount % 2 == 1) {
+                System.arraycopy(below, (belowCount - 1) * TreeHash.HASH_SIZE, level,
+                        (belowCount / 2) * TreeHash.HASH_SIZE, TreeHash.HASH_SIZE);
+            }
+            levels[k] = level;
+        }
+        return new ArchiveTreeHash(leafCount, levels);
+    }
+
+    public int getLeafCount() {
+        return leafCount;
+    }
+
+    public byte[] getRoot() {
+        return node(levels.length - 1, 0);
+    }
+
+    /**
+     * @return the tree hash of the inclusive byte range {@code [start, end]} of an archive of {@code size} bytes, or
+     * null if the range is not tree-hash aligned. Glacier only returns tree hashes for aligned ranges: the range must
+     * start on a megabyte boundary and be composed of whole subtrees of the archive's tree.
+     */
+    public byte[] getRangeHash(long start, long end, long size) {
+        if (start < 0 || end < start || end >= size || start % TreeHash.CHUNK_SIZE != 0) {
+            return null;
+        }
+        if ((end + 1) % TreeHash.CHUNK_SIZE != 0 && end + 1 != size) {
+            return null;
+        }
+        int first = (int) (start / TreeHash.CHUNK_SIZE);
+        int count = (int) ((end - start) / TreeHash.CHUNK_SIZE + 1);
+        if (first + count > leafCount) {
+            return null;
+        }
+        return rangeHash(first, count, TreeHash.newDigest());
+    }
+
+    private byte[] rangeHash(int first, int count, MessageDigest digest) {
+        if (Integer.bitCount(count) == 1) {
+            // A power of two number of leaves is a single node of the archive's tree if it is aligned
+            if (first % count != 0) {
+                return null;
+            }
+            return node(Integer.numberOfTrailingZeros(count), first / count);
+        }
+        // The left subtree covers the largest power of two number of leaves less than count
+        int left = Integer.highestOneBit(count - 1);
+        byte[] leftHash = rangeHash(first, left, digest);
+        if (leftHash == null) {
+            return null;
+        }
+        byte[] rightHash = rangeHash(first + left, count - left, digest);
+        if (rightHash == null) {
+            return null;
+        }
+        digest.update(leftHash);
+        digest.update(rightHash);
+        return digest.digest();
+    }
+
+    private byte[] node(int level, int index) {
+        byte[] hash = new byte[TreeHash.HASH_SIZE];
+        System.arraycopy(levels[level], index * TreeHash.HASH_SIZE, hash, 0, TreeHash.HASH_SIZE);
+        return hash;
+    }
+
+    /** Serializes every level so that loading does not have to recompute the inner nodes. */
+    public byte[] toBytes() {
+        int length = 4;
+        for (byte[] level : levels) {
+            length += level.length;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        buffer.putInt(leafCount);
+        for (byte[] level : levels) {
+            buffer.put(level);
+        }
+        return buffer.array();
+    }
+
+    public static ArchiveTreeHash fromBytes(byte[] bytes) {
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        int leafCount = buffer.getInt();
+        int height = 1;
+        for (int n = leafCount; n > 1; n = (n + 1) / 2) {
+            height++;
+        }
+        byte[][] levels = new byte[height][];
+        int count = leafCount;
+        for (int k = 0; k < height; k++) {
+            levels[k] = new byte[count * TreeHash.HASH_SIZE];
+            buffer.get(levels[k]);
+            count = (count + 1) / 2;
+        }
+        return new ArchiveTreeHash(leafCount, levels);
+    }
+}
@@ -5,17 +5,27 @@ import java.util.Map;
 
 import javax.ws.rs.core.Response;
 
+import com.google.common.io.CountingInputStream;
+import com.google.common.io.CountingOutputStream;
+
 import com.sun.net.httpserver.HttpExchange;
 
 abstract class BaseRequestHandler {
     protected final GlacierProxy proxy;
+    // Label of the handler's requests in the metrics
+    private final String route;
 
-    public BaseRequestHandler(GlacierProxy proxy) {
+    public BaseRequestHandler(GlacierProxy proxy, String route) {
         this.proxy = proxy;
+        this.route = route;
     }
 
     public final void handleRequest(HttpExchange httpExchange, Map<String, String> parameters) {
         String method = httpExchange.getRequestMethod();
+        long start = System.nanoTime();
+        CountingInputStream requestBody = new CountingInputStream(httpExchange.getRequestBody());
+        CountingOutputStream responseBody = new CountingOutputStream(httpExchange.getResponseBody());
+        httpExchange.setStreams(requestBody, responseBody);
         try {
             switch (httpExchange.getRequestMethod()) {
                 case "GET":
@@ -33,29 +43,38 @@ abstract class BaseRequestHandler {
                 default:
                     throw new IllegalArgumentException("Unsupported method " + method);
             }
-            httpExchange.getResponseBody().close();
+            // Closing the response body instead would finish a response without a body a second time: the JDK server
+            // finishes those when their headers are sent, and would then hand the connection, already serving the
+            // client's next request, to a new exchange that reads from the middle of that request
+            httpExchange.close();
         } catch (IOException e) {
             try {
-                httpExchange.sendResponseHeaders(Response.Status.INTERNAL_SERVER_ERROR.getStatusCode(), -1);
-                httpExchange.getResponseBody().close();
+                // A response that already started cannot be replaced, only cut short
+                if (httpExchange.getResponseCode() == -1) {
+                    Util.sendStatus(httpExchange, Response.Status.INTERNAL_SERVER_ERROR);
+                }
             } catch (IOException sendError) {
                 sendError.printStackTrace();
             }
+            httpExchange.close();
+        } finally {
+            proxy.getMetrics().recordRequest(route, method, httpExchange.getResponseCode(),
+                    System.nanoTime() - start, requestBody.getCount(), responseBody.getCount());
         }
     }
 
     protected void handleGet(HttpExchange httpExchange, Map<String, String> parameters) throws IOException {
-        httpExchange.sendResponseHeaders(Response.Status.METHOD_NOT_ALLOWED.getStatusCode(), -1);
+        Util.sendStatus(httpExchange, Response.Status.METHOD_NOT_ALLOWED);
     }
     protected void handlePut(HttpExchange httpExchange, Map<String, String> parameters) throws IOException {
-        httpExchange.sendResponseHeaders(Response.Status.METHOD_NOT_ALLOWED.getStatusCode(), -1);
+        Util.sendStatus(httpExchange, Response.Status.METHOD_NOT_ALLOWED);
     }
 
     protected void handlePost(HttpExchange httpExchange, Map<String, String> parameters) throws IOException {
-        httpExchange.sendResponseHeaders(Response.Status.METHOD_NOT_ALLOWED.getStatusCode(), -1);
+        Util.sendStatus(httpExchange, Response.Status.METHOD_NOT_ALLOWED);
     }
 
     protected void handleDelete(HttpExchange httpExchange, Map<String, String> parameters) throws IOException {
-        httpExchange.sendResponseHeaders(Response.Status.METHOD_NOT_ALLOWED.getStatusCode(), -1);
+        Util.sendStatus(httpExchange, Response.Status.METHOD_NOT_ALLOWED);
     }
 }
@@ -0,0 +1,120 @@
+package com.bouncestorage.glacierproxy;
+
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * An inclusive byte range {@code [start, end]}, as used by the RetrievalByteRange of archive retrieval jobs and by the
+ * Range header of job output requests. A range whose end is {@code start - 1} is empty.
+ */
+final class ByteRange {
+    private static final Pattern RETRIEVAL_RANGE = Pattern.compile("(\\d+)-(\\d+)");
+    private static final Pattern HEADER_RANGE = Pattern.compile("bytes=(\\d*)-(\\d*)");
+
+    final long start;
+    final long end;
+
+    ByteRange(long start, long end) {
+        if (start < 0 || end < start - 1) {
+            throw new IllegalArgumentException(String.format("Invalid byte range %d-%d", start, end));
+        }
+        this.start = start;
+        this.end = end;
+    }
+
+    /** The whole of something {@code size} bytes long. */
+    static ByteRange of(long size) {
+        return new ByteRange(0, size - 1);
+    }
+
+    long length() {
+        return end - start + 1;
+    }
+
+    /** @return this range moved {@code offset} bytes forward */
+    ByteRange shift(long offset) {
+        return new ByteRange(start + offset, end + offset);
+    }
+
+    /**
+     * Parses the RetrievalByteRange of an archive retrieval job. Glacier requires it to start on a megabyte boundary
+     * and to end just before one or at the end of the archive.
+     *
+     * @throws IllegalArgumentException if the range is malformed, not aligned or outside the archive
+     */
+    static ByteRange parseRetrievalRange(String value, long size) {
+        Matcher matcher = RETRIEVAL_RANGE.matcher(value);
+        if (!matcher.matches()) {
+            throw new IllegalArgumentException(String.format("Invalid RetrievalByteRange %s", value));
+        }
+        long start;
+        long end;
+        try {
+            start = Long.parseLong(matcher.group(1));
+            end = Long.parseLong(matcher.group(2));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException(String.format("Invalid RetrievalByteRange %s", value), e);
+        }
+        if (start > end || end >= size) {
+            throw new IllegalArgumentException(String.format(
+                    "RetrievalByteRange %s is outside the archive of %d bytes", value, size));
+        }
+        if (start % TreeHash.CHUNK_SIZE != 0 || ((end + 1) % TreeHash.CHUNK_SIZE != 0 && end != size - 1)) {
+            throw new IllegalArgumentException(String.format("RetrievalByteRange %s is not megabyte aligned", value));
+        }
+        return new ByteRange(start, end);
+    }
+
+    /**
+     * Parses a Range header of the form {@code bytes=a-b}, {@code bytes=a-} or {@code bytes=-n} against a
+     * representation of {@code length} bytes. An end past the representation is clamped to its last byte.
+     *
+     * @return the range, or null if it is not satisfiable
+     * @throws IllegalArgumentException if the header is not a single byte range
+     */
+    static ByteRange parseHeader(String header, long length) {
+        Matcher matcher = HEADER_RANGE.matcher(header.trim());
+        if (!matcher.matches() || (matcher.group(1).isEmpty() && matcher.group(2).isEmpty())) {
+            throw new IllegalArgumentException(String.format("Invalid range %s", header));
+        }
+        try {
+            if (matcher.group(1).isEmpty()) {
+                long suffix = Long.parseLong(matcher.group(2));
+                if (suffix == 0 || length == 0) {
+                    return null;
+                }
+                return new ByteRange(Math.max(0, length - suffix), length - 1);
+            }
+            long start = Long.parseLong(matcher.group(1));
+            long end = matcher.group(2).isEmpty() ? Long.MAX_VALUE : Long.parseLong(matcher.group(2));
+            if (end < start) {
+                throw new IllegalArgumentException(String.format("Invalid range %s", header));
+            }
+            if (start >= length) {
+                return null;
+            }
+            return new ByteRange(start, Math.min(end, length - 1));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException(String.format("Invalid range %s", header), e);
+        }
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        if (!(other instanceof ByteRange)) {
+            return false;
+        }
+        ByteRange range = (ByteRange) other;
+        return start == range.start && end == range.end;
+    }
+
+    @Override
+    public int hashCode() {
+        return Long.hashCode(start) * 31 + Long.hashCode(end);
+    }
+
+    @Override
+    public String toString() {
+        return start + "-" + end;
+    }
+}
@@ -0,0 +1,157 @@
+package com.bouncestorage.glacierproxy;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.jclouds.blobstore.BlobStore;
+import org.jclouds.blobstore.domain.Blob;
+import org.jclouds.blobstore.domain.BlobMetadata;
+import org.jclouds.blobstore.domain.MultipartUpload;
+
+import com.google.common.base.Optional;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.collect.ImmutableList;
+
+/**
+ * Caches the answers of {@link BlobStore#containerExists}, {@link BlobStore#blobExists} and
+ * {@link BlobStore#blobMetadata}, including negative ones, for a bounded number of containers and blobs and a bounded
+ * time. Writes through the wrapped BlobStore invalidate what they change, and the time limit bounds how long changes
+ * made behind the proxy's back stay invisible. Archives written by {@link FilesystemFastPath} bypass the BlobStore,
+ * but their names are new UUIDs that cannot have been looked up before.
+ */
+final class CachingBlobStore implements InvocationHandler {
+    private final BlobStore delegate;
+    private final Cache<String, Boolean> containers;
+    private final Cache<List<String>, Optional<BlobMetadata>> blobs;
+    // Incremented by every write, so that a load that raced with one is not kept
+    private final AtomicLong writes = new AtomicLong();
+
+    /**
+     * @param maximumSize maximum number of containers, and separately of blobs, to remember
+     * @param ttl milliseconds to remember an answer for
+     */
+    CachingBlobStore(BlobStore delegate, long maximumSize, long ttl) {
+        this.delegate = delegate;
+        this.containers = CacheBuilder.newBuilder().maximumSize(maximumSize)
+                .expireAfterWrite(ttl, TimeUnit.MILLISECONDS).recordStats().build();
+        this.blobs = CacheBuilder.newBuilder().maximumSize(maximumSize)
+                .expireAfterWrite(ttl, TimeUnit.MILLISECONDS).recordStats().build();
+    }
+
+    BlobStore asBlobStore() {
+        return (BlobStore) Proxy.newProxyInstance(BlobStore.class.getClassLoader(), new Class<?>[] {BlobStore.class},
+                this);
+    }
+
+    /** @return the hits, misses and evictions of both the container and the blob cache */
+    CacheStats stats() {
+        return containers.stats().plus(blobs.stats());
+    }
+
+    long size() {
+        return containers.size() + blobs.size();
+    }
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+        if (method.getDeclaringClass() == Object.class) {
+            return forward(method, args);
+        }
+        switch (method.getName()) {
+            case "containerExists":
+                return get(containers, (String) args[0], () -> (Boolean) forward(method, args));
+            case "blobExists":
+                return getBlobMetadata((String) args[0], (String) args[1]).isPresent();
+            case "blobMetadata":
+                return getBlobMetadata((String) args[0], (String) args[1]).orNull();
+            default:
+                break;
+        }
+        // Writes are invalidated once they are done, so that the answer a concurrent load read before is dropped
+        try {
+            return forward(method, args);
+        } finally {
+            invalidate(method, args);
+        }
+    }
+
+    private Optional<BlobMetadata> getBlobMetadata(String container, String name) throws Throwable {
+        return get(blobs, ImmutableList.of(container, name),
+                () -> Optional.fromNullable(delegate.blobMetadata(container, name)));
+    }
+
+    private <K, V> V get(Cache<K, V> cache, K key, Loader<V> loader) throws Throwable {
+        V value = cache.getIfPresent(key);
+        if (value != null) {
+            return value;
+        }
+        long generation = writes.get();
+        value = loader.load();
+        cache.put(key, value);
+        if (writes.get() != generation) {
+            // The load may have read what a concurrent write changed
+            cache.invalidate(key);
+        }
+        return value;
+    }
+
+    private void invalidate(Method method, Object[] args) {
+        switch (method.getName()) {
+            case "createContainerInLocation":
+                writes.incrementAndGet();
+                containers.invalidate(args[1]);
+                break;
+            case "deleteContainer":
+            case "deleteContainerIfEmpty":
+            case "clearContainer":
+                writes.incrementAndGet();
+                containers.invalidate(args[0]);
+                blobs.asMap().keySet().removeIf(key -> key.get(0).equals(args[0]));
+                break;
+            case "putBlob":
+                writes.incrementAndGet();
+                blobs.invalidate(ImmutableList.of(args[0], ((Blob) args[1]).getMetadata().getName()));
+                break;
+            case "removeBlob":
+                writes.incrementAndGet();
+                blobs.invalidate(ImmutableList.of(args[0], args[1]));
+                break;
+            case "removeBlobs":
+                writes.incrementAndGet();
+                for (Object name : (Iterable<?>) args[1]) {
+                    blobs.invalidate(ImmutableList.of(args[0], name));
+                }
+                break;
+            case "copyBlob":
+                writes.incrementAndGet();
+                blobs.invalidate(ImmutableList.of(args[2], args[3]));
+                break;
+            case "completeMultipartUpload":
+                writes.incrementAndGet();
+                MultipartUpload upload = (MultipartUpload) args[0];
+                blobs.invalidate(ImmutableList.of(upload.containerName(), upload.blobName()));
+                break;
+            default:
+                break;
+        }
+    }
+
+    private Object forward(Method method, Object[] args) throws Throwable {
+        try {
+            return method.invoke(delegate, args);
+        } catch (InvocationTargetException e) {
+            throw e.getCause();
+        }
+    }
+
+    private interface Loader<V> {
+        V load() throws Throwable;
+    }
+}
@@ -0,0 +1,113 @@
+package com.bouncestorage.glacierproxy;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+import org.jclouds.blobstore.ContainerNotFoundException;
+
+/**
+ * Reads and writes archives directly in the directory tree of the jclouds filesystem provider, where a vault is a
+ * directory below the base directory and an archive is a file in it. Uploads are written through a FileChannel in
+ * tree-hash sized chunks and retrievals are sent with FileChannel.transferTo, which bypasses the provider's payload
+ * and metadata handling. Everything else, such as listing and removing archives, still goes through jclouds.
+ */
+final class FilesystemFastPath {
+    private final Path baseDirectory;
+
+    FilesystemFastPath(Path baseDirectory) {
+        this.baseDirectory = baseDirectory.toAbsolutePath().normalize();
+    }
+
+    /**
+     * Writes an archive from the stream until its end, under its staging name until it is {@link #commit committed}.
+     *
+     * @return the number of bytes written
+     */
+    long write(String vault, String name, InputStream in) throws IOException {
+        Path vaultPath = resolve(baseDirectory, vault);
+        if (vaultPath == null || !Files.isDirectory(vaultPath)) {
+            throw new ContainerNotFoundException(vault, "not found");
+        }
+        Path path = resolve(vaultPath, Util.getStagingBlobName(name));
+        if (path == null) {
+            throw new IllegalArgumentException("Invalid archive name " + name);
+        }
+        byte[] buffer = new byte[TreeHash.CHUNK_SIZE];
+        long count = 0;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                ByteBuffer chunk = ByteBuffer.wrap(buffer, 0, read);
+                while (chunk.hasRemaining()) {
+                    channel.write(chunk);
+                }
+                count += read;
+            }
+            // The archive must be on disk before its name is, as its metadata is synced once it is committed
+            channel.force(true);
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(path);
+            throw e;
+        }
+        return count;
+    }
+
+    /** Gives a written archive its own name, once its hashes are verified, and syncs the rename. */
+    void commit(String vault, String name) throws IOException {
+        Path vaultPath = resolve(baseDirectory, vault);
+        Path path = vaultPath == null ? null : resolve(vaultPath, name);
+        if (path == null) {
+            throw new IllegalArgumentException("Invalid archive name " + name);
+        }
+        Files.move(path.resolveSibling(Util.getStagingBlobName(name)), path, StandardCopyOption.ATOMIC_MOVE);
+        Util.syncDirectory(vaultPath);
+    }
+
+    /**
+     * @return a channel to read the archive, or null if it does not exist
+     */
+    FileChannel open(String vault, String name) throws IOException {
+        Path vaultPath = resolve(baseDirectory, vault);
+        Path path = vaultPath == null ? null : resolve(vaultPath, name);
+        if (path == null) {
+            return null;
+        }
+        try {
+            return FileChannel.open(path, StandardOpenOption.READ);
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+    }
+
+    static void transferTo(FileChannel channel, long position, long count, OutputStream out) throws IOException {
+        WritableByteChannel target = Channels.newChannel(out);
+        long end = position + count;
+        while (position < end) {
+            long transferred = channel.transferTo(position, end - position, target);
+            if (transferred <= 0) {
+                throw new IOException(String.format("Unexpected end of file at %d of %d", position, end));
+            }
+            position += transferred;
+        }
+    }
+
+    /**
+     * Names come from request paths, so they must not escape their directory.
+     *
+     * @return the path of the name in the directory, or null if the name is not a plain file name
+     */
+    private static Path resolve(Path directory, String name) {
+        Path path = directory.resolve(name).normalize();
+        return directory.equals(path.getParent()) ? path : null;
+    }
+}
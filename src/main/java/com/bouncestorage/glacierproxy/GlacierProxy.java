@@ -1,111 +1,475 @@
 package com.bouncestorage.glacierproxy;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringWriter;
 import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Date;
 import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Properties;
 import java.util.UUID;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Consumer;
+
+import javax.ws.rs.core.Response;
 
 import org.jclouds.ContextBuilder;
 import org.jclouds.blobstore.BlobStore;
 import org.jclouds.blobstore.BlobStoreContext;
+import org.jclouds.blobstore.ContainerNotFoundException;
+import org.jclouds.blobstore.LocalStorageStrategy;
+import org.jclouds.blobstore.domain.StorageMetadata;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
 import com.sun.net.httpserver.HttpServer;
 
 public class GlacierProxy {
     private static final Logger logger = LoggerFactory.getLogger(GlacierProxy.class);
 
+    private final Properties properties;
+    private final Metrics metrics = new Metrics();
+    // The handlers keep no per-request state, so every request shares them
+    private final Vault vaultHandler = new Vault(this);
+    private final Archive archiveHandler = new Archive(this);
+    private final Job jobHandler = new Job(this);
+    private final Multipart multipartHandler = new Multipart(this);
     private HttpServer server;
+    private HttpServer adminServer;
+    private ExecutorService adminExecutor;
+    private RequestExecutor executor;
+    private RateLimits rateLimits;
+    private RequestAuthenticator authenticator;
+    private ExecutorService hashExecutor;
+    private ExecutorService jobExecutor;
+    private JobScheduler jobScheduler;
+    private UploadReaper uploadReaper;
+    private MetadataIndex metadataIndex;
+    private int hashThreads;
+    private BlobStoreContext context;
     private BlobStore blobStore;
-    private Map<String, Map<UUID, JsonObject>> jobMap;
-    private Map<String, Map<UUID, Multipart.Upload>> partsMap;
+    private CachingBlobStore metadataCache;
+    private FilesystemFastPath filesystemFastPath;
+    private boolean stageParts;
+    private boolean stageArchives;
+    private ConcurrentNavigableMap<String, Date> vaults;
+    private StateStore stateStore;
+
+    public GlacierProxy() {
+        this(new Properties());
+    }
+
+    public GlacierProxy(Properties properties) {
+        this.properties = properties;
+    }
 
     public void start() throws IOException {
-        server = HttpServer.create(new InetSocketAddress(8081), 0);
+        int port = getIntProperty(GlacierProxyConstants.PROPERTY_PORT, GlacierProxyConstants.DEFAULT_PORT);
+        int backlog = getIntProperty(GlacierProxyConstants.PROPERTY_BACKLOG, GlacierProxyConstants.DEFAULT_BACKLOG);
+        int threads = getIntProperty(GlacierProxyConstants.PROPERTY_WORKER_THREADS,
+                GlacierProxyConstants.DEFAULT_WORKER_THREADS);
+        int maxQueued = getIntProperty(GlacierProxyConstants.PROPERTY_MAX_QUEUED_REQUESTS,
+                GlacierProxyConstants.DEFAULT_MAX_QUEUED_REQUESTS);
+        String workerType = properties.getProperty(GlacierProxyConstants.PROPERTY_WORKER_TYPE,
+                GlacierProxyConstants.DEFAULT_WORKER_TYPE);
+
+        String provider = properties.getProperty(GlacierProxyConstants.PROPERTY_JCLOUDS_PROVIDER,
+                GlacierProxyConstants.DEFAULT_JCLOUDS_PROVIDER);
+        String dataDirectory = properties.getProperty(GlacierProxyConstants.PROPERTY_DATA_DIRECTORY);
+        // Archives that outlive the proxy are useless without their metadata, so it must outlive the proxy as well
+        if (dataDirectory == null && !isInMemory(provider)) {
+            throw new IllegalArgumentException(String.format("%s must be set with the %s provider",
+                    GlacierProxyConstants.PROPERTY_DATA_DIRECTORY, provider));
+        }
+
+        server = HttpServer.create(new InetSocketAddress(port), backlog);
         server.createContext("/", new GlacierProxyHandler(this));
-        server.setExecutor(null);
+        executor = new RequestExecutor(workerType, threads, maxQueued);
+        server.setExecutor(executor);
+        String credentials = properties.getProperty(GlacierProxyConstants.PROPERTY_CREDENTIALS);
+        if (credentials != null) {
+            authenticator = new RequestAuthenticator(RequestAuthenticator.parseCredentials(credentials));
+        }
+        rateLimits = new RateLimits(
+                getLongProperty(GlacierProxyConstants.PROPERTY_ACCOUNT_REQUEST_RATE,
+                        GlacierProxyConstants.DEFAULT_RATE),
+                getLongProperty(GlacierProxyConstants.PROPERTY_VAULT_REQUEST_RATE, GlacierProxyConstants.DEFAULT_RATE),
+                getLongProperty(GlacierProxyConstants.PROPERTY_UPLOAD_RATE, GlacierProxyConstants.DEFAULT_RATE),
+                getLongProperty(GlacierProxyConstants.PROPERTY_RETRIEVAL_RATE, GlacierProxyConstants.DEFAULT_RATE));
+        hashThreads = getIntProperty(GlacierProxyConstants.PROPERTY_TREE_HASH_THREADS,
+                GlacierProxyConstants.DEFAULT_TREE_HASH_THREADS);
+        if (hashThreads > 0) {
+            hashExecutor = Executors.newFixedThreadPool(hashThreads,
+                    RequestExecutor.namedThreadFactory("glacier-proxy-hash"));
+        }
+        context = createContext();
+        stageParts = Boolean.parseBoolean(properties.getProperty(GlacierProxyConstants.PROPERTY_STAGE_PARTS));
+        // The fast path stages archives by itself, and archives in memory do not outlive a crash
+        stageArchives = filesystemFastPath == null && !isInMemory(provider);
+        blobStore = TimedBlobStore.wrap(context.getBlobStore(), metrics);
+        long cacheSize = getLongProperty(GlacierProxyConstants.PROPERTY_METADATA_CACHE_SIZE,
+                GlacierProxyConstants.DEFAULT_METADATA_CACHE_SIZE);
+        if (cacheSize > 0) {
+            // In front of the timing, so that backend latencies are only recorded for misses
+            metadataCache = new CachingBlobStore(blobStore, cacheSize, getLongProperty(
+                    GlacierProxyConstants.PROPERTY_METADATA_CACHE_TTL,
+                    GlacierProxyConstants.DEFAULT_METADATA_CACHE_TTL));
+            blobStore = metadataCache.asBlobStore();
+        }
+        Path dataPath;
+        if (dataDirectory == null) {
+            dataPath = Files.createTempDirectory("glacier-proxy");
+            logger.info("Keeping the proxy's data in {}", dataPath);
+        } else {
+            dataPath = Paths.get(dataDirectory);
+        }
+        metadataIndex = new MetadataIndex(dataPath.resolve("metadata"), blobStore);
+        vaults = new ConcurrentSkipListMap<>();
+        for (StorageMetadata container : blobStore.list()) {
+            vaults.put(container.getName(), container.getCreationDate() == null ? new Date() :
+                    container.getCreationDate());
+        }
+        jobExecutor = Executors.newFixedThreadPool(getIntProperty(GlacierProxyConstants.PROPERTY_JOB_THREADS,
+                GlacierProxyConstants.DEFAULT_JOB_THREADS), RequestExecutor.namedThreadFactory("glacier-proxy-job"));
+        jobScheduler = new JobScheduler(this,
+                getLongProperty(GlacierProxyConstants.PROPERTY_EXPEDITED_DELAY,
+                        GlacierProxyConstants.DEFAULT_RETRIEVAL_DELAY),
+                getLongProperty(GlacierProxyConstants.PROPERTY_STANDARD_DELAY,
+                        GlacierProxyConstants.DEFAULT_RETRIEVAL_DELAY),
+                getLongProperty(GlacierProxyConstants.PROPERTY_BULK_DELAY,
+                        GlacierProxyConstants.DEFAULT_RETRIEVAL_DELAY),
+                getLongProperty(GlacierProxyConstants.PROPERTY_JOB_TTL, GlacierProxyConstants.DEFAULT_JOB_TTL));
+        stateStore = new StateStore(dataPath.resolve("state.log"));
+        resumeJobs();
+        long uploadTtl = getLongProperty(GlacierProxyConstants.PROPERTY_UPLOAD_TTL,
+                GlacierProxyConstants.DEFAULT_UPLOAD_TTL);
+        if (uploadTtl > 0) {
+            uploadReaper = new UploadReaper(this, uploadTtl);
+        }
+        registerGauges();
+        String adminPort = properties.getProperty(GlacierProxyConstants.PROPERTY_ADMIN_PORT);
+        if (adminPort != null) {
+            startAdminServer(Integer.parseInt(adminPort));
+        }
         server.start();
-        BlobStoreContext context = ContextBuilder.newBuilder("transient").credentials("", "")
-                .build(BlobStoreContext.class);
-        blobStore = context.getBlobStore();
-        jobMap = new ConcurrentHashMap<>();
-        partsMap = new ConcurrentHashMap<>();
-        logger.info("Proxy started");
+        logger.info("Proxy started on port {} with {} {} workers", getPort(), threads, workerType);
+    }
+
+    /** @return the port the proxy listens on, which is chosen by the system if glacier-proxy.port is 0 */
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    private void registerGauges() {
+        metrics.gauge("glacier_proxy_requests_in_flight", "Requests admitted to the worker pool and not yet answered",
+                executor::getInFlight);
+        metrics.gauge("glacier_proxy_worker_queue_depth", "Requests waiting for a worker thread",
+                executor::getQueueDepth);
+        metrics.gauge("glacier_proxy_active_jobs", "Jobs waiting for their retrieval delay to pass",
+                jobScheduler::getPendingJobs);
+        metrics.gauge("glacier_proxy_multipart_uploads", "Multipart uploads neither completed nor aborted",
+                stateStore::getUploadCount);
+        metrics.gauge("glacier_proxy_multipart_part_bytes", "Bytes of the parts of live multipart uploads",
+                stateStore::getPartBytes);
+        if (uploadReaper != null) {
+            metrics.counter("glacier_proxy_reclaimed_uploads_total", "Abandoned multipart uploads aborted",
+                    uploadReaper::getReclaimedUploads);
+            metrics.counter("glacier_proxy_reclaimed_bytes_total", "Bytes of the parts of abandoned uploads aborted",
+                    uploadReaper::getReclaimedBytes);
+        }
+        if (metadataCache != null) {
+            metrics.counter("glacier_proxy_metadata_cache_hits_total",
+                    "Existence and metadata lookups of containers and blobs answered from the cache",
+                    () -> metadataCache.stats().hitCount());
+            metrics.counter("glacier_proxy_metadata_cache_misses_total",
+                    "Existence and metadata lookups of containers and blobs sent to the backend",
+                    () -> metadataCache.stats().missCount());
+            metrics.counter("glacier_proxy_metadata_cache_evictions_total",
+                    "Cached containers and blobs dropped for size or age", () -> metadataCache.stats().evictionCount());
+            metrics.gauge("glacier_proxy_metadata_cache_entries", "Containers and blobs in the metadata cache",
+                    metadataCache::size);
+        }
+        metrics.gauge("glacier_proxy_jvm_heap_used_bytes", "Heap used by the JVM",
+                () -> Runtime.getRuntime().totalMemory() - Runtime.getRuntime().freeMemory());
+        String provider = properties.getProperty(GlacierProxyConstants.PROPERTY_JCLOUDS_PROVIDER,
+                GlacierProxyConstants.DEFAULT_JCLOUDS_PROVIDER);
+        if (provider.equals("transient")) {
+            // The transient provider keeps archives and parts on the heap
+            metrics.gauge("glacier_proxy_transient_store_bytes", "Bytes of archives and parts held in memory",
+                    () -> metadataIndex.getArchiveBytes() + stateStore.getPartBytes());
+        } else if (provider.equals(OffHeapApiMetadata.ID)) {
+            OffHeapStorageStrategy storage = (OffHeapStorageStrategy) context.utils().injector().getInstance(
+                    LocalStorageStrategy.class);
+            metrics.gauge("glacier_proxy_offheap_memory_bytes", "Bytes of archives and parts held in direct memory",
+                    storage::getMemoryBytes);
+            metrics.gauge("glacier_proxy_offheap_spilled_bytes", "Bytes of archives and parts spilled to files",
+                    storage::getSpilledBytes);
+        }
+    }
+
+    private void startAdminServer(int port) throws IOException {
+        adminServer = HttpServer.create(new InetSocketAddress(port), 0);
+        adminServer.createContext("/metrics", httpExchange -> {
+            byte[] body;
+            try (StringWriter writer = new StringWriter()) {
+                metrics.write(writer);
+                body = writer.toString().getBytes(StandardCharsets.UTF_8);
+            }
+            httpExchange.getResponseHeaders().set("Content-Type", Metrics.CONTENT_TYPE);
+            httpExchange.sendResponseHeaders(Response.Status.OK.getStatusCode(), body.length);
+            httpExchange.getResponseBody().write(body);
+            httpExchange.close();
+        });
+        // Scrapes are rare, and must not wait behind requests for a worker
+        adminExecutor = Executors.newSingleThreadExecutor(RequestExecutor.namedThreadFactory("glacier-proxy-admin"));
+        adminServer.setExecutor(adminExecutor);
+        adminServer.start();
+        logger.info("Admin server started on port {}", adminServer.getAddress().getPort());
     }
 
     public void stop() {
         server.stop(0);
+        if (adminServer != null) {
+            adminServer.stop(0);
+            adminExecutor.shutdown();
+        }
+        executor.shutdown();
+        jobScheduler.shutdown();
+        if (uploadReaper != null) {
+            uploadReaper.shutdown();
+        }
+        jobExecutor.shutdown();
+        try {
+            metadataIndex.close();
+            stateStore.close();
+        } catch (IOException e) {
+            logger.warn("Failed to close the proxy's state", e);
+        }
+        if (hashExecutor != null) {
+            hashExecutor.shutdown();
+        }
+        context.close();
+    }
+
+    /** @return whether the provider keeps archives in memory, so that they are lost when the proxy stops */
+    private static boolean isInMemory(String provider) {
+        return provider.equals(OffHeapApiMetadata.ID) || provider.equals("transient");
+    }
+
+    /**
+     * Creates the backend from the jclouds.* properties, which are also passed to jclouds as overrides so that any
+     * provider specific setting can be configured.
+     */
+    private BlobStoreContext createContext() {
+        String provider = properties.getProperty(GlacierProxyConstants.PROPERTY_JCLOUDS_PROVIDER,
+                GlacierProxyConstants.DEFAULT_JCLOUDS_PROVIDER);
+        ContextBuilder builder = (provider.equals(OffHeapApiMetadata.ID) ?
+                ContextBuilder.newBuilder(new OffHeapApiMetadata()) : ContextBuilder.newBuilder(provider))
+                .credentials(properties.getProperty(GlacierProxyConstants.PROPERTY_JCLOUDS_IDENTITY, ""),
+                        properties.getProperty(GlacierProxyConstants.PROPERTY_JCLOUDS_CREDENTIAL, ""))
+                .overrides(properties);
+        String endpoint = properties.getProperty(GlacierProxyConstants.PROPERTY_JCLOUDS_ENDPOINT);
+        if (endpoint != null) {
+            builder.endpoint(endpoint);
+        }
+        // The filesystem provider fails to build without its base directory
+        BlobStoreContext newContext = builder.build(BlobStoreContext.class);
+        if (provider.equals("filesystem") && Boolean.parseBoolean(properties.getProperty(
+                GlacierProxyConstants.PROPERTY_FILESYSTEM_FAST_PATH, "true"))) {
+            filesystemFastPath = new FilesystemFastPath(Paths.get(properties.getProperty(
+                    GlacierProxyConstants.PROPERTY_JCLOUDS_BASEDIR)));
+        }
+        logger.info("Storing archives with the {} provider", provider);
+        return newContext;
+    }
+
+    private int getIntProperty(String name, int defaultValue) {
+        String value = properties.getProperty(name);
+        if (value == null) {
+            return defaultValue;
+        }
+        return Integer.parseInt(value);
     }
 
-    public Vault getVault(Map<String, String> parameters) {
-        return new Vault(this);
+    private long getLongProperty(String name, long defaultValue) {
+        String value = properties.getProperty(name);
+        if (value == null) {
+            return defaultValue;
+        }
+        return Long.parseLong(value);
     }
 
-    public Archive getArchive(Map<String, String> parameters) {
-        return new Archive(this);
+    public Vault getVault() {
+        return vaultHandler;
     }
 
-    public Job getJobHandler(Map<String, String> parameters) {
-        return new Job(this);
+    public Archive getArchive() {
+        return archiveHandler;
     }
 
-    public Multipart getMultipartHandler(Map<String, String> parameters) {
-        return new Multipart(this);
+    public Job getJobHandler() {
+        return jobHandler;
+    }
+
+    public Multipart getMultipartHandler() {
+        return multipartHandler;
     }
 
     public JsonObject getJob(String vault, UUID jobId) {
-        Map<UUID, JsonObject> map = jobMap.get(vault);
+        Map<UUID, JsonObject> map = stateStore.getJobs(vault);
         if (map == null) {
             return null;
         }
         return map.get(jobId);
     }
 
-    public Map<UUID, JsonObject> getVaultJobs(String vault) {
-        return jobMap.get(vault);
+    /** @return the names and creation dates of the vaults, sorted by name */
+    NavigableMap<String, Date> getVaults() {
+        return vaults;
     }
 
-    public UUID addJob(String vault, JsonObject json) {
+    void addVault(String vault) {
+        vaults.putIfAbsent(vault, new Date());
+    }
+
+    void removeVault(String vault) {
+        vaults.remove(vault);
+    }
+
+    public NavigableMap<UUID, JsonObject> getVaultJobs(String vault) {
+        return stateStore.getJobs(vault);
+    }
+
+    public UUID addJob(String vault, JsonObject json) throws IOException {
         UUID uuid = UUID.randomUUID();
-        json.addProperty("CreationDate", Util.getTimeStamp(null));
-        json.addProperty("CompletionDate", Util.getTimeStamp(null));
-        if (!jobMap.containsKey(vault)) {
-            jobMap.put(vault, new ConcurrentHashMap<>());
-        }
-        jobMap.get(vault).put(uuid, json);
+        json.addProperty(Job.CREATION_DATE, System.currentTimeMillis());
+        stateStore.putJob(vault, uuid, json);
         return uuid;
     }
 
-    public UUID createMultipartUpload(String vault, Multipart.Upload upload) {
-        if (!partsMap.containsKey(vault)) {
-            partsMap.put(vault, new ConcurrentHashMap<>());
-        }
+    /**
+     * Apply an update to a copy of the job and replace it, so that concurrent readers always see a consistent job.
+     */
+    public void updateJob(String vault, UUID jobId, Consumer<JsonObject> update) throws IOException {
+        stateStore.updateJob(vault, jobId, update);
+    }
+
+    public UUID createMultipartUpload(String vault, Multipart.Upload upload) throws IOException {
         UUID uuid = UUID.randomUUID();
-        partsMap.get(vault).put(uuid, upload);
+        stateStore.putUpload(vault, uuid, upload);
         return uuid;
     }
 
-    public Map<UUID, Multipart.Upload> getUploads(String vault) {
-        return partsMap.get(vault);
+    public NavigableMap<UUID, Multipart.Upload> getUploads(String vault) {
+        return stateStore.getUploads(vault);
     }
 
     public Multipart.Upload getUpload(String vault, UUID uploadId) {
-        Map<UUID, Multipart.Upload> map = partsMap.get(vault);
+        Map<UUID, Multipart.Upload> map = stateStore.getUploads(vault);
         if (map == null) {
             return null;
         }
         return map.get(uploadId);
     }
 
-    public void completeUpload(String vault, UUID uploadId) {
-        Map<UUID, Multipart.Upload> map = partsMap.get(vault);
-        if (map == null) {
-            return;
+    public void completeUpload(String vault, UUID uploadId) throws IOException {
+        stateStore.removeUpload(vault, uploadId);
+    }
+
+    /** Abort the upload in the backend, which removes its parts, and forget it. */
+    public void abortUpload(String vault, UUID uploadId, Multipart.Upload upload) throws IOException {
+        try {
+            blobStore.abortMultipartUpload(upload.jcloudsUpload);
+        } catch (ContainerNotFoundException e) {
+            // The parts went with the vault
+        }
+        stateStore.removeUpload(vault, uploadId);
+    }
+
+    /**
+     * Jobs that were in progress when the proxy stopped are scheduled again. Their background work, such as building an
+     * inventory, is lost and starts over.
+     */
+    private void resumeJobs() {
+        for (Map.Entry<String, ? extends NavigableMap<UUID, JsonObject>> vault : stateStore.getAllJobs().entrySet()) {
+            for (Map.Entry<UUID, JsonObject> job : vault.getValue().entrySet()) {
+                if (job.getValue().get("StatusCode").getAsString().equals(Job.STATUS_IN_PROGRESS)) {
+                    JsonElement completionTime = job.getValue().get(Job.COMPLETION_TIME);
+                    jobScheduler.schedule(vault.getKey(), job.getKey(),
+                            completionTime == null ? 0 : completionTime.getAsLong());
+                }
+            }
         }
-        map.remove(uploadId);
+    }
+
+    /**
+     * Wrap an upload so that its linear and tree hashes are computed while it is streamed to the blobstore.
+     */
+    TreeHashingInputStream hashingStream(InputStream in) {
+        if (hashExecutor == null) {
+            return new TreeHashingInputStream(in);
+        }
+        // Keep every hashing thread busy while the reader fills the next chunk
+        return new TreeHashingInputStream(in, hashExecutor, 2 * hashThreads);
+    }
+
+    /** Executor for work that jobs perform in the background, such as building inventories. */
+    ExecutorService getJobExecutor() {
+        return jobExecutor;
+    }
+
+    /** @return the verifier of request signatures, or null if requests are not authenticated */
+    RequestAuthenticator getAuthenticator() {
+        return authenticator;
+    }
+
+    RateLimits getRateLimits() {
+        return rateLimits;
+    }
+
+    Metrics getMetrics() {
+        return metrics;
+    }
+
+    JobScheduler getJobScheduler() {
+        return jobScheduler;
+    }
+
+    /** @return the reaper of abandoned multipart uploads, or null if they are kept forever */
+    UploadReaper getUploadReaper() {
+        return uploadReaper;
+    }
+
+    StateStore getStateStore() {
+        return stateStore;
+    }
+
+    MetadataIndex getMetadataIndex() {
+        return metadataIndex;
+    }
+
+    /** @return direct access to the files of the filesystem provider, or null for other providers */
+    boolean isStagingParts() {
+        return stageParts;
+    }
+
+    /** @return whether archives are stored under a staging name and copied once they are verified */
+    boolean isStagingArchives() {
+        return stageArchives;
+    }
+
+    FilesystemFastPath getFilesystemFastPath() {
+        return filesystemFastPath;
     }
 
     public BlobStore getBlobStore() {
@@ -0,0 +1,114 @@
+package com.bouncestorage.glacierproxy;
+
+public final class GlacierProxyConstants {
+    /** Listening port; 0 lets the system choose a free port, see {@link GlacierProxy#getPort()}. */
+    public static final String PROPERTY_PORT = "glacier-proxy.port";
+    /** Maximum number of pending connections the listening socket will queue. */
+    public static final String PROPERTY_BACKLOG = "glacier-proxy.backlog";
+    /** Either "fixed" (a pool of platform threads) or "virtual" (one virtual thread per request, JDK 21+). */
+    public static final String PROPERTY_WORKER_TYPE = "glacier-proxy.worker-type";
+    public static final String PROPERTY_WORKER_THREADS = "glacier-proxy.worker-threads";
+    /** Requests waiting for a worker beyond this limit are rejected with a ThrottlingException. */
+    public static final String PROPERTY_MAX_QUEUED_REQUESTS = "glacier-proxy.max-queued-requests";
+    /**
+     * Comma-separated access-key:secret-key pairs; requests must then carry an AWS Signature Version 4 made with one of
+     * them. Unset accepts every request.
+     */
+    public static final String PROPERTY_CREDENTIALS = "glacier-proxy.credentials";
+    /**
+     * Requests per second accepted from each account, and separately for each vault; requests over the rate are
+     * rejected with a ThrottlingException. 0 disables the limit.
+     */
+    public static final String PROPERTY_ACCOUNT_REQUEST_RATE = "glacier-proxy.account-request-rate";
+    public static final String PROPERTY_VAULT_REQUEST_RATE = "glacier-proxy.vault-request-rate";
+    /**
+     * Bytes per second each account may upload, and separately retrieve from job outputs; transfers over the rate are
+     * slowed down. 0 disables the limit.
+     */
+    public static final String PROPERTY_UPLOAD_RATE = "glacier-proxy.upload-rate";
+    public static final String PROPERTY_RETRIEVAL_RATE = "glacier-proxy.retrieval-rate";
+    /** Threads used to hash the 1 MiB chunks of uploads in parallel; 0 hashes on the request thread. */
+    public static final String PROPERTY_TREE_HASH_THREADS = "glacier-proxy.tree-hash-threads";
+    /** Threads that perform the background work of jobs, such as building inventories. */
+    public static final String PROPERTY_JOB_THREADS = "glacier-proxy.job-threads";
+    /**
+     * Milliseconds before a retrieval job of each tier completes; 0 completes jobs as soon as they are initiated.
+     * Glacier takes minutes for expedited, hours for standard and up to half a day for bulk retrievals. Inventories are
+     * retrieved at the standard tier.
+     */
+    public static final String PROPERTY_EXPEDITED_DELAY = "glacier-proxy.expedited-retrieval-delay";
+    public static final String PROPERTY_STANDARD_DELAY = "glacier-proxy.standard-retrieval-delay";
+    public static final String PROPERTY_BULK_DELAY = "glacier-proxy.bulk-retrieval-delay";
+    /**
+     * Milliseconds after its completion before a job is removed, along with its inventory; 0 keeps jobs forever.
+     * Glacier keeps them for at least 24 hours.
+     */
+    public static final String PROPERTY_JOB_TTL = "glacier-proxy.job-ttl";
+    /**
+     * Milliseconds after its last part before a multipart upload that is neither completed nor aborted is aborted; 0
+     * keeps such uploads forever. Glacier aborts them after 24 hours.
+     */
+    public static final String PROPERTY_UPLOAD_TTL = "glacier-proxy.upload-ttl";
+    /**
+     * Stage each upload part in a blob of its own until its hashes are verified, so that a corrupt retry never replaces
+     * a part that was accepted before. This costs two more transfers of every part to and from the backend; without
+     * it, a part whose body is rejected must be uploaded again before the upload is completed.
+     */
+    public static final String PROPERTY_STAGE_PARTS = "glacier-proxy.stage-parts";
+    /** Port of the admin server, which serves metrics at /metrics in the Prometheus text format. Unset disables it. */
+    public static final String PROPERTY_ADMIN_PORT = "glacier-proxy.admin-port";
+    /**
+     * Containers and blobs, counted separately, whose existence and metadata are cached in front of the backend; 0
+     * disables the cache.
+     */
+    public static final String PROPERTY_METADATA_CACHE_SIZE = "glacier-proxy.metadata-cache-size";
+    /** Milliseconds the existence and metadata of a container or blob are cached for. */
+    public static final String PROPERTY_METADATA_CACHE_TTL = "glacier-proxy.metadata-cache-ttl";
+    /**
+     * Local directory for the proxy's own state, such as archive metadata. Required with backends that keep archives
+     * across restarts; defaults to a temporary directory with the offheap and transient backends.
+     */
+    public static final String PROPERTY_DATA_DIRECTORY = "glacier-proxy.data-directory";
+    /**
+     * Store archives through jclouds even with the filesystem provider, instead of reading and writing the provider's
+     * files directly.
+     */
+    public static final String PROPERTY_FILESYSTEM_FAST_PATH = "glacier-proxy.filesystem-fast-path";
+
+    /**
+     * jclouds provider or API of the backend, such as "offheap", "transient", "filesystem", "s3" or "aws-s3". The
+     * offheap and transient backends keep archives in memory, respectively outside and on the Java heap.
+     */
+    public static final String PROPERTY_JCLOUDS_PROVIDER = "jclouds.provider";
+    public static final String PROPERTY_JCLOUDS_ENDPOINT = "jclouds.endpoint";
+    public static final String PROPERTY_JCLOUDS_IDENTITY = "jclouds.identity";
+    public static final String PROPERTY_JCLOUDS_CREDENTIAL = "jclouds.credential";
+    /** Directory that holds the vaults of the filesystem provider. */
+    public static final String PROPERTY_JCLOUDS_BASEDIR = "jclouds.filesystem.basedir";
+    /**
+     * Bytes of payloads the offheap backend keeps in direct memory before it spills them to files. Defaults to half of
+     * the maximum heap size, which is also the default limit of direct memory.
+     */
+    public static final String PROPERTY_OFFHEAP_MAX_MEMORY = "jclouds.offheap.max-memory";
+    /** Directory of the files the offheap backend spills payloads to. Defaults to a temporary directory. */
+    public static final String PROPERTY_OFFHEAP_SPILL_DIRECTORY = "jclouds.offheap.spill-directory";
+
+    static final int DEFAULT_PORT = 8081;
+    static final int DEFAULT_BACKLOG = 256;
+    static final String DEFAULT_WORKER_TYPE = "fixed";
+    static final int DEFAULT_WORKER_THREADS = 32;
+    static final int DEFAULT_MAX_QUEUED_REQUESTS = 256;
+    static final long DEFAULT_RATE = 0;
+    static final int DEFAULT_TREE_HASH_THREADS = 0;
+    static final int DEFAULT_JOB_THREADS = 2;
+    static final long DEFAULT_RETRIEVAL_DELAY = 0;
+    static final long DEFAULT_JOB_TTL = 24 * 60 * 60 * 1000L;
+    static final long DEFAULT_UPLOAD_TTL = 24 * 60 * 60 * 1000L;
+    static final long DEFAULT_METADATA_CACHE_SIZE = 10000;
+    static final long DEFAULT_METADATA_CACHE_TTL = 60 * 1000L;
+    static final String DEFAULT_JCLOUDS_PROVIDER = OffHeapApiMetadata.ID;
+
+    private GlacierProxyConstants() {
+        throw new AssertionError("intentionally unimplemented");
+    }
+}
@@ -1,11 +1,7 @@
 package com.bouncestorage.glacierproxy;
 
 import java.io.IOException;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -23,72 +19,68 @@ public class GlacierProxyHandler implements HttpHandler {
         this.server = server;
     }
 
-    // Caller may specify "-" and expect account to be looked up from the credentials
-    static final String VAULT_NAME = "(?<vault>[a-zA-Z0-9\\.\\-_]+)";
-    static final String VAULT_PREFIX = "^/(?<account>(\\d{12}|-))/vaults";
-    static final Pattern JOBS_RE = Pattern.compile(String.format("%s/%s/jobs(/(?<job>[a-zA-Z0-9-_]+))?(/output)?",
-            VAULT_PREFIX, VAULT_NAME));
-    static final Pattern ARCHIVES_RE = Pattern.compile(String.format("%s/%s/archives(/(?<archive>[a-zA-Z0-9-_]+))?",
-            VAULT_PREFIX, VAULT_NAME));
-    static final Pattern MULTIPART_RE = Pattern.compile(
-            String.format("%s/%s/multipart-uploads(/(?<upload>[a-zA-Z0-9-_]+))?", VAULT_PREFIX, VAULT_NAME));
-    static final Pattern VAULTS_RE = Pattern.compile(String.format("%s(/%s)?", VAULT_PREFIX, VAULT_NAME));
-
     static final String VERSION_HEADER = "x-amz-glacier-version";
     static final String CURRENT_VERSION = "2012-06-01";
+    private static final List<String> REQUEST_ID = ImmutableList.of("glacier-proxy");
 
     public void handle(HttpExchange httpExchange) throws IOException {
-        if (!httpExchange.getRequestHeaders().getFirst(VERSION_HEADER).equals(CURRENT_VERSION)) {
+        if (RequestExecutor.isRejected()) {
+            logger.debug("Throttling {}: too many queued requests", httpExchange.getRequestURI().getPath());
+            server.getMetrics().recordThrottled();
+            Util.sendThrottlingError("Too many requests are queued; retry the request later", httpExchange);
+            httpExchange.close();
+            return;
+        }
+
+        if (!CURRENT_VERSION.equals(httpExchange.getRequestHeaders().getFirst(VERSION_HEADER))) {
             logger.warn("Invalid or missing API version: {}; expected {}",
                     httpExchange.getRequestHeaders().getFirst(VERSION_HEADER), CURRENT_VERSION);
             Util.sendBadRequest("Unsupported or missing API version", httpExchange);
+            httpExchange.close();
             return;
         }
 
-        Map<String, String> parameters = new HashMap<>();
-        httpExchange.getResponseHeaders().put("x-amzn-RequestId", ImmutableList.of("glacier-proxy"));
+        httpExchange.getResponseHeaders().put("x-amzn-RequestId", REQUEST_ID);
         String requestPath = httpExchange.getRequestURI().getPath();
 
         logger.debug("Processing {}", requestPath);
 
-        Matcher matcher = JOBS_RE.matcher(requestPath);
-        if (matcher.matches()) {
-            setParameters(matcher, ImmutableList.of("account", "vault", "job"), parameters);
-            server.getJobHandler(parameters).handleRequest(httpExchange, parameters);
-            return;
-        }
-
-        matcher = ARCHIVES_RE.matcher(requestPath);
-        if (matcher.matches()) {
-            setParameters(matcher, ImmutableList.of("account", "vault", "archive"), parameters);
-            server.getArchive(parameters).handleRequest(httpExchange, parameters);
+        PathParameters parameters = PathParameters.parse(requestPath);
+        if (parameters == null) {
+            logger.debug("Unknown request {}", requestPath);
+            Util.sendBadRequest("Unknown request", httpExchange);
+            httpExchange.close();
             return;
         }
-
-        matcher = MULTIPART_RE.matcher(requestPath);
-        if (matcher.matches()) {
-            setParameters(matcher, ImmutableList.of("account", "vault", "upload"), parameters);
-            server.getMultipartHandler(parameters).handleRequest(httpExchange, parameters);
+        RequestAuthenticator authenticator = server.getAuthenticator();
+        if (authenticator != null && !authenticator.authenticate(httpExchange, parameters)) {
+            logger.debug("Rejecting unauthenticated request {}", requestPath);
+            httpExchange.close();
             return;
         }
-
-        matcher = VAULTS_RE.matcher(requestPath);
-        if (matcher.matches()) {
-            setParameters(matcher, ImmutableList.of("account", "vault"), parameters);
-            server.getVault(parameters).handleRequest(httpExchange, parameters);
+        String throttled = server.getRateLimits().acquireRequest(parameters.get("account"), parameters.get("vault"));
+        if (throttled != null) {
+            logger.debug("Throttling {}: {}", requestPath, throttled);
+            server.getMetrics().recordThrottled();
+            Util.sendThrottlingError(throttled, httpExchange);
+            httpExchange.close();
             return;
         }
-
-        logger.debug("Unknown request {}", requestPath);
-        Util.sendBadRequest("Unknown request", httpExchange);
-        httpExchange.getResponseBody().close();
-    }
-
-    private void setParameters(Matcher matcher, List<String> keys, Map<String, String> parameters) {
-        for (String key : keys) {
-            if (matcher.group(key) != null) {
-                parameters.put(key, matcher.group(key));
-            }
+        BaseRequestHandler handler;
+        switch (parameters.getResource()) {
+            case ARCHIVES:
+                handler = server.getArchive();
+                break;
+            case JOBS:
+                handler = server.getJobHandler();
+                break;
+            case MULTIPART_UPLOADS:
+                handler = server.getMultipartHandler();
+                break;
+            default:
+                handler = server.getVault();
+                break;
         }
+        handler.handleRequest(httpExchange, parameters);
     }
 }
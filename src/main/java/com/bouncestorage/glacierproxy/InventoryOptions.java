@@ -0,0 +1,101 @@
+package com.bouncestorage.glacierproxy;
+
+import java.io.IOException;
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+import java.util.Map;
+import java.util.NavigableMap;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+
+/**
+ * The InventoryRetrievalParameters of an inventory job: the archives created from StartDate, inclusive, to EndDate,
+ * exclusive, at most Limit of them, starting at the archive named by Marker. Like {@link ListOptions}, the marker is
+ * the ID of the first archive of the next inventory, as the index is sorted by archive ID.
+ */
+final class InventoryOptions {
+    private final long startDate;
+    private final long endDate;
+    private final long limit;
+    private final String marker;
+
+    /**
+     * @param parameters the InventoryRetrievalParameters of the job, or null
+     * @throws IllegalArgumentException if a parameter is invalid
+     */
+    InventoryOptions(JsonObject parameters) {
+        startDate = parseDate(parameters, "StartDate", Long.MIN_VALUE);
+        endDate = parseDate(parameters, "EndDate", Long.MAX_VALUE);
+        if (startDate >= endDate) {
+            throw new IllegalArgumentException("StartDate must be before EndDate");
+        }
+        String limitValue = getString(parameters, "Limit");
+        if (limitValue == null) {
+            limit = Long.MAX_VALUE;
+        } else {
+            try {
+                limit = Long.parseLong(limitValue);
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid Limit " + limitValue);
+            }
+            if (limit < 1) {
+                throw new IllegalArgumentException("Invalid Limit " + limitValue);
+            }
+        }
+        marker = getString(parameters, "Marker");
+    }
+
+    /**
+     * Passes the archives of the inventory to the writer.
+     *
+     * @return the ID of the first archive after the limit, which is the marker of the next inventory, or null if the
+     * inventory is complete
+     */
+    String page(NavigableMap<String, MetadataIndex.Entry> entries, EntryWriter writer) throws IOException {
+        NavigableMap<String, MetadataIndex.Entry> tail = marker == null ? entries : entries.tailMap(marker, true);
+        long count = 0;
+        for (Map.Entry<String, MetadataIndex.Entry> entry : tail.entrySet()) {
+            long creationDate = entry.getValue().getCreationDate();
+            if (creationDate < startDate || creationDate >= endDate) {
+                continue;
+            }
+            if (count == limit) {
+                return entry.getKey();
+            }
+            writer.write(entry.getValue());
+            count++;
+        }
+        return null;
+    }
+
+    interface EntryWriter {
+        void write(MetadataIndex.Entry entry) throws IOException;
+    }
+
+    private static String getString(JsonObject parameters, String name) {
+        if (parameters == null) {
+            return null;
+        }
+        JsonElement value = parameters.get(name);
+        if (value == null || value.isJsonNull()) {
+            return null;
+        }
+        if (!value.isJsonPrimitive()) {
+            throw new IllegalArgumentException("Invalid " + name);
+        }
+        return value.getAsString();
+    }
+
+    private static long parseDate(JsonObject parameters, String name, long defaultValue) {
+        String value = getString(parameters, name);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Instant.parse(value).toEpochMilli();
+        } catch (DateTimeParseException e) {
+            throw new IllegalArgumentException(String.format("Invalid %s %s", name, value));
+        }
+    }
+}
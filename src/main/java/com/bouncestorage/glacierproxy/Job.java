@@ -1,39 +1,72 @@
 package com.bouncestorage.glacierproxy;
 
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.NavigableMap;
 import java.util.UUID;
 
+import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
 
 import org.jclouds.blobstore.domain.Blob;
 import org.jclouds.blobstore.domain.BlobMetadata;
+import org.jclouds.blobstore.options.GetOptions;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Multimap;
 import com.google.common.io.ByteStreams;
-import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonNull;
 import com.google.gson.JsonObject;
 import com.google.gson.JsonParser;
+import com.google.gson.JsonPrimitive;
+import com.google.gson.stream.JsonWriter;
 import com.sun.net.httpserver.HttpExchange;
 
 public class Job extends BaseRequestHandler {
     private static final List<String> JOB_TYPES = ImmutableList.of("archive-retrieval", "inventory-retrieval");
     private static final Logger logger = LoggerFactory.getLogger(Job.class);
+    private static final String ARCHIVE_SIZE = "ArchiveSizeInBytes";
+    private static final String ARCHIVE_TREE_HASH = "ArchiveSHA256TreeHash";
+    private static final String COMPLETED = "Completed";
+    private static final String INVENTORY_SIZE = "InventorySizeInBytes";
+    private static final String INVENTORY_PARAMETERS = "InventoryRetrievalParameters";
+    private static final String RETRIEVAL_BYTE_RANGE = "RetrievalByteRange";
+    private static final String SHA256_TREE_HASH = "SHA256TreeHash";
+    private static final String STATUS_CODE = "StatusCode";
+    private static final String STATUS_MESSAGE = "StatusMessage";
+    private static final String TIER = "Tier";
+    // Milliseconds since the epoch in the job record, formatted in responses
+    static final String CREATION_DATE = "CreationDate";
+    static final String COMPLETION_DATE = "CompletionDate";
+    // Kept in the job record for the proxy's own use
+    private static final String ACCOUNT_ID = "AccountId";
+    static final String COMPLETION_TIME = "CompletionTime";
+    static final String STATUS_IN_PROGRESS = "InProgress";
+    static final String STATUS_SUCCEEDED = "Succeeded";
+    static final String STATUS_FAILED = "Failed";
 
     public Job(GlacierProxy proxy) {
-        super(proxy);
+        super(proxy, "jobs");
     }
 
     @Override
     public void handlePost(HttpExchange request, Map<String, String> parameters) throws IOException {
-        JsonParser jsonParser = new JsonParser();
-        JsonObject object = jsonParser.parse(new InputStreamReader(request.getRequestBody())).getAsJsonObject();
+        JsonObject object = JsonParser.parseReader(new InputStreamReader(request.getRequestBody(),
+                StandardCharsets.UTF_8)).getAsJsonObject();
         String jobType = object.get("Type").getAsString();
         if (jobType == null || !JOB_TYPES.contains(jobType)) {
             logger.warn("Invalid job type {}", object.get("Type"));
@@ -45,6 +78,7 @@ public class Job extends BaseRequestHandler {
         if (!proxy.getBlobStore().containerExists(vault)) {
             logger.warn("POST job: vault {} does not exist", vault);
             Util.sendNotFound("vault", vault, request);
+            return;
         }
 
         if (jobType.equals("archive-retrieval")) {
@@ -58,14 +92,71 @@ public class Job extends BaseRequestHandler {
                 Util.sendNotFound("archive", blobName, request);
                 return;
             }
+            // Record the tree hash computed at upload time so that describing and listing the job never has to
+            // look it up again
+            MetadataIndex.Entry entry = proxy.getMetadataIndex().get(vault, blobName);
+            long size;
+            if (entry != null) {
+                object.addProperty(ARCHIVE_TREE_HASH, entry.getTreeHash());
+                size = entry.getSize();
+            } else {
+                // An archive the proxy did not upload has no tree hash, but its range is retrieved all the same
+                BlobMetadata metadata = proxy.getBlobStore().blobMetadata(vault, blobName);
+                if (metadata == null) {
+                    Util.sendNotFound("archive", blobName, request);
+                    return;
+                }
+                object.add(ARCHIVE_TREE_HASH, null);
+                size = metadata.getSize();
+            }
+            object.addProperty(ARCHIVE_SIZE, size);
+            if (!setRetrievalRange(request, vault, blobName, size, object)) {
+                return;
+            }
         }
 
+        if (jobType.equals("inventory-retrieval")) {
+            JsonElement inventoryParams = object.get(INVENTORY_PARAMETERS);
+            try {
+                if (inventoryParams != null && !inventoryParams.isJsonNull() && !inventoryParams.isJsonObject()) {
+                    throw new IllegalArgumentException("Invalid " + INVENTORY_PARAMETERS);
+                }
+                new InventoryOptions(object.getAsJsonObject(INVENTORY_PARAMETERS));
+            } catch (IllegalArgumentException e) {
+                Util.sendInvalidParameter(e.getMessage(), request);
+                return;
+            }
+        }
+
+        // Inventories are always retrieved at the standard tier
+        String tier = JobScheduler.TIER_STANDARD;
+        if (jobType.equals("archive-retrieval") && object.has(TIER) && !object.get(TIER).isJsonNull()) {
+            tier = object.get(TIER).getAsString();
+        }
+        Long delay = proxy.getJobScheduler().getDelay(tier);
+        if (delay == null) {
+            Util.sendInvalidParameter(String.format("Invalid tier %s", tier), request);
+            return;
+        }
+        object.addProperty(TIER, tier);
+        object.addProperty(ACCOUNT_ID, parameters.get("account"));
+        object.addProperty(COMPLETION_TIME, System.currentTimeMillis() + delay);
+        if (delay == 0 && jobType.equals("archive-retrieval")) {
+            setStatus(object, STATUS_SUCCEEDED, STATUS_SUCCEEDED);
+        } else {
+            setStatus(object, STATUS_IN_PROGRESS, STATUS_IN_PROGRESS);
+        }
         UUID jobId = proxy.addJob(parameters.get("vault"), object);
+        if (delay == 0 && jobType.equals("inventory-retrieval")) {
+            startInventory(vault, jobId);
+        } else if (delay > 0) {
+            proxy.getJobScheduler().schedule(vault, jobId, object.get(COMPLETION_TIME).getAsLong());
+        }
         request.getResponseHeaders().put("x-amz-job-id", ImmutableList.of(jobId.toString()));
         request.getResponseHeaders().put("Location", ImmutableList.of(String.format("/%s/vaults/%s/jobs/%s",
                 parameters.get("account"), parameters.get("vault"), jobId.toString())));
         logger.debug("Created {} job: {}", jobType, jobId);
-        request.sendResponseHeaders(Response.Status.ACCEPTED.getStatusCode(), -1);
+        Util.sendStatus(request, Response.Status.ACCEPTED);
     }
 
     @Override
@@ -82,8 +173,13 @@ public class Job extends BaseRequestHandler {
                 return;
             }
             if (path.endsWith("output")) {
+                if (!jobRequest.get(STATUS_CODE).getAsString().equals(STATUS_SUCCEEDED)) {
+                    Util.sendInvalidParameter(String.format("The job is not currently available for download: %s",
+                            jobId), request);
+                    return;
+                }
                 if (jobRequest.get("Type").getAsString().equals("archive-retrieval")) {
-                    handleRetrieveArchiveJob(request, vault, jobRequest);
+                    handleRetrieveArchiveJob(request, parameters, jobRequest);
                     return;
                 } else {
                     handleRetrieveInventoryJob(request, parameters, jobRequest);
@@ -115,14 +211,15 @@ public class Job extends BaseRequestHandler {
         logger.debug("Describe job {}", parameters.get("job"));
         String vault = parameters.get("vault");
         response.add("Action", jobRequest.get("Type"));
-        response.addProperty("Completed", true);
-        response.add("CompletionDate", jobRequest.get("CreationDate"));
-        response.add("CreationDate", jobRequest.get("CompletionDate"));
+        response.add(COMPLETED, jobRequest.get(COMPLETED));
+        response.add(COMPLETION_DATE, getTimeStamp(jobRequest.get(COMPLETION_DATE)));
+        response.add(CREATION_DATE, getTimeStamp(jobRequest.get(CREATION_DATE)));
         response.add("JobDescription", jobRequest.get("JobDescription"));
         response.addProperty("JobId", parameters.get("job"));
         response.add("SNSTopic", null);
-        response.addProperty("StatusCode", "Succeeded");
-        response.addProperty("StatusMessage", "Succeeded");
+        response.add(STATUS_CODE, jobRequest.get(STATUS_CODE));
+        response.add(STATUS_MESSAGE, jobRequest.get(STATUS_MESSAGE));
+        response.add(TIER, jobRequest.get(TIER));
         response.addProperty("VaultARN", Util.getARN(parameters.get("account"), vault));
         logger.debug("GET job: {}", response.toString());
         Util.sendJSON(httpExchange, Response.Status.OK, response);
@@ -130,166 +227,400 @@ public class Job extends BaseRequestHandler {
 
     private JsonObject handleDescribeRetrieveArchive(Map<String, String> parameters, JsonObject jobRequest) {
         JsonObject response = new JsonObject();
-        String blobName = jobRequest.get("ArchiveId").getAsString();
-        BlobMetadata metadata = proxy.getBlobStore().blobMetadata(parameters.get("vault"), blobName);
         response.add("ArchiveId", jobRequest.get("ArchiveId"));
-        response.addProperty("ArchiveSize", metadata.getSize());
-        response.addProperty("ArchiveSHA256TreeHash", "deadbeef");
+        response.add("ArchiveSHA256TreeHash", jobRequest.get(ARCHIVE_TREE_HASH));
         response.add("InventorySizeInBytes", null);
-        response.addProperty("RetrievalByteRange", String.format("0-%d", metadata.getSize() - 1));
-        response.add("SHA256TreeHash", null);
+        addRetrieval(response, "ArchiveSize", jobRequest);
         return response;
     }
 
+    /**
+     * Adds the archive size and the range and tree hash of an archive retrieval job, as recorded when it was
+     * initiated, so that describing and listing jobs never calls the backend.
+     */
+    private static void addRetrieval(JsonObject response, String sizeName, JsonObject job) {
+        response.add(sizeName, job.get(ARCHIVE_SIZE));
+        response.add(RETRIEVAL_BYTE_RANGE, job.get(RETRIEVAL_BYTE_RANGE));
+        response.add(SHA256_TREE_HASH, job.get(SHA256_TREE_HASH));
+    }
+
+    /**
+     * Validates the RetrievalByteRange of an archive retrieval job, which defaults to the whole archive, and records
+     * it in the job together with its tree hash. Glacier only reports the tree hash of tree-hash aligned ranges.
+     *
+     * @return false if the range is invalid and an error was sent
+     */
+    private boolean setRetrievalRange(HttpExchange request, String vault, String blobName, long size, JsonObject job)
+            throws IOException {
+        JsonElement requested = job.get(RETRIEVAL_BYTE_RANGE);
+        ByteRange range = ByteRange.of(size);
+        if (requested != null && !requested.isJsonNull()) {
+            try {
+                range = ByteRange.parseRetrievalRange(requested.getAsString(), size);
+            } catch (IllegalArgumentException e) {
+                logger.warn("POST Archive retrieval job: {}", e.getMessage());
+                Util.sendInvalidParameter(e.getMessage(), request);
+                return false;
+            }
+        }
+        job.addProperty(RETRIEVAL_BYTE_RANGE, range.length() == 0 ? null : range.toString());
+        if (range.length() == size) {
+            job.add(SHA256_TREE_HASH, job.get(ARCHIVE_TREE_HASH));
+            return true;
+        }
+        ArchiveTreeHash treeHash = proxy.getMetadataIndex().getTreeHash(vault, blobName);
+        byte[] rangeHash = treeHash == null ? null : treeHash.getRangeHash(range.start, range.end, size);
+        job.addProperty(SHA256_TREE_HASH, rangeHash == null ? null : TreeHash.toHex(rangeHash));
+        return true;
+    }
+
     private JsonObject handleDescribeRetrieveInventory(Map<String, String> parameters, JsonObject jobRequest) {
         JsonObject response = new JsonObject();
         response.add("ArchiveId", null);
         response.add("ArchiveSize", null);
         response.add("ArchiveSHA256TreeHash", null);
-        response.addProperty("InventorySizeInBytes", -1);
+        response.add(INVENTORY_SIZE, jobRequest.get(INVENTORY_SIZE));
         response.add("RetrievalByteRange", null);
         response.add("SHA256TreeHash", null);
-        JsonObject inventoryParams = jobRequest.getAsJsonObject("InventoryRetrievalParameters");
+        JsonObject inventoryParams = getInventoryParameters(jobRequest);
         if (inventoryParams != null) {
-            inventoryParams.addProperty("Format", "JSON");
-            response.add("InventoryRetrievalParameters", inventoryParams);
+            response.add(INVENTORY_PARAMETERS, inventoryParams);
         }
         return response;
     }
 
+    /** @return a copy of the inventory parameters of the job with their format, or null if it has none */
+    private static JsonObject getInventoryParameters(JsonObject job) {
+        JsonObject stored = job.getAsJsonObject(INVENTORY_PARAMETERS);
+        if (stored == null) {
+            return null;
+        }
+        // The stored job is shared with concurrent requests, so it must not change
+        JsonObject parameters = new JsonObject();
+        for (Map.Entry<String, JsonElement> parameter : stored.entrySet()) {
+            parameters.add(parameter.getKey(), parameter.getValue());
+        }
+        parameters.addProperty("Format", "JSON");
+        return parameters;
+    }
+
     private void handleListJobs(HttpExchange httpExchange, Map<String, String> parameters) throws IOException {
         Multimap<String, String> queryMap = Util.parseQuery(httpExchange.getRequestURI().getQuery());
         ListJobsOptions listJobsOptions;
+        UUID marker = null;
         try {
             listJobsOptions = new ListJobsOptions(queryMap);
+            if (listJobsOptions.getMarker() != null) {
+                marker = UUID.fromString(listJobsOptions.getMarker());
+            }
         } catch (IllegalArgumentException e) {
             logger.warn("Invalid list jobs argument {}", e.getMessage());
             Util.sendBadRequest(String.format("Invalid list jobs parameter: %s", e.getMessage()), httpExchange);
             return;
         }
         String vault = parameters.get("vault");
-        JsonObject response = new JsonObject();
-        // TODO: handle markers and > 1000 jobs
-        response.add("Marker", null);
-        JsonArray jsonJobs = new JsonArray();
-        if (listJobsOptions.getCompleted() != null && !listJobsOptions.getCompleted()) {
-            // All jobs are treated as immediately completed
-            logger.debug("List jobs for {}: []", vault);
-            response.add("JobList", jsonJobs);
-            Util.sendJSON(httpExchange, Response.Status.OK, response);
-            return;
+        NavigableMap<UUID, JsonObject> jobs = proxy.getVaultJobs(vault);
+        if (jobs == null) {
+            jobs = Collections.emptyNavigableMap();
         }
+        NavigableMap<UUID, JsonObject> vaultJobs = jobs;
+        UUID first = marker;
+        logger.debug("List jobs for {}", vault);
+        Util.streamJSON(httpExchange, Response.Status.OK, writer -> {
+            writer.beginObject();
+            writer.name("JobList").beginArray();
+            UUID nextMarker = listJobsOptions.page(vaultJobs, first, listJobsOptions::matches, (uuid, json) ->
+                    Util.writeJSON(writer, toListedJob(parameters.get("account"), vault, uuid, json)));
+            writer.endArray();
+            if (nextMarker == null) {
+                writer.name("Marker").nullValue();
+            } else {
+                writer.name("Marker").value(nextMarker.toString());
+            }
+            writer.endObject();
+        });
+    }
 
-        if (listJobsOptions.getStatusCode() != null && !listJobsOptions.getStatusCode().equals("Succeeded")) {
-            // All jobs are treated as immediately completed
-            logger.debug("List jobs for {}: []", vault);
-            response.add("JobList", jsonJobs);
-            Util.sendJSON(httpExchange, Response.Status.OK, response);
-            return;
+    private JsonObject toListedJob(String account, String vault, UUID uuid, JsonObject json) {
+        JsonObject jobObject = new JsonObject();
+        jobObject.add(COMPLETED, json.get(COMPLETED));
+        jobObject.add(CREATION_DATE, getTimeStamp(json.get(CREATION_DATE)));
+        jobObject.add(COMPLETION_DATE, getTimeStamp(json.get(COMPLETION_DATE)));
+        jobObject.add(STATUS_CODE, json.get(STATUS_CODE));
+        jobObject.add(STATUS_MESSAGE, json.get(STATUS_MESSAGE));
+        jobObject.add(TIER, json.get(TIER));
+        jobObject.addProperty("VaultARN", Util.getARN(account, vault));
+        jobObject.addProperty("JobId", uuid.toString());
+        jobObject.add("JobDescription", json.get("JobDescription"));
+        jobObject.add("SNSTopic", json.get("SNSTopic"));
+        if (json.get("Type").getAsString().equals("archive-retrieval")) {
+            jobObject.addProperty("Action", "ArchiveRetrieval");
+            jobObject.add("ArchiveId", json.get("ArchiveId"));
+            jobObject.add("ArchiveSHA256TreeHash", json.get(ARCHIVE_TREE_HASH));
+            addRetrieval(jobObject, ARCHIVE_SIZE, json);
+        } else {
+            jobObject.add("SHA256TreeHash", null);
+            jobObject.addProperty("Action", "InventoryRetrieval");
+            jobObject.add("ArchiveSHA256TreeHash", null);
+            jobObject.add(INVENTORY_SIZE, json.get(INVENTORY_SIZE));
+            jobObject.add("RetrievalByteRange", null);
+            JsonObject inventoryParams = getInventoryParameters(json);
+            if (inventoryParams != null) {
+                jobObject.add(INVENTORY_PARAMETERS, inventoryParams);
+            }
         }
+        return jobObject;
+    }
 
-        Map<UUID, JsonObject> jobs = proxy.getVaultJobs(vault);
-        jobs.forEach((uuid, json) -> {
-            JsonObject jobObject = new JsonObject();
-            jobObject.addProperty("Completed", true);
-            jobObject.add("CreationDate", json.get("CreationDate"));
-            jobObject.add("CompletionDate", json.get("CompletionDate"));
-            jobObject.addProperty("StatusCode", "Succeeded");
-            jobObject.addProperty("StatusMessage", "Succeeded");
-            jobObject.addProperty("VaultARN", Util.getARN(parameters.get("account"), vault));
-            jobObject.addProperty("JobId", uuid.toString());
-            jobObject.add("JobDescription", json.get("JobDescription"));
-            jobObject.add("SNSTopic", json.get("SNSTopic"));
-            if (json.get("Type").equals("archive-retrieval")) {
-                JsonObject archiveMetadata = Util.getMetadata(proxy.getBlobStore(), vault,
-                        json.get("ArchiveId").getAsString());
-                jobObject.addProperty("Action", "ArchiveRetrieval");
-                jobObject.add("ArchiveId", json.get("ArchiveId"));
-                BlobMetadata meta = proxy.getBlobStore().blobMetadata(vault, json.get("ArchiveId").getAsString());
-                jobObject.addProperty("ArchiveSizeInBytes", meta.getSize());
-                jobObject.add("ArchiveSHA256TreeHash", archiveMetadata.get(Archive.METADATA_TREE_HASH));
-                jobObject.add("SHA256TreeHash", archiveMetadata.get(Archive.METADATA_TREE_HASH));
-                jobObject.addProperty("RetrievalByteRange", String.format("0-%d", meta.getSize()));
-            } else {
-                jobObject.add("SHA256TreeHash", null);
-                jobObject.addProperty("Action", "InventoryRetriveal");
-                jobObject.add("ArchiveSHA256TreeHash", null);
-                jobObject.addProperty("InventorySizeInBytes", -1);
-                jobObject.add("RetrievalByteRange", null);
-                JsonObject inventoryParams = json.getAsJsonObject("InventoryRetrievalParameters");
-                if (inventoryParams != null) {
-                    inventoryParams.addProperty("Format", "JSON");
-                    jobObject.add("InventoryRetrievalParameters", inventoryParams);
+    /** Builds the inventory of an inventory retrieval job in the background, and completes the job once it is built. */
+    void startInventory(String vault, UUID jobId) {
+        JsonObject json = proxy.getJob(vault, jobId);
+        JsonElement accountId = json.get(ACCOUNT_ID);
+        String account = accountId == null ? "-" : accountId.getAsString();
+        proxy.getJobExecutor().execute(() -> {
+            try {
+                // The parameters were validated when the job was created
+                InventoryOptions options = new InventoryOptions(json.getAsJsonObject(INVENTORY_PARAMETERS));
+                String[] marker = new String[1];
+                long size = buildInventory(account, vault, jobId, options, marker);
+                proxy.updateJob(vault, jobId, job -> {
+                    job.addProperty(INVENTORY_SIZE, size);
+                    setMarker(job, marker[0]);
+                    setStatus(job, STATUS_SUCCEEDED, STATUS_SUCCEEDED);
+                });
+                logger.debug("Job {}: built inventory of {} ({} bytes)", jobId, vault, size);
+            } catch (IOException | RuntimeException e) {
+                logger.warn("Job {}: failed to build inventory of {}", jobId, vault, e);
+                try {
+                    proxy.updateJob(vault, jobId, job -> setStatus(job, STATUS_FAILED,
+                            String.format("Failed to build the inventory: %s", e.getMessage())));
+                } catch (IOException updateError) {
+                    logger.error("Job {}: failed to record the failure", jobId, updateError);
                 }
             }
-            jsonJobs.add(jobObject);
         });
-        response.add("JobList", jsonJobs);
-        logger.debug("List jobs for {}: {}", vault, response.toString());
-        Util.sendJSON(httpExchange, Response.Status.OK, response);
+    }
+
+    /** Replaces the marker of the inventory parameters with the marker of the next inventory, as Glacier reports it. */
+    private static void setMarker(JsonObject job, String marker) {
+        JsonObject stored = job.getAsJsonObject(INVENTORY_PARAMETERS);
+        JsonObject parameters = new JsonObject();
+        if (stored != null) {
+            for (Map.Entry<String, JsonElement> parameter : stored.entrySet()) {
+                parameters.add(parameter.getKey(), parameter.getValue());
+            }
+        }
+        parameters.addProperty("Marker", marker);
+        job.add(INVENTORY_PARAMETERS, parameters);
+    }
+
+    /**
+     * Writes the inventory of the vault to a temporary file from a single pass over the vault's metadata index, and
+     * stores it as a blob in the vault so that it can be served back when the job output is requested.
+     *
+     * @param marker receives the marker of the next inventory, or null if this one is complete
+     * @return the size of the inventory in bytes
+     */
+    private long buildInventory(String account, String vault, UUID jobId, InventoryOptions options, String[] marker)
+            throws IOException {
+        File file = File.createTempFile("glacier-proxy-inventory", ".json");
+        try {
+            try (JsonWriter writer = new JsonWriter(new OutputStreamWriter(
+                    new BufferedOutputStream(new FileOutputStream(file)), StandardCharsets.UTF_8))) {
+                writer.beginObject();
+                writer.name("VaultARN").value(Util.getARN(account, vault));
+                writer.name("InventoryDate").value(Util.getTimeStamp(null));
+                writer.name("ArchiveList").beginArray();
+                marker[0] = options.page(proxy.getMetadataIndex().entries(vault), entry -> {
+                    writer.beginObject();
+                    writer.name("ArchiveId").value(entry.getArchiveId());
+                    if (entry.getDescription() != null) {
+                        writer.name("ArchiveDescription").value(entry.getDescription());
+                    }
+                    writer.name("CreationDate").value(Util.getTimeStamp(entry.getCreationDate()));
+                    writer.name("Size").value(entry.getSize());
+                    writer.name("SHA256TreeHash").value(entry.getTreeHash());
+                    writer.endObject();
+                });
+                writer.endArray();
+                writer.endObject();
+            }
+            Blob blob = proxy.getBlobStore().blobBuilder(Util.getInventoryBlobName(jobId.toString()))
+                    .payload(file)
+                    .contentType(MediaType.APPLICATION_JSON)
+                    .build();
+            if (proxy.getBlobStore().putBlob(vault, blob) == null) {
+                throw new IOException("Failed to store the inventory");
+            }
+            return file.length();
+        } finally {
+            if (!file.delete()) {
+                logger.warn("Failed to remove {}", file);
+            }
+        }
     }
 
     private void handleRetrieveInventoryJob(HttpExchange httpExchange, Map<String, String> parameters, JsonObject job)
             throws IOException {
         String vault = parameters.get("vault");
-        JsonObject response = new JsonObject();
-        response.addProperty("VaultARN", Util.getARN(parameters.get("account"), vault));
-        response.addProperty("InventoryDate", Util.getTimeStamp(null));
-        JsonArray archives = new JsonArray();
+        String jobId = parameters.get("job");
+        logger.debug("Job {}: Retrieve archive list for {}", jobId, vault);
+        // Recorded when the inventory was built, so that only the requested range is read from the backend
+        long size = job.get(INVENTORY_SIZE).getAsLong();
+        ByteRange range = getOutputRange(httpExchange, size);
+        if (range == null) {
+            return;
+        }
+        GetOptions options = range.length() == size ? GetOptions.NONE :
+                GetOptions.Builder.range(range.start, range.end);
+        Blob blob = proxy.getBlobStore().getBlob(vault, Util.getInventoryBlobName(jobId), options);
+        if (blob == null) {
+            Util.sendNotFound("job output", jobId, httpExchange);
+            return;
+        }
+        httpExchange.getResponseHeaders().put("Content-type", ImmutableList.of(MediaType.APPLICATION_JSON));
+        sendOutputHeaders(httpExchange, range, size);
+        try (InputStream from = blob.getPayload().openStream()) {
+            ByteStreams.copy(from, output(httpExchange, parameters));
+        }
+    }
 
-        // TODO: support pagination
-        // TODO: we should do this asynchronously and create a blob with the results that we can serve back
-        proxy.getBlobStore().list(vault).forEach(sm -> {
-            if (Util.isMetadataBlob(sm.getName())) {
-                return;
-            }
-            JsonObject archive = new JsonObject();
-            archive.addProperty("ArchiveId", sm.getName());
-            archive.addProperty("CreationDate", Util.getTimeStamp(sm.getLastModified()));
-            archive.addProperty("Size", sm.getSize());
-            JsonObject metadata = Util.getMetadata(proxy.getBlobStore(), vault, sm.getName());
-            if (metadata.has(Archive.METADATA_DESCRIPTION)) {
-                archive.add("ArchiveDescription", metadata.get(Archive.METADATA_DESCRIPTION));
-            }
-            archive.add("SHA256TreeHash", metadata.get(Archive.METADATA_TREE_HASH));
-            archives.add(archive);
-        });
-        response.add("ArchiveList", archives);
+    /** Format a date of a job record, stored in epoch milliseconds, or null for a job that has not completed. */
+    private static JsonElement getTimeStamp(JsonElement date) {
+        if (date == null || date.isJsonNull()) {
+            return JsonNull.INSTANCE;
+        }
+        return new JsonPrimitive(Util.getTimeStamp(date.getAsLong()));
+    }
 
-        logger.debug("Job {}: Retrieve archive list for {}: {}", parameters.get("job"), vault, response.toString());
-        Util.sendJSON(httpExchange, Response.Status.OK, response);
+    static void setStatus(JsonObject job, String statusCode, String message) {
+        boolean completed = !statusCode.equals(STATUS_IN_PROGRESS);
+        job.addProperty(STATUS_CODE, statusCode);
+        job.addProperty(STATUS_MESSAGE, message);
+        job.addProperty(COMPLETED, completed);
+        if (completed) {
+            job.addProperty(COMPLETION_DATE, System.currentTimeMillis());
+        }
     }
 
-    private void handleRetrieveArchiveJob(HttpExchange httpExchange, String vault, JsonObject job) throws IOException{
+    private void handleRetrieveArchiveJob(HttpExchange httpExchange, Map<String, String> parameters, JsonObject job)
+            throws IOException {
+        String vault = parameters.get("vault");
         String blobName = job.get("ArchiveId").getAsString();
-        Blob blob = proxy.getBlobStore().getBlob(vault, blobName);
+        long size = job.get(ARCHIVE_SIZE).getAsLong();
+        JsonElement retrievalRange = job.get(RETRIEVAL_BYTE_RANGE);
+        ByteRange retrieval = retrievalRange.isJsonNull() ? ByteRange.of(size) :
+                ByteRange.parseRetrievalRange(retrievalRange.getAsString(), size);
+        ByteRange output = getOutputRange(httpExchange, retrieval.length());
+        if (output == null) {
+            return;
+        }
+        // The part of the archive to send
+        ByteRange range = output.shift(retrieval.start);
+        String treeHash = getOutputTreeHash(vault, blobName, job, range, size, output.length() == retrieval.length());
+        logger.debug("Job {}: Retrieve bytes {} of archive {}/{}", parameters.get("job"), range, vault, blobName);
+
+        FilesystemFastPath fastPath = proxy.getFilesystemFastPath();
+        if (fastPath != null) {
+            try (FileChannel channel = fastPath.open(vault, blobName)) {
+                if (channel == null) {
+                    Util.sendNotFound("archive", blobName, httpExchange);
+                    return;
+                }
+                sendArchiveHeaders(httpExchange, treeHash, output, retrieval.length());
+                FilesystemFastPath.transferTo(channel, range.start, range.length(), output(httpExchange, parameters));
+            }
+            return;
+        }
+        GetOptions options = range.length() == size ? GetOptions.NONE :
+                GetOptions.Builder.range(range.start, range.end);
+        Blob blob = proxy.getBlobStore().getBlob(vault, blobName, options);
         if (blob == null) {
             Util.sendNotFound("archive", blobName, httpExchange);
             return;
         }
-        JsonObject metadata = Util.getMetadata(proxy.getBlobStore(), vault, blobName);
-        logger.debug("Job {}: Retrieve archive {}/{}", job.get("JobId"), vault, blobName);
-        long size = blob.getMetadata().getSize();
-        httpExchange.getResponseHeaders().put("Content-Length", ImmutableList.of(Long.toString(size)));
-        httpExchange.getResponseHeaders().put("x-amz-sha256-tree-hash",
-                ImmutableList.of(metadata.get(Archive.METADATA_TREE_HASH).getAsString()));
-        httpExchange.sendResponseHeaders(Response.Status.OK.getStatusCode(), size);
+        sendArchiveHeaders(httpExchange, treeHash, output, retrieval.length());
         try (InputStream from = blob.getPayload().openStream()){
-            ByteStreams.copy(from, httpExchange.getResponseBody());
+            ByteStreams.copy(from, output(httpExchange, parameters));
+        }
+    }
+
+    /** The response body of a job output, shaped to the retrieval rate of the account. */
+    private OutputStream output(HttpExchange httpExchange, Map<String, String> parameters) {
+        return proxy.getRateLimits().throttleRetrieval(parameters.get("account"), httpExchange.getResponseBody());
+    }
+
+    /**
+     * @return the tree hash of the given range of the archive, or null if the range is not tree-hash aligned
+     */
+    private String getOutputTreeHash(String vault, String blobName, JsonObject job, ByteRange range, long size,
+            boolean wholeOutput) throws IOException {
+        if (wholeOutput) {
+            // Computed when the job was initiated
+            JsonElement treeHash = job.get(SHA256_TREE_HASH);
+            return treeHash.isJsonNull() ? null : treeHash.getAsString();
+        }
+        ArchiveTreeHash treeHash = proxy.getMetadataIndex().getTreeHash(vault, blobName);
+        byte[] rangeHash = treeHash == null ? null : treeHash.getRangeHash(range.start, range.end, size);
+        return rangeHash == null ? null : TreeHash.toHex(rangeHash);
+    }
+
+    private static void sendArchiveHeaders(HttpExchange httpExchange, String treeHash, ByteRange range, long length)
+            throws IOException {
+        if (treeHash != null) {
+            httpExchange.getResponseHeaders().put("x-amz-sha256-tree-hash", ImmutableList.of(treeHash));
         }
+        sendOutputHeaders(httpExchange, range, length);
     }
 
-    private static class ListJobsOptions {
+    /**
+     * Applies the Range header of a job output request to an output of {@code length} bytes.
+     *
+     * @return the range of the output to send, or null if the Range header is invalid and an error was sent
+     */
+    private static ByteRange getOutputRange(HttpExchange httpExchange, long length) throws IOException {
+        String header = httpExchange.getRequestHeaders().getFirst("Range");
+        if (header == null) {
+            return ByteRange.of(length);
+        }
+        ByteRange range;
+        try {
+            range = ByteRange.parseHeader(header, length);
+        } catch (IllegalArgumentException e) {
+            logger.warn("GET job output: {}", e.getMessage());
+            Util.sendInvalidParameter(e.getMessage(), httpExchange);
+            return null;
+        }
+        if (range == null) {
+            httpExchange.getResponseHeaders().put("Content-Range", ImmutableList.of("bytes */" + length));
+            Util.sendStatus(httpExchange, Response.Status.REQUESTED_RANGE_NOT_SATISFIABLE);
+        }
+        return range;
+    }
+
+    /** Sends the status line and headers for the given range of a job output of {@code length} bytes. */
+    private static void sendOutputHeaders(HttpExchange httpExchange, ByteRange range, long length)
+            throws IOException {
+        int status = Response.Status.OK.getStatusCode();
+        httpExchange.getResponseHeaders().put("Accept-Ranges", ImmutableList.of("bytes"));
+        if (httpExchange.getRequestHeaders().containsKey("Range")) {
+            httpExchange.getResponseHeaders().put("Content-Range", ImmutableList.of(
+                    String.format("bytes %s/%d", range, length)));
+            status = Response.Status.PARTIAL_CONTENT.getStatusCode();
+        }
+        // HttpServer sends a chunked body for a length of 0
+        httpExchange.sendResponseHeaders(status, range.length() == 0 ? -1 : range.length());
+    }
+
+    private static class ListJobsOptions extends ListOptions {
         private static final List<String> COMPLETED_OPTIONS = ImmutableList.of("true", "false");
-        private static final int MAX_LIMIT = 1000;
         private static final List<String> STATUS_CODES = ImmutableList.of("Succeeded", "InProgress", "Failed");
 
         private Boolean completed;
-        private Integer limit;
-        private String marker;
         private String statusCode;
 
         public ListJobsOptions(Multimap<String, String> queryParams) {
+            super(queryParams);
             if (queryParams.containsKey("completed")) {
                 String completedString = queryParams.get("completed").iterator().next();
                 if (!COMPLETED_OPTIONS.contains(completedString)) {
@@ -302,39 +633,19 @@ public class Job extends BaseRequestHandler {
                 }
             }
 
-            if (queryParams.containsKey("limit")) {
-                limit = Integer.parseInt(queryParams.get("limit").iterator().next());
-                if (limit > MAX_LIMIT || limit < 1) {
-                    throw new IllegalArgumentException("Invalid limit value");
-                }
-            }
-
             if (queryParams.containsKey("statuscode")) {
                 statusCode = queryParams.get("statuscode").iterator().next();
                 if (!STATUS_CODES.contains(statusCode)) {
                     throw new IllegalArgumentException("Invalid statuscode value");
                 }
             }
-
-            if (queryParams.containsKey("marker")) {
-                marker = queryParams.get("marker").iterator().next();
-            }
         }
 
-        Boolean getCompleted() {
-            return completed;
-        }
-
-        Integer getLimit() {
-            return limit;
-        }
-
-        String getMarker() {
-            return marker;
-        }
-
-        String getStatusCode() {
-            return statusCode;
+        boolean matches(JsonObject job) {
+            if (completed != null && completed != job.get(COMPLETED).getAsBoolean()) {
+                return false;
+            }
+            return statusCode == null || statusCode.equals(job.get(STATUS_CODE).getAsString());
         }
     }
 }
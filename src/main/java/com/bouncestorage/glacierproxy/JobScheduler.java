@@ -0,0 +1,156 @@
+package com.bouncestorage.glacierproxy;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.LongSupplier;
+
+import org.jclouds.blobstore.ContainerNotFoundException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+
+/**
+ * Completes jobs once the retrieval delay of their tier has passed, as Glacier does hours after a job is initiated.
+ * Pending jobs wait in the delay queue of a single scheduler thread, so millions of them cost one small task each
+ * rather than a thread each. The same thread removes completed jobs and their inventories once their time to live has
+ * passed, as Glacier does after a day.
+ */
+final class JobScheduler {
+    static final String TIER_EXPEDITED = "Expedited";
+    static final String TIER_STANDARD = "Standard";
+    static final String TIER_BULK = "Bulk";
+
+    private static final Logger logger = LoggerFactory.getLogger(JobScheduler.class);
+    // Completed jobs are checked at least this often, and at least once per time to live
+    private static final long MAX_EXPIRY_PERIOD = TimeUnit.MINUTES.toMillis(1);
+
+    private final GlacierProxy proxy;
+    private final Map<String, Long> delays;
+    private final long jobTtl;
+    private final LongSupplier clock;
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(
+            RequestExecutor.namedThreadFactory("glacier-proxy-scheduler"));
+    private final AtomicInteger pending = new AtomicInteger();
+
+    /**
+     * @param jobTtl milliseconds after its completion before a job is removed, or 0 to keep jobs forever
+     * @param clock current time in milliseconds
+     */
+    JobScheduler(GlacierProxy proxy, long expeditedDelay, long standardDelay, long bulkDelay, long jobTtl,
+                 LongSupplier clock) {
+        this.proxy = proxy;
+        this.delays = ImmutableMap.of(TIER_EXPEDITED, expeditedDelay, TIER_STANDARD, standardDelay, TIER_BULK,
+                bulkDelay);
+        this.jobTtl = jobTtl;
+        this.clock = clock;
+        if (jobTtl > 0) {
+            long period = Math.min(jobTtl, MAX_EXPIRY_PERIOD);
+            executor.scheduleWithFixedDelay(this::expire, period, period, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    JobScheduler(GlacierProxy proxy, long expeditedDelay, long standardDelay, long bulkDelay, long jobTtl) {
+        this(proxy, expeditedDelay, standardDelay, bulkDelay, jobTtl, System::currentTimeMillis);
+    }
+
+    /**
+     * @return the delay in milliseconds before a job of the tier completes, or null if there is no such tier
+     */
+    Long getDelay(String tier) {
+        return delays.get(tier);
+    }
+
+    /** Completes the job at the given time, or as soon as possible if that time has passed. */
+    void schedule(String vault, UUID jobId, long completionTime) {
+        long delay = Math.max(0, completionTime - clock.getAsLong());
+        pending.incrementAndGet();
+        executor.schedule(() -> {
+            pending.decrementAndGet();
+            complete(vault, jobId);
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    /** @return the number of jobs waiting for their retrieval delay to pass */
+    int getPendingJobs() {
+        return pending.get();
+    }
+
+    // Archives written to the backend without the proxy have no index entry, as in handlePost
+    private boolean archiveExists(String vault, String archiveId) {
+        return proxy.getMetadataIndex().get(vault, archiveId) != null ||
+                proxy.getBlobStore().blobExists(vault, archiveId);
+    }
+
+    void complete(String vault, UUID jobId) {
+        JsonObject job = proxy.getJob(vault, jobId);
+        if (job == null) {
+            return;
+        }
+        try {
+            if (job.get("Type").getAsString().equals("inventory-retrieval")) {
+                // The job succeeds once the inventory is built
+                proxy.getJobHandler().startInventory(vault, jobId);
+            } else if (!archiveExists(vault, job.get("ArchiveId").getAsString())) {
+                proxy.updateJob(vault, jobId, copy -> Job.setStatus(copy, Job.STATUS_FAILED,
+                        "The archive was deleted before the job completed"));
+            } else {
+                proxy.updateJob(vault, jobId, copy -> Job.setStatus(copy, Job.STATUS_SUCCEEDED,
+                        Job.STATUS_SUCCEEDED));
+            }
+            logger.debug("Job {}: completed", jobId);
+        } catch (IOException | RuntimeException e) {
+            logger.warn("Job {}: failed to complete", jobId, e);
+        }
+    }
+
+    /** Removes the jobs that completed more than their time to live ago, and the inventories of those jobs. */
+    void expire() {
+        long deadline = clock.getAsLong() - jobTtl;
+        int expired = 0;
+        for (Map.Entry<String, ? extends NavigableMap<UUID, JsonObject>> vault :
+                proxy.getStateStore().getAllJobs().entrySet()) {
+            for (Map.Entry<UUID, JsonObject> job : vault.getValue().entrySet()) {
+                JsonElement completionDate = job.getValue().get(Job.COMPLETION_DATE);
+                if (completionDate == null || completionDate.isJsonNull() ||
+                        completionDate.getAsLong() >= deadline) {
+                    continue;
+                }
+                try {
+                    if (job.getValue().get("Type").getAsString().equals("inventory-retrieval")) {
+                        removeInventory(vault.getKey(), job.getKey());
+                    }
+                    proxy.getStateStore().removeJob(vault.getKey(), job.getKey());
+                } catch (IOException | RuntimeException e) {
+                    // Tried again on the next run
+                    logger.warn("Job {}: failed to expire", job.getKey(), e);
+                    continue;
+                }
+                expired++;
+            }
+        }
+        if (expired > 0) {
+            logger.debug("Removed {} expired jobs", expired);
+        }
+    }
+
+    private void removeInventory(String vault, UUID jobId) {
+        try {
+            proxy.getBlobStore().removeBlob(vault, Util.getInventoryBlobName(jobId.toString()));
+        } catch (ContainerNotFoundException e) {
+            // The inventory went with the vault
+        }
+    }
+
+    void shutdown() {
+        executor.shutdownNow();
+    }
+}
@@ -0,0 +1,68 @@
+package com.bouncestorage.glacierproxy;
+
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.function.BiConsumer;
+import java.util.function.Predicate;
+
+import com.google.common.collect.Multimap;
+
+/**
+ * The limit and marker of a paginated listing. The marker names the first entry of the page, and the listings are kept
+ * in sorted maps, so that serving a page is a seek to the marker followed by at most limit entries rather than a pass
+ * over the whole listing.
+ */
+class ListOptions {
+    static final int MAX_LIMIT = 1000;
+
+    private final int limit;
+    private final String marker;
+
+    ListOptions(Multimap<String, String> queryParams) {
+        if (queryParams.containsKey("limit")) {
+            limit = Integer.parseInt(queryParams.get("limit").iterator().next());
+            if (limit > MAX_LIMIT || limit < 1) {
+                throw new IllegalArgumentException("Invalid limit value");
+            }
+        } else {
+            limit = MAX_LIMIT;
+        }
+
+        if (queryParams.containsKey("marker")) {
+            marker = queryParams.get("marker").iterator().next();
+        } else {
+            marker = null;
+        }
+    }
+
+    int getLimit() {
+        return limit;
+    }
+
+    String getMarker() {
+        return marker;
+    }
+
+    /**
+     * Passes the entries of a page to the consumer: up to limit entries that match the filter, starting at the entry
+     * whose key is from, or at the first entry if from is null.
+     *
+     * @return the key of the first matching entry after the page, which is the marker of the next page, or null if
+     * the listing is complete
+     */
+    <K, V> K page(NavigableMap<K, V> map, K from, Predicate<V> filter, BiConsumer<K, V> consumer) {
+        NavigableMap<K, V> tail = from == null ? map : map.tailMap(from, true);
+        int count = 0;
+        for (Map.Entry<K, V> entry : tail.entrySet()) {
+            if (!filter.test(entry.getValue())) {
+                continue;
+            }
+            if (count == limit) {
+                return entry.getKey();
+            }
+            consumer.accept(entry.getKey(), entry.getValue());
+            count++;
+        }
+        return null;
+    }
+}
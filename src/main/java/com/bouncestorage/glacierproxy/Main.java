@@ -1,8 +1,26 @@
 package com.bouncestorage.glacierproxy;
 
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.util.Properties;
+
 public class Main {
     public static void main(String[] args) throws Exception {
-        GlacierProxy proxy = new GlacierProxy();
+        Properties properties = new Properties();
+        if (args.length == 2 && args[0].equals("--properties")) {
+            try (InputStream is = new FileInputStream(args[1])) {
+                properties.load(is);
+            }
+        } else if (args.length != 0) {
+            System.err.println("Usage: glacier-proxy [--properties FILE]");
+            System.exit(1);
+        }
+        // -Dglacier-proxy.port=... and friends override the properties file
+        properties.putAll(System.getProperties());
+
+        GlacierProxy proxy = new GlacierProxy(properties);
         proxy.start();
+        // Close the state logs and remove the spill files of the offheap backend on SIGTERM
+        Runtime.getRuntime().addShutdownHook(new Thread(proxy::stop, "glacier-proxy-shutdown"));
     }
 }
@@ -0,0 +1,463 @@
+package com.bouncestorage.glacierproxy;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.NavigableMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+import org.jclouds.blobstore.BlobStore;
+import org.jclouds.blobstore.ContainerNotFoundException;
+import org.jclouds.blobstore.domain.BlobMetadata;
+import org.jclouds.blobstore.domain.PageSet;
+import org.jclouds.blobstore.domain.StorageMetadata;
+import org.jclouds.blobstore.options.ListContainerOptions;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.io.CountingInputStream;
+import com.google.gson.JsonObject;
+
+/**
+ * Archive metadata (description, hashes, size and creation date) for every vault. Each vault has an append-only log in
+ * the data directory and an in-memory index, sorted by archive ID, that is rebuilt from the log when the vault is
+ * first used. The tree hash levels of an archive stay in the log and are read on demand by their offset.
+ *
+ * A vault without a log is migrated from the {@code _metadata} and {@code _treehash} blobs that earlier versions kept
+ * next to every archive. Those blobs are left in place and removed along with their archive.
+ */
+final class MetadataIndex {
+    private static final Logger logger = LoggerFactory.getLogger(MetadataIndex.class);
+    private static final String LOG_SUFFIX = ".log";
+    private static final byte RECORD_PUT = 1;
+    private static final byte RECORD_REMOVE = 2;
+
+    private final Path directory;
+    private final BlobStore blobStore;
+    private final ConcurrentMap<String, VaultLog> vaults = new ConcurrentHashMap<>();
+
+    MetadataIndex(Path directory, BlobStore blobStore) throws IOException {
+        this.directory = directory;
+        this.blobStore = blobStore;
+        Files.createDirectories(directory);
+    }
+
+    Entry get(String vault, String archiveId) {
+        return getVault(vault).entries.get(archiveId);
+    }
+
+    /** All archives of the vault, ordered by archive ID. */
+    Collection<Entry> list(String vault) {
+        return getVault(vault).entries.values();
+    }
+
+    /** All archives of the vault by archive ID. */
+    NavigableMap<String, Entry> entries(String vault) {
+        return Collections.unmodifiableNavigableMap(getVault(vault).entries);
+    }
+
+    void put(String vault, Entry entry, ArchiveTreeHash treeHash) throws IOException {
+        getVault(vault).put(entry, treeHash);
+    }
+
+    void remove(String vault, String archiveId) throws IOException {
+        getVault(vault).remove(archiveId);
+    }
+
+    ArchiveTreeHash getTreeHash(String vault, String archiveId) throws IOException {
+        VaultLog log = getVault(vault);
+        Entry entry = log.entries.get(archiveId);
+        if (entry == null || entry.treeHashLength == 0) {
+            return null;
+        }
+        return log.readTreeHash(entry);
+    }
+
+    /** @return the total size of the archives in the vaults opened so far */
+    long getArchiveBytes() {
+        long bytes = 0;
+        for (VaultLog log : vaults.values()) {
+            bytes += log.stats.size;
+        }
+        return bytes;
+    }
+
+    /** @return the number and total size of the archives in the vault */
+    VaultStats getStats(String vault) {
+        return getVault(vault).stats;
+    }
+
+    /** Forget a deleted vault and remove its log. */
+    void removeVault(String vault) throws IOException {
+        VaultLog log = vaults.remove(vault);
+        if (log != null) {
+            log.close();
+        }
+        Files.deleteIfExists(logPath(vault));
+    }
+
+    void close() throws IOException {
+        for (VaultLog log : vaults.values()) {
+            log.close();
+        }
+        vaults.clear();
+    }
+
+    private VaultLog getVault(String vault) {
+        return vaults.computeIfAbsent(vault, name -> {
+            try {
+                return open(name);
+            } catch (IOException e) {
+                throw new IllegalStateException("Failed to open the metadata log of " + name, e);
+            }
+        });
+    }
+
+    private Path logPath(String vault) {
+        return directory.resolve(vault + LOG_SUFFIX);
+    }
+
+    private VaultLog open(String vault) throws IOException {
+        Path path = logPath(vault);
+        boolean exists = Files.exists(path);
+        VaultLog log = new VaultLog(path);
+        if (exists) {
+            log.replay();
+            if (log.deadRecords > log.entries.size()) {
+                log.compact();
+            }
+        } else {
+            migrate(vault, log);
+        }
+        return log;
+    }
+
+    private void migrate(String vault, VaultLog log) throws IOException {
+        ListContainerOptions options = new ListContainerOptions();
+        int migrated = 0;
+        while (true) {
+            PageSet<? extends StorageMetadata> page;
+            try {
+                page = blobStore.list(vault, options);
+            } catch (ContainerNotFoundException cnfe) {
+                return;
+            }
+            for (StorageMetadata sm : page) {
+                if (!Util.isMetadataBlob(sm.getName())) {
+                    continue;
+                }
+                String archiveId = Util.getMetadataBlobArchive(sm.getName());
+                BlobMetadata archive = blobStore.blobMetadata(vault, archiveId);
+                if (archive == null) {
+                    continue;
+                }
+                long creationDate = archive.getLastModified() != null ? archive.getLastModified().getTime() :
+                        System.currentTimeMillis();
+                JsonObject metadata = Util.getMetadata(blobStore, vault, archiveId);
+                ArchiveTreeHash treeHash = Util.getTreeHash(blobStore, vault, archiveId);
+                log.put(new Entry(archiveId,
+                        metadata.has(Archive.METADATA_DESCRIPTION) ?
+                                metadata.get(Archive.METADATA_DESCRIPTION).getAsString() : null,
+                        metadata.has(Archive.METADATA_TREE_HASH) ?
+                                metadata.get(Archive.METADATA_TREE_HASH).getAsString() : null,
+                        metadata.has(Archive.METADATA_CONTENT_HASH) ?
+                                metadata.get(Archive.METADATA_CONTENT_HASH).getAsString() : null,
+                        archive.getSize(), creationDate, true), treeHash);
+                migrated++;
+            }
+            if (page.getNextMarker() == null) {
+                break;
+            }
+            options = new ListContainerOptions().afterMarker(page.getNextMarker());
+        }
+        if (migrated > 0) {
+            logger.info("Migrated the metadata of {} archives in {}", migrated, vault);
+        }
+    }
+
+    static final class Entry {
+        private final String archiveId;
+        private final String description;
+        private final String treeHash;
+        private final String contentHash;
+        private final long size;
+        private final long creationDate;
+        // Archives migrated from sidecar blobs still have those blobs in the vault
+        private final boolean legacy;
+        private long treeHashOffset;
+        private int treeHashLength;
+
+        Entry(String archiveId, String description, String treeHash, String contentHash, long size,
+              long creationDate, boolean legacy) {
+            this.archiveId = archiveId;
+            this.description = description;
+            this.treeHash = treeHash;
+            this.contentHash = contentHash;
+            this.size = size;
+            this.creationDate = creationDate;
+            this.legacy = legacy;
+        }
+
+        String getArchiveId() {
+            return archiveId;
+        }
+
+        String getDescription() {
+            return description;
+        }
+
+        String getTreeHash() {
+            return treeHash;
+        }
+
+        String getContentHash() {
+            return contentHash;
+        }
+
+        long getSize() {
+            return size;
+        }
+
+        long getCreationDate() {
+            return creationDate;
+        }
+
+        boolean isLegacy() {
+            return legacy;
+        }
+    }
+
+    static final class VaultStats {
+        static final VaultStats EMPTY = new VaultStats(0, 0);
+
+        private final long archives;
+        private final long size;
+
+        VaultStats(long archives, long size) {
+            this.archives = archives;
+            this.size = size;
+        }
+
+        long getArchiveCount() {
+            return archives;
+        }
+
+        long getSize() {
+            return size;
+        }
+    }
+
+    private static final class VaultLog {
+        private final Path path;
+        private final ConcurrentNavigableMap<String, Entry> entries = new ConcurrentSkipListMap<>();
+        private FileChannel channel;
+        private int deadRecords;
+        // Replaced as a whole so that readers never see the count of one update with the size of another
+        private volatile VaultStats stats = VaultStats.EMPTY;
+
+        VaultLog(Path path) {
+            this.path = path;
+        }
+
+        private FileChannel channel() throws IOException {
+            if (channel == null) {
+                boolean created = !Files.exists(path);
+                channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                        StandardOpenOption.WRITE);
+                if (created) {
+                    Util.syncDirectory(path.getParent());
+                }
+            }
+            return channel;
+        }
+
+        synchronized void put(Entry entry, ArchiveTreeHash treeHash) throws IOException {
+            write(entry, treeHash);
+            // The archive is acknowledged to the client once its entry is on disk
+            channel.force(false);
+        }
+
+        private void write(Entry entry, ArchiveTreeHash treeHash) throws IOException {
+            byte[] treeHashBytes = treeHash == null ? new byte[0] : treeHash.toBytes();
+            ByteArrayOutputStream record = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(record);
+            out.writeByte(RECORD_PUT);
+            out.writeUTF(entry.archiveId);
+            writeNullableUTF(out, entry.description);
+            writeNullableUTF(out, entry.treeHash);
+            writeNullableUTF(out, entry.contentHash);
+            out.writeLong(entry.size);
+            out.writeLong(entry.creationDate);
+            out.writeBoolean(entry.legacy);
+            out.writeInt(treeHashBytes.length);
+            long position = channel().size();
+            entry.treeHashOffset = position + record.size();
+            entry.treeHashLength = treeHashBytes.length;
+            out.write(treeHashBytes);
+            append(position, record.toByteArray());
+            track(entries.put(entry.archiveId, entry), entry);
+        }
+
+        synchronized void remove(String archiveId) throws IOException {
+            if (!entries.containsKey(archiveId)) {
+                return;
+            }
+            ByteArrayOutputStream record = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(record);
+            out.writeByte(RECORD_REMOVE);
+            out.writeUTF(archiveId);
+            append(channel().size(), record.toByteArray());
+            channel.force(false);
+            track(entries.remove(archiveId), null);
+            // The removal and the record it cancels
+            deadRecords += 2;
+        }
+
+        /** Account for an entry replaced by {@code added}, or removed if it is null. */
+        private void track(Entry replaced, Entry added) {
+            long archives = stats.archives;
+            long size = stats.size;
+            if (added != null) {
+                archives++;
+                size += added.size;
+            }
+            if (replaced != null) {
+                archives--;
+                size -= replaced.size;
+                if (added != null) {
+                    deadRecords++;
+                }
+            }
+            stats = new VaultStats(archives, size);
+        }
+
+        private void append(long position, byte[] record) throws IOException {
+            ByteBuffer buffer = ByteBuffer.wrap(record);
+            while (buffer.hasRemaining()) {
+                position += channel.write(buffer, position);
+            }
+        }
+
+        ArchiveTreeHash readTreeHash(Entry entry) throws IOException {
+            ByteBuffer buffer = ByteBuffer.allocate(entry.treeHashLength);
+            long position = entry.treeHashOffset;
+            FileChannel fileChannel;
+            synchronized (this) {
+                fileChannel = channel();
+            }
+            while (buffer.hasRemaining()) {
+                int read = fileChannel.read(buffer, position + buffer.position());
+                if (read < 0) {
+                    throw new EOFException("Truncated tree hash for " + entry.archiveId);
+                }
+            }
+            return ArchiveTreeHash.fromBytes(buffer.array());
+        }
+
+        void replay() throws IOException {
+            long valid = 0;
+            try (CountingInputStream counting = new CountingInputStream(new BufferedInputStream(
+                    Files.newInputStream(path)))) {
+                DataInputStream in = new DataInputStream(counting);
+                while (true) {
+                    int type = in.read();
+                    if (type < 0) {
+                        break;
+                    }
+                    try {
+                        String archiveId = in.readUTF();
+                        if (type == RECORD_PUT) {
+                            Entry entry = new Entry(archiveId, readNullableUTF(in), readNullableUTF(in),
+                                    readNullableUTF(in), in.readLong(), in.readLong(), in.readBoolean());
+                            entry.treeHashLength = in.readInt();
+                            entry.treeHashOffset = counting.getCount();
+                            skipFully(in, entry.treeHashLength);
+                            track(entries.put(archiveId, entry), entry);
+                        } else if (type == RECORD_REMOVE) {
+                            track(entries.remove(archiveId), null);
+                            deadRecords += 2;
+                        } else {
+                            throw new IOException("Unknown record type " + type + " in " + path);
+                        }
+                    } catch (EOFException eof) {
+                        break;
+                    }
+                    valid = counting.getCount();
+                }
+            }
+            // Drop a record that was only partially written when the proxy stopped
+            if (valid < Files.size(path)) {
+                logger.warn("Truncating {} to {} bytes", path, valid);
+                channel().truncate(valid);
+            }
+        }
+
+        /** Rewrite the log with only the live entries. */
+        synchronized void compact() throws IOException {
+            Path compacted = path.resolveSibling(path.getFileName() + ".compact");
+            Files.deleteIfExists(compacted);
+            // The target only creates its file on the first entry, and a vault may have none left
+            Files.createFile(compacted);
+            VaultLog target = new VaultLog(compacted);
+            for (Entry entry : entries.values()) {
+                ArchiveTreeHash treeHash = entry.treeHashLength == 0 ? null : readTreeHash(entry);
+                Entry copy = new Entry(entry.archiveId, entry.description, entry.treeHash, entry.contentHash,
+                        entry.size, entry.creationDate, entry.legacy);
+                target.write(copy, treeHash);
+            }
+            // The rename must not reach the disk before the entries it points to
+            target.channel().force(true);
+            target.close();
+            close();
+            Files.move(compacted, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            Util.syncDirectory(path.getParent());
+            entries.clear();
+            entries.putAll(target.entries);
+            deadRecords = 0;
+        }
+
+        synchronized void close() throws IOException {
+            if (channel != null) {
+                channel.close();
+                channel = null;
+            }
+        }
+
+        private static void skipFully(InputStream in, int length) throws IOException {
+            long remaining = length;
+            while (remaining > 0) {
+                long skipped = in.skip(remaining);
+                if (skipped <= 0) {
+                    throw new EOFException();
+                }
+                remaining -= skipped;
+            }
+        }
+
+        private static void writeNullableUTF(DataOutputStream out, String value) throws IOException {
+            out.writeBoolean(value != null);
+            if (value != null) {
+                out.writeUTF(value);
+            }
+        }
+
+        private static String readNullableUTF(DataInputStream in) throws IOException {
+            return in.readBoolean() ? in.readUTF() : null;
+        }
+    }
+}
@@ -0,0 +1,252 @@
+package com.bouncestorage.glacierproxy;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Counters, latency histograms and gauges of the proxy, written in the Prometheus text format by the admin server.
+ * Recording a value is a map lookup and a {@link LongAdder} increment, so request threads never contend on a lock.
+ */
+final class Metrics {
+    static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    /** Upper bounds of the latency buckets, in seconds. */
+    private static final double[] LATENCY_BUCKETS = {
+            0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10, 30, 60,
+    };
+
+    private final List<Metric> metrics = new CopyOnWriteArrayList<>();
+    private final Counter requests = register(new Counter("glacier_proxy_requests_total",
+            "Requests answered, by route, method and status", "route", "method", "status"));
+    private final Histogram requestDuration = register(new Histogram("glacier_proxy_request_duration_seconds",
+            "Time from routing a request to closing its response", "route", "method", "status"));
+    private final Counter receivedBytes = register(new Counter("glacier_proxy_received_bytes_total",
+            "Bytes of request bodies read, by route", "route"));
+    private final Counter sentBytes = register(new Counter("glacier_proxy_sent_bytes_total",
+            "Bytes of response bodies written, by route", "route"));
+    private final Counter throttled = register(new Counter("glacier_proxy_throttled_requests_total",
+            "Requests rejected with a ThrottlingException because too many were queued or over a rate limit"));
+    private final Histogram backendDuration = register(new Histogram("glacier_proxy_backend_duration_seconds",
+            "Latency of BlobStore calls, by operation", "operation"));
+    private final Counter backendErrors = register(new Counter("glacier_proxy_backend_errors_total",
+            "BlobStore calls that threw, by operation", "operation"));
+
+    /**
+     * @param status the status sent, or -1 if the request failed before a status was sent
+     */
+    void recordRequest(String route, String method, int status, long nanos, long bytesIn, long bytesOut) {
+        String statusLabel = Integer.toString(status);
+        requests.increment(1, route, method, statusLabel);
+        requestDuration.observe(nanos, route, method, statusLabel);
+        if (bytesIn > 0) {
+            receivedBytes.increment(bytesIn, route);
+        }
+        if (bytesOut > 0) {
+            sentBytes.increment(bytesOut, route);
+        }
+    }
+
+    void recordThrottled() {
+        throttled.increment(1);
+    }
+
+    void recordBackendCall(String operation, long nanos, boolean failed) {
+        backendDuration.observe(nanos, operation);
+        if (failed) {
+            backendErrors.increment(1, operation);
+        }
+    }
+
+    /** Register a value that is read when the metrics are written. */
+    void gauge(String name, String help, LongSupplier value) {
+        register(new Gauge(name, help, "gauge", value));
+    }
+
+    /** Register a monotonic total that is kept elsewhere and read when the metrics are written. */
+    void counter(String name, String help, LongSupplier value) {
+        register(new Gauge(name, help, "counter", value));
+    }
+
+    void write(Writer writer) throws IOException {
+        for (Metric metric : metrics) {
+            writer.write("# HELP ");
+            writer.write(metric.name);
+            writer.write(' ');
+            writer.write(metric.help);
+            writer.write("\n# TYPE ");
+            writer.write(metric.name);
+            writer.write(' ');
+            writer.write(metric.type);
+            writer.write('\n');
+            metric.write(writer);
+        }
+    }
+
+    private <T extends Metric> T register(T metric) {
+        metrics.add(metric);
+        return metric;
+    }
+
+    private abstract static class Metric {
+        final String name;
+        final String help;
+        final String type;
+        final String[] labelNames;
+
+        Metric(String name, String help, String type, String... labelNames) {
+            this.name = name;
+            this.help = help;
+            this.type = type;
+            this.labelNames = labelNames;
+        }
+
+        abstract void write(Writer writer) throws IOException;
+
+        /** Write a sample of this metric, with {@code extraLabel} appended to its labels if not null. */
+        void writeSample(Writer writer, String suffix, List<String> labels, String extraLabel, String extraValue,
+                         String value) throws IOException {
+            writer.write(name);
+            writer.write(suffix);
+            if (!labels.isEmpty() || extraLabel != null) {
+                writer.write('{');
+                for (int i = 0; i < labels.size(); i++) {
+                    writeLabel(writer, i > 0, labelNames[i], labels.get(i));
+                }
+                if (extraLabel != null) {
+                    writeLabel(writer, !labels.isEmpty(), extraLabel, extraValue);
+                }
+                writer.write('}');
+            }
+            writer.write(' ');
+            writer.write(value);
+            writer.write('\n');
+        }
+
+        private static void writeLabel(Writer writer, boolean separator, String label, String value)
+                throws IOException {
+            if (separator) {
+                writer.write(',');
+            }
+            writer.write(label);
+            writer.write("=\"");
+            for (int i = 0; i < value.length(); i++) {
+                char c = value.charAt(i);
+                if (c == '\\' || c == '"') {
+                    writer.write('\\');
+                    writer.write(c);
+                } else if (c == '\n') {
+                    writer.write("\\n");
+                } else {
+                    writer.write(c);
+                }
+            }
+            writer.write('"');
+        }
+
+        List<String> labels(String... values) {
+            if (values.length != labelNames.length) {
+                throw new IllegalArgumentException(String.format("%s expects labels %s", name,
+                        Arrays.toString(labelNames)));
+            }
+            return Arrays.asList(values);
+        }
+    }
+
+    private static final class Counter extends Metric {
+        private final ConcurrentMap<List<String>, LongAdder> values = new ConcurrentHashMap<>();
+
+        Counter(String name, String help, String... labelNames) {
+            super(name, help, "counter", labelNames);
+            if (labelNames.length == 0) {
+                values.put(Collections.emptyList(), new LongAdder());
+            }
+        }
+
+        void increment(long amount, String... labels) {
+            values.computeIfAbsent(labels(labels), k -> new LongAdder()).add(amount);
+        }
+
+        @Override
+        void write(Writer writer) throws IOException {
+            for (Map.Entry<List<String>, LongAdder> value : values.entrySet()) {
+                writeSample(writer, "", value.getKey(), null, null, Long.toString(value.getValue().sum()));
+            }
+        }
+    }
+
+    private static final class Histogram extends Metric {
+        private final long[] bounds = new long[LATENCY_BUCKETS.length];
+        private final ConcurrentMap<List<String>, Buckets> values = new ConcurrentHashMap<>();
+
+        Histogram(String name, String help, String... labelNames) {
+            super(name, help, "histogram", labelNames);
+            for (int i = 0; i < bounds.length; i++) {
+                bounds[i] = (long) (LATENCY_BUCKETS[i] * TimeUnit.SECONDS.toNanos(1));
+            }
+        }
+
+        void observe(long nanos, String... labels) {
+            Buckets buckets = values.computeIfAbsent(labels(labels), k -> new Buckets(bounds.length + 1));
+            int bucket = 0;
+            while (bucket < bounds.length && nanos > bounds[bucket]) {
+                bucket++;
+            }
+            buckets.counts[bucket].increment();
+            buckets.sum.add(nanos);
+        }
+
+        @Override
+        void write(Writer writer) throws IOException {
+            for (Map.Entry<List<String>, Buckets> value : values.entrySet()) {
+                Buckets buckets = value.getValue();
+                // Buckets are cumulative in the exposition format
+                long count = 0;
+                for (int i = 0; i < buckets.counts.length; i++) {
+                    count += buckets.counts[i].sum();
+                    writeSample(writer, "_bucket", value.getKey(), "le",
+                            i < LATENCY_BUCKETS.length ? Double.toString(LATENCY_BUCKETS[i]) : "+Inf",
+                            Long.toString(count));
+                }
+                writeSample(writer, "_sum", value.getKey(), null, null,
+                        Double.toString((double) buckets.sum.sum() / TimeUnit.SECONDS.toNanos(1)));
+                writeSample(writer, "_count", value.getKey(), null, null, Long.toString(count));
+            }
+        }
+    }
+
+    private static final class Buckets {
+        private final LongAdder[] counts;
+        private final LongAdder sum = new LongAdder();
+
+        Buckets(int size) {
+            counts = new LongAdder[size];
+            for (int i = 0; i < size; i++) {
+                counts[i] = new LongAdder();
+            }
+        }
+    }
+
+    private static final class Gauge extends Metric {
+        private final LongSupplier value;
+
+        Gauge(String name, String help, String type, LongSupplier value) {
+            super(name, help, type);
+            this.value = value;
+        }
+
+        @Override
+        void write(Writer writer) throws IOException {
+            writeSample(writer, "", Collections.<String>emptyList(), null, null, Long.toString(value.getAsLong()));
+        }
+    }
+}
@@ -1,15 +1,22 @@
 package com.bouncestorage.glacierproxy;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
 import java.util.Map;
+import java.util.NavigableMap;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import javax.ws.rs.core.Response;
 
+import org.jclouds.blobstore.BlobStore;
 import org.jclouds.blobstore.domain.Blob;
 import org.jclouds.blobstore.domain.MultipartPart;
 import org.jclouds.blobstore.domain.MultipartUpload;
@@ -20,8 +27,6 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.google.common.collect.ImmutableList;
-import com.google.common.collect.ImmutableMap;
-import com.google.gson.JsonArray;
 import com.google.gson.JsonObject;
 import com.sun.net.httpserver.HttpExchange;
 
@@ -31,10 +36,12 @@ public class Multipart extends BaseRequestHandler {
             "x-amz-sha256-tree-hash");
     private static final ImmutableList<String> REQUIRED_COMPLETE_HEADERS = ImmutableList.of("x-amz-archive-size",
             "x-amz-sha256-tree-hash");
+    private static final long MAX_PART_SIZE = 4L << 30;
+    private static final int MAX_PARTS = 10000;
     private static final Logger logger = LoggerFactory.getLogger(Multipart.class);
 
     public Multipart(GlacierProxy proxy) {
-        super(proxy);
+        super(proxy, "multipart-uploads");
     }
 
     @Override
@@ -73,8 +80,8 @@ public class Multipart extends BaseRequestHandler {
             return;
         }
 
-        proxy.getBlobStore().abortMultipartUpload(upload.jcloudsUpload);
-        request.sendResponseHeaders(Response.Status.NO_CONTENT.getStatusCode(), -1);
+        proxy.abortUpload(params.get("vault"), UUID.fromString(params.get("upload")), upload);
+        Util.sendStatus(request, Response.Status.NO_CONTENT);
     }
 
     @Override
@@ -124,27 +131,93 @@ public class Multipart extends BaseRequestHandler {
             return;
         }
 
-        if (upload.parts.size() > 10000) {
-            Util.sendBadRequest("Cannot have more than 10000 parts", request);
+        // parts are 1-indexed
+        long partNumber = start / upload.partSize + 1;
+        if (partNumber > MAX_PARTS) {
+            Util.sendBadRequest(String.format("Cannot have more than %d parts", MAX_PARTS), request);
             return;
         }
 
-        // parts are 1-indexed
-        int partNumber = (int) (start/upload.partSize + 1);
-
-        Payload payload = Payloads.newInputStreamPayload(request.getRequestBody());
-        MultipartPart uploadedPart = proxy.getBlobStore().uploadMultipartPart(upload.jcloudsUpload, partNumber,
-                payload);
-        if (uploadedPart == null) {
-            Util.sendServerError("Failed to save the part", request);
+        TreeHashingInputStream body = proxy.hashingStream(
+                proxy.getRateLimits().throttleUpload(params.get("account"), request.getRequestBody()));
+        String sha256TreeHash = request.getRequestHeaders().getFirst("x-amz-sha256-tree-hash");
+        String mismatch = writePart(proxy.getBlobStore(), params.get("vault"), upload.jcloudsUpload, (int) partNumber,
+                body, size, request.getRequestHeaders().getFirst("x-amz-content-sha256"), sha256TreeHash,
+                proxy.isStagingParts());
+        if (mismatch != null) {
+            logger.warn("Rejected part {} of upload {}: {}", partNumber, uploadId, mismatch);
+            if (!proxy.isStagingParts()) {
+                // The backend's part now holds the rejected body, so it must be uploaded again before completion
+                proxy.getStateStore().removePart(params.get("vault"), uploadId, upload, (int) partNumber);
+            }
+            Util.sendInvalidParameter(mismatch, request);
             return;
         }
-        String sha256TreeHash = request.getRequestHeaders().getFirst("x-amz-sha256-tree-hash");
-        upload.parts.add(new UploadPart(sha256TreeHash, size));
+        // A part uploaded again replaces the previous one, as the backend's part does
+        proxy.getStateStore().addPart(params.get("vault"), uploadId, upload,
+                new UploadPart((int) partNumber, TreeHash.toHex(body.getTreeHash()), size, body.getLeafHashes()));
 
         request.getResponseHeaders().put("x-amz-sha256-tree-hash",
                 request.getRequestHeaders().get("x-amz-sha256-tree-hash"));
-        request.sendResponseHeaders(Response.Status.NO_CONTENT.getStatusCode(), -1);
+        Util.sendStatus(request, Response.Status.NO_CONTENT);
+    }
+
+    /**
+     * Store a part of an upload and check its body against its hashes. A part is uploaded straight to the backend, so a
+     * rejected body replaces what the backend held for that part. With staging, the body is first stored in a blob of
+     * its own and only copied to the part after the check, so that a corrupt retry, or a signed request replayed with
+     * another body, never replaces a part that was accepted before; this costs two more transfers of the part.
+     *
+     * @return why the part was rejected, or null if it was stored
+     */
+    static String writePart(BlobStore blobStore, String vault, MultipartUpload jcloudsUpload, int partNumber,
+            TreeHashingInputStream body, long size, String contentHash, String treeHash, boolean stage)
+            throws IOException {
+        if (!stage) {
+            Payload payload = Payloads.newInputStreamPayload(body);
+            payload.getContentMetadata().setContentLength(size);
+            if (blobStore.uploadMultipartPart(jcloudsUpload, partNumber, payload) == null) {
+                throw new IOException("Failed to save part " + partNumber);
+            }
+            return verify(body, size, contentHash, treeHash);
+        }
+        String stagingName = Util.getStagingBlobName(UUID.randomUUID().toString());
+        Blob staging = blobStore.blobBuilder(stagingName)
+                .payload(body)
+                .contentLength(size)
+                .build();
+        try {
+            if (blobStore.putBlob(vault, staging) == null) {
+                throw new IOException("Failed to stage part " + partNumber);
+            }
+            String mismatch = verify(body, size, contentHash, treeHash);
+            if (mismatch != null) {
+                return mismatch;
+            }
+            Blob staged = blobStore.getBlob(vault, stagingName);
+            if (staged == null) {
+                throw new IOException("Lost staged part " + partNumber);
+            }
+            try (InputStream in = staged.getPayload().openStream()) {
+                Payload payload = Payloads.newInputStreamPayload(in);
+                payload.getContentMetadata().setContentLength(size);
+                if (blobStore.uploadMultipartPart(jcloudsUpload, partNumber, payload) == null) {
+                    throw new IOException("Failed to save part " + partNumber);
+                }
+            }
+            return null;
+        } finally {
+            blobStore.removeBlob(vault, stagingName);
+        }
+    }
+
+    private static String verify(TreeHashingInputStream body, long size, String contentHash, String treeHash)
+            throws IOException {
+        String mismatch = body.verify(contentHash, treeHash);
+        if (mismatch == null && body.getCount() != size) {
+            mismatch = String.format("Received %d bytes, expected %d", body.getCount(), size);
+        }
+        return mismatch;
     }
 
     private void handleListUploads(HttpExchange request, Map<String, String> params) throws IOException {
@@ -154,26 +227,41 @@ public class Multipart extends BaseRequestHandler {
             return;
         }
 
-        // TODO: implement pagination
-        JsonObject response = new JsonObject();
-        response.add("Marker", null);
-        JsonArray uploadList = new JsonArray();
-        Map<UUID, Upload> uploadMap = proxy.getUploads(vault);
-        if (uploadMap != null) {
-            uploadMap.entrySet().forEach(entry -> {
-                JsonObject uploadJSON = entry.getValue().toJSON();
-                uploadJSON.addProperty("MultipartUploadId", entry.getKey().toString());
+        ListOptions options;
+        UUID marker = null;
+        try {
+            options = new ListOptions(Util.parseQuery(request.getRequestURI().getQuery()));
+            if (options.getMarker() != null) {
+                marker = UUID.fromString(options.getMarker());
+            }
+        } catch (IllegalArgumentException e) {
+            Util.sendInvalidParameter(String.format("Invalid list uploads parameter: %s", e.getMessage()), request);
+            return;
+        }
+        NavigableMap<UUID, Upload> uploads = proxy.getUploads(vault);
+        NavigableMap<UUID, Upload> uploadMap = uploads == null ? Collections.emptyNavigableMap() : uploads;
+        UUID first = marker;
+        Util.streamJSON(request, Response.Status.OK, writer -> {
+            writer.beginObject();
+            writer.name("UploadsList").beginArray();
+            UUID nextMarker = options.page(uploadMap, first, upload -> true, (uploadId, upload) -> {
+                JsonObject uploadJSON = upload.toJSON();
+                uploadJSON.addProperty("MultipartUploadId", uploadId.toString());
                 uploadJSON.addProperty("VaultARN", Util.getARN(params.get("account"), vault));
-                uploadList.add(uploadJSON);
+                Util.writeJSON(writer, uploadJSON);
             });
-        }
-        response.add("UploadsList", uploadList);
-        Util.sendJSON(request, Response.Status.OK, response);
+            writer.endArray();
+            if (nextMarker == null) {
+                writer.name("Marker").nullValue();
+            } else {
+                writer.name("Marker").value(nextMarker.toString());
+            }
+            writer.endObject();
+        });
     }
 
     private void handleListParts(HttpExchange request, Map<String, String> params) throws IOException {
         // TODO: we should list the parts from the blobstore; use the in-memory map for the time being
-        // TODO: use the marker and limit
         String uploadIDParam = params.get("upload");
         UUID uploadID = retrieveUploadId(params);
         if (uploadID == null) {
@@ -185,25 +273,48 @@ public class Multipart extends BaseRequestHandler {
         Upload upload = proxy.getUpload(vault, uploadID);
         if (upload == null) {
             Util.sendNotFound("multipart upload", uploadIDParam, request);
+            return;
         }
-        JsonObject response = new JsonObject();
-        response.addProperty("ArchiveDescription", upload.description);
-        response.addProperty("CreationDate", Util.getTimeStamp(upload.jcloudsUpload.blobMetadata().getCreationDate()));
-        response.add("Marker", null);
-        response.addProperty("MultipartUploadId", uploadIDParam);
-        response.addProperty("PartSizeInBytes", upload.partSize);
-        JsonArray parts = new JsonArray();
-        long rangeStart = 0;
-        for (UploadPart part : upload.parts) {
-            JsonObject jsonPart = new JsonObject();
-            jsonPart.addProperty("SHA256TreeHash", part.getSha256TreeHash());
-            jsonPart.addProperty("RangeInBytes", String.format("%d-%d", rangeStart, rangeStart + part.getSize()-1));
-            rangeStart += part.getSize();
-            parts.add(jsonPart);
-        }
-        response.add("Parts", parts);
-        response.addProperty("VaultARN", Util.getARN(params.get("account"), vault));
-        Util.sendJSON(request, Response.Status.OK, response);
+        // The marker is the number of the first part of the page
+        ListOptions options;
+        Integer marker = null;
+        try {
+            options = new ListOptions(Util.parseQuery(request.getRequestURI().getQuery()));
+            if (options.getMarker() != null) {
+                marker = Integer.valueOf(options.getMarker());
+                if (marker < 1) {
+                    throw new IllegalArgumentException("Invalid marker value");
+                }
+            }
+        } catch (IllegalArgumentException e) {
+            Util.sendInvalidParameter(String.format("Invalid list parts parameter: %s", e.getMessage()), request);
+            return;
+        }
+        Integer first = marker;
+        Util.streamJSON(request, Response.Status.OK, writer -> {
+            writer.beginObject();
+            writer.name("ArchiveDescription").value(upload.description);
+            writer.name("CreationDate").value(Util.getTimeStamp(upload.creationDate));
+            writer.name("MultipartUploadId").value(uploadIDParam);
+            writer.name("PartSizeInBytes").value(upload.partSize);
+            writer.name("VaultARN").value(Util.getARN(params.get("account"), vault));
+            writer.name("Parts").beginArray();
+            Integer nextMarker = options.page(upload.parts, first, part -> true, (partNumber, part) -> {
+                long rangeStart = (partNumber - 1) * upload.partSize;
+                JsonObject jsonPart = new JsonObject();
+                jsonPart.addProperty("SHA256TreeHash", part.getSha256TreeHash());
+                jsonPart.addProperty("RangeInBytes", String.format("%d-%d", rangeStart,
+                        rangeStart + part.getSize()-1));
+                Util.writeJSON(writer, jsonPart);
+            });
+            writer.endArray();
+            if (nextMarker == null) {
+                writer.name("Marker").nullValue();
+            } else {
+                writer.name("Marker").value(nextMarker.toString());
+            }
+            writer.endObject();
+        });
     }
 
     private void handleCompleteMultipartUpload(HttpExchange request, Map<String, String> params) throws IOException {
@@ -234,11 +345,22 @@ public class Multipart extends BaseRequestHandler {
             return;
         }
 
+        // Parts may arrive in any order, but must cover the archive from the first part without gaps. A snapshot is
+        // taken so that parts uploaded concurrently with the completion do not change what is validated.
+        List<UploadPart> uploadParts = new ArrayList<>(upload.parts.values());
+        if (uploadParts.isEmpty()) {
+            Util.sendInvalidParameter("No parts were uploaded", request);
+            return;
+        }
         long uploadedSize = 0;
-        for(int i = 0; i < upload.parts.size(); i++) {
-            UploadPart uploadPart = upload.parts.get(i);
+        for (int i = 0; i < uploadParts.size(); i++) {
+            UploadPart uploadPart = uploadParts.get(i);
+            if (uploadPart.getPartNumber() != i + 1) {
+                Util.sendInvalidParameter(String.format("Part %d is missing", i + 1), request);
+                return;
+            }
             uploadedSize += uploadPart.getSize();
-            if (i < upload.parts.size()-1 && uploadPart.getSize() != upload.partSize) {
+            if (i < uploadParts.size()-1 && uploadPart.getSize() != upload.partSize) {
                 Util.sendBadRequest(String.format("Uploaded part is smaller than part size and is not last: %d",
                         uploadPart.getSize()), request);
                 return;
@@ -249,32 +371,50 @@ public class Multipart extends BaseRequestHandler {
                     requestUploadSize), request);
             return;
         }
-        List<MultipartPart> parts = proxy.getBlobStore().listMultipartUpload(upload.jcloudsUpload);
+        // Every part is a whole subtree of the archive's tree, as the part size is a power of two megabytes, so the
+        // archive's tree hash is the root of the parts' tree hashes and is checked without reading the archive
+        List<byte[]> partHashes = new ArrayList<>(uploadParts.size());
+        for (UploadPart uploadPart : uploadParts) {
+            partHashes.add(TreeHash.fromHex(uploadPart.getSha256TreeHash()));
+        }
+        String archiveTreeHash = TreeHash.toHex(TreeHash.root(partHashes));
+        String requestTreeHash = request.getRequestHeaders().getFirst("x-amz-sha256-tree-hash");
+        if (!archiveTreeHash.equalsIgnoreCase(requestTreeHash)) {
+            Util.sendInvalidParameter(String.format("Tree hash mismatch: expected %s (calculated), got %s",
+                    archiveTreeHash, requestTreeHash), request);
+            return;
+        }
+        List<MultipartPart> parts = new ArrayList<>(proxy.getBlobStore().listMultipartUpload(upload.jcloudsUpload));
+        parts.sort(Comparator.comparingInt(MultipartPart::partNumber));
         String etag = proxy.getBlobStore().completeMultipartUpload(upload.jcloudsUpload, parts);
         if (etag == null){
             Util.sendServerError(String.format("Failed to completed upload %s", uploadID.toString()), request);
             return;
         }
 
-        Map<String, String> metadata;
-        if (upload.description != null) {
-            metadata = ImmutableMap.of(Archive.METADATA_DESCRIPTION, upload.description,
-                    Archive.METADATA_TREE_HASH, request.getRequestHeaders().getFirst("x-amz-sha256-tree-hash"));
-        } else {
-            metadata = ImmutableMap.of(
-                    Archive.METADATA_TREE_HASH, request.getRequestHeaders().getFirst("x-amz-sha256-tree-hash"));
+        // Parts are whole megabytes, so the archive's leaves are the parts' leaves in order. Keeping every level lets
+        // retrievals of sub-ranges report their tree hash.
+        List<byte[]> leafHashes = new ArrayList<>();
+        for (UploadPart uploadPart : uploadParts) {
+            leafHashes.addAll(uploadPart.getLeafHashes());
         }
-        String metadataEtag = Util.putMetadataBlob(metadata, proxy.getBlobStore(), vault,
-                upload.jcloudsUpload.blobName());
-        if (metadataEtag == null) {
+        ArchiveTreeHash treeHash = ArchiveTreeHash.fromLeaves(leafHashes);
+        String archiveId = upload.jcloudsUpload.blobName();
+        MetadataIndex.Entry entry = new MetadataIndex.Entry(archiveId, upload.description,
+                archiveTreeHash, null, uploadedSize, System.currentTimeMillis(), false);
+        try {
+            proxy.getMetadataIndex().put(vault, entry, treeHash);
+        } catch (IOException e) {
+            logger.warn("Failed to record the metadata of {}/{}", vault, archiveId, e);
+            proxy.getBlobStore().removeBlob(vault, archiveId);
             Util.sendServerError("Failed to complete the multipart upload", request);
             return;
         }
         proxy.completeUpload(vault, uploadID);
-        request.getResponseHeaders().put("x-amz-archive-id", ImmutableList.of(upload.jcloudsUpload.blobName()));
+        request.getResponseHeaders().put("x-amz-archive-id", ImmutableList.of(archiveId));
         request.getResponseHeaders().put("Location", ImmutableList.of(
-                Util.getArchiveLocation(params.get("account"), vault, uploadIDParam)));
-        request.sendResponseHeaders(Response.Status.CREATED.getStatusCode(), -1);
+                Util.getArchiveLocation(params.get("account"), vault, archiveId)));
+        Util.sendStatus(request, Response.Status.CREATED);
     }
 
     private void handleCreateMultipartUpload(HttpExchange request, Map<String, String> params) throws IOException {
@@ -296,6 +436,11 @@ public class Multipart extends BaseRequestHandler {
             Util.sendBadRequest("Invalid part size", request);
             return;
         }
+        // Glacier requires a power of two number of megabytes, which keeps every part a whole subtree of the archive
+        if (partSize < TreeHash.CHUNK_SIZE || partSize > MAX_PART_SIZE || Long.bitCount(partSize) != 1) {
+            Util.sendInvalidParameter(String.format("Invalid part size: %d", partSize), request);
+            return;
+        }
         UUID archiveId = UUID.randomUUID();
         Blob mpuBlob = proxy.getBlobStore().blobBuilder(archiveId.toString()).build();
         MultipartUpload mpu = proxy.getBlobStore().initiateMultipartUpload(vault, mpuBlob.getMetadata(), new PutOptions());
@@ -304,12 +449,12 @@ public class Multipart extends BaseRequestHandler {
             return;
         }
         String description = request.getRequestHeaders().getFirst("x-amz-archive-description");
-        Upload upload = new Upload(partSize, description, mpu);
+        Upload upload = new Upload(partSize, description, mpu, System.currentTimeMillis());
         UUID uploadId = proxy.createMultipartUpload(vault, upload);
         request.getResponseHeaders().put("x-amz-multipart-upload-id", ImmutableList.of(uploadId.toString()));
         request.getResponseHeaders().put("Location", ImmutableList.of(
                 Util.getMultipartLocation(params.get("account"), vault, uploadId.toString())));
-        request.sendResponseHeaders(Response.Status.CREATED.getStatusCode(), -1);
+        Util.sendStatus(request, Response.Status.CREATED);
     }
 
     private UUID retrieveUploadId(Map<String, String> params) throws IOException {
@@ -326,24 +471,39 @@ public class Multipart extends BaseRequestHandler {
         String description;
         long partSize;
         MultipartUpload jcloudsUpload;
+        long creationDate;
+        // When the upload was created or last received a part, for the reaper of abandoned uploads
+        volatile long lastActivity;
         // required by the complete multipart method
         boolean smallerPartReceived;
-        ArrayList<UploadPart> parts;
+        // Parts by part number, which clients upload in parallel and in any order
+        ConcurrentNavigableMap<Integer, UploadPart> parts;
 
         public boolean wasSmallerPartReceived() {
             return smallerPartReceived;
         }
 
-        public Upload(long partSize, String archiveDescription, MultipartUpload jcloudsUpload) {
+        public Upload(long partSize, String archiveDescription, MultipartUpload jcloudsUpload, long creationDate) {
             description = archiveDescription;
             this.partSize = partSize;
             this.jcloudsUpload = jcloudsUpload;
-            parts = new ArrayList<>();
+            this.creationDate = creationDate;
+            lastActivity = creationDate;
+            parts = new ConcurrentSkipListMap<>();
+        }
+
+        /** @return the bytes of the parts uploaded so far */
+        long getPartBytes() {
+            long bytes = 0;
+            for (UploadPart part : parts.values()) {
+                bytes += part.getSize();
+            }
+            return bytes;
         }
 
         JsonObject toJSON() {
             JsonObject response = new JsonObject();
-            response.addProperty("CreationDate", Util.getTimeStamp(jcloudsUpload.blobMetadata().getCreationDate()));
+            response.addProperty("CreationDate", Util.getTimeStamp(creationDate));
             if (description == null) {
                 response.add("ArchiveDescription", null);
             } else {
@@ -355,12 +515,20 @@ public class Multipart extends BaseRequestHandler {
     }
 
     public static class UploadPart {
+        int partNumber;
         String sha256TreeHash;
         long size;
+        List<byte[]> leafHashes;
 
-        UploadPart(String sha256TreeHash, long size) {
+        UploadPart(int partNumber, String sha256TreeHash, long size, List<byte[]> leafHashes) {
+            this.partNumber = partNumber;
             this.sha256TreeHash = sha256TreeHash;
             this.size = size;
+            this.leafHashes = leafHashes;
+        }
+
+        int getPartNumber() {
+            return partNumber;
         }
 
         String getSha256TreeHash() {
@@ -370,5 +538,9 @@ public class Multipart extends BaseRequestHandler {
         long getSize() {
             return size;
         }
+
+        List<byte[]> getLeafHashes() {
+            return leafHashes;
+        }
     }
 }
@@ -0,0 +1,84 @@
+package com.bouncestorage.glacierproxy;
+
+import java.net.URI;
+import java.util.Properties;
+
+import org.jclouds.apis.internal.BaseApiMetadata;
+import org.jclouds.blobstore.BlobRequestSigner;
+import org.jclouds.blobstore.BlobStore;
+import org.jclouds.blobstore.BlobStoreContext;
+import org.jclouds.blobstore.LocalBlobRequestSigner;
+import org.jclouds.blobstore.LocalStorageStrategy;
+import org.jclouds.blobstore.attr.ConsistencyModel;
+import org.jclouds.blobstore.config.BlobStoreObjectModule;
+import org.jclouds.blobstore.config.LocalBlobStore;
+
+import com.google.inject.AbstractModule;
+
+/**
+ * The "offheap" jclouds API: the local blobstore of the transient provider, with payloads kept off the heap by
+ * {@link OffHeapStorageStrategy}. It is not registered with the ServiceLoader, so GlacierProxy builds it by id.
+ */
+public final class OffHeapApiMetadata extends BaseApiMetadata {
+    public static final String ID = "offheap";
+
+    public OffHeapApiMetadata() {
+        this(new Builder());
+    }
+
+    private OffHeapApiMetadata(Builder builder) {
+        super(builder);
+    }
+
+    @Override
+    public Builder toBuilder() {
+        return new Builder().fromApiMetadata(this);
+    }
+
+    public static Properties defaultProperties() {
+        Properties properties = BaseApiMetadata.defaultProperties();
+        // Direct memory is limited to the maximum heap size unless -XX:MaxDirectMemorySize says otherwise
+        properties.setProperty(GlacierProxyConstants.PROPERTY_OFFHEAP_MAX_MEMORY,
+                Long.toString(Runtime.getRuntime().maxMemory() / 2));
+        properties.setProperty(GlacierProxyConstants.PROPERTY_OFFHEAP_SPILL_DIRECTORY, "");
+        return properties;
+    }
+
+    public static final class Builder extends BaseApiMetadata.Builder<Builder> {
+        Builder() {
+            id(ID)
+                    .name("off-heap in-memory API")
+                    .identityName("Unused")
+                    .defaultEndpoint("http://localhost")
+                    .defaultIdentity(System.getProperty("user.name"))
+                    .defaultCredential("bar")
+                    .version("1")
+                    .view(BlobStoreContext.class)
+                    .defaultModule(ContextModule.class)
+                    .defaultProperties(OffHeapApiMetadata.defaultProperties())
+                    .documentation(URI.create("https://github.com/bouncestorage/glacier-proxy"));
+        }
+
+        @Override
+        public OffHeapApiMetadata build() {
+            return new OffHeapApiMetadata(this);
+        }
+
+        @Override
+        protected Builder self() {
+            return this;
+        }
+    }
+
+    /** The bindings of the transient provider's module, with the off-heap storage strategy. */
+    public static final class ContextModule extends AbstractModule {
+        @Override
+        protected void configure() {
+            install(new BlobStoreObjectModule());
+            bind(BlobStore.class).to(LocalBlobStore.class);
+            bind(ConsistencyModel.class).toInstance(ConsistencyModel.STRICT);
+            bind(LocalStorageStrategy.class).to(OffHeapStorageStrategy.class);
+            bind(BlobRequestSigner.class).to(LocalBlobRequestSigner.class);
+        }
+    }
+}
@@ -0,0 +1,664 @@
+package com.bouncestorage.glacierproxy;
+
+import static com.google.common.io.BaseEncoding.base16;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.ref.PhantomReference;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+import javax.annotation.PreDestroy;
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+import org.jclouds.blobstore.ContainerNotFoundException;
+import org.jclouds.blobstore.LocalStorageStrategy;
+import org.jclouds.blobstore.domain.Blob;
+import org.jclouds.blobstore.domain.BlobAccess;
+import org.jclouds.blobstore.domain.ContainerAccess;
+import org.jclouds.blobstore.domain.MutableBlobMetadata;
+import org.jclouds.blobstore.domain.MutableStorageMetadata;
+import org.jclouds.blobstore.domain.StorageMetadata;
+import org.jclouds.blobstore.domain.StorageType;
+import org.jclouds.blobstore.domain.internal.BlobImpl;
+import org.jclouds.blobstore.domain.internal.MutableStorageMetadataImpl;
+import org.jclouds.blobstore.options.CreateContainerOptions;
+import org.jclouds.blobstore.options.ListContainerOptions;
+import org.jclouds.blobstore.util.BlobStoreUtils;
+import org.jclouds.domain.Location;
+import org.jclouds.http.HttpUtils;
+import org.jclouds.io.Payload;
+import org.jclouds.io.Payloads;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+import com.google.common.hash.HashingInputStream;
+import com.google.common.io.ByteSource;
+import com.google.common.io.ByteStreams;
+
+/**
+ * Storage of the "offheap" blobstore, which keeps payloads outside of the Java heap so that gigabytes of archives
+ * neither lengthen garbage collections nor exhaust the heap. A payload is copied into chunks of direct memory until
+ * the store holds {@code jclouds.offheap.max-memory} bytes, and the rest of it is written to a file in the spill
+ * directory that is mapped into memory, which leaves its caching to the page cache. Reads and ranges are views of
+ * these buffers.
+ * <p>
+ * Memory is not left to the garbage collector. Chunks are cut from slabs that are allocated once and reused, and each
+ * blob counts its open streams: when a removed blob has no readers left, its chunks return to the pool and its spill
+ * file is unmapped and deleted. A stream that is dropped without being closed or read to the end is only noticed
+ * after the garbage collector finds it, the next time a blob is stored or read, so until then it holds its blob.
+ */
+@Singleton
+final class OffHeapStorageStrategy implements LocalStorageStrategy {
+    private static final Logger logger = LoggerFactory.getLogger(OffHeapStorageStrategy.class);
+    /** Buffers are indexed by int, so a spill file is mapped in pieces of at most this size. */
+    private static final long MAX_MAPPING = 1L << 30;
+    /** Chunks are allocated this many at a time. */
+    private static final int SLAB_CHUNKS = 64;
+    private static final Consumer<ByteBuffer> UNMAPPER = unmapper();
+
+    private final ConcurrentMap<String, Container> containers = new ConcurrentHashMap<>();
+    private final long maxMemory;
+    private final String configuredSpillDirectory;
+    /** The free chunks, guarded by itself. */
+    private final Deque<ByteBuffer> freeChunks = new ArrayDeque<>();
+    private long allocatedBytes;
+    private final AtomicLong memoryBytes = new AtomicLong();
+    private final AtomicLong spilledBytes = new AtomicLong();
+    /** Streams that were collected while still holding a reference to their allocation. */
+    private final ReferenceQueue<BufferInputStream> leakedStreams = new ReferenceQueue<>();
+    /** The references of the open streams, which are only enqueued while they are reachable. */
+    private final Set<StreamReference> openStreams = ConcurrentHashMap.newKeySet();
+    private Path spillDirectory;
+    private boolean temporarySpillDirectory;
+
+    /**
+     * @param spillDirectory directory of the spill files, or an empty string for a temporary directory
+     */
+    @Inject
+    OffHeapStorageStrategy(@Named(GlacierProxyConstants.PROPERTY_OFFHEAP_MAX_MEMORY) long maxMemory,
+                           @Named(GlacierProxyConstants.PROPERTY_OFFHEAP_SPILL_DIRECTORY) String spillDirectory) {
+        this.maxMemory = maxMemory;
+        this.configuredSpillDirectory = spillDirectory;
+    }
+
+    /** @return the bytes of the chunks held by payloads, which are whole chunks */
+    long getMemoryBytes() {
+        return memoryBytes.get();
+    }
+
+    /** @return the bytes of payloads held in spill files */
+    long getSpilledBytes() {
+        return spilledBytes.get();
+    }
+
+    @Override
+    public boolean containerExists(String container) {
+        return containers.containsKey(container);
+    }
+
+    @Override
+    public Collection<String> getAllContainerNames() {
+        return containers.keySet();
+    }
+
+    @Override
+    public boolean createContainerInLocation(String container, Location location, CreateContainerOptions options) {
+        MutableStorageMetadata metadata = new MutableStorageMetadataImpl();
+        metadata.setName(container);
+        metadata.setType(StorageType.CONTAINER);
+        metadata.setLocation(location);
+        metadata.setCreationDate(new Date());
+        return containers.putIfAbsent(container, new Container(metadata, options.isPublicRead() ?
+                ContainerAccess.PUBLIC_READ : ContainerAccess.PRIVATE)) == null;
+    }
+
+    @Override
+    public ContainerAccess getContainerAccess(String container) {
+        return getContainer(container).access;
+    }
+
+    @Override
+    public void setContainerAccess(String container, ContainerAccess access) {
+        getContainer(container).access = access;
+    }
+
+    @Override
+    public void deleteContainer(String container) {
+        Container removed = containers.remove(container);
+        if (removed != null) {
+            clear(removed);
+        }
+    }
+
+    @Override
+    public void clearContainer(String container) {
+        clear(getContainer(container));
+    }
+
+    @Override
+    public void clearContainer(String container, ListContainerOptions options) {
+        // Like the transient blobstore, the options are not honored
+        clearContainer(container);
+    }
+
+    @Override
+    public StorageMetadata getContainerMetadata(String container) {
+        Container found = containers.get(container);
+        return found == null ? null : found.metadata;
+    }
+
+    @Override
+    public boolean blobExists(String container, String key) {
+        Container found = containers.get(container);
+        return found != null && found.blobs.containsKey(key);
+    }
+
+    @Override
+    public Iterable<String> getBlobKeysInsideContainer(String container) {
+        return getContainer(container).blobs.keySet();
+    }
+
+    @Override
+    public Blob getBlob(String container, String key) {
+        Container found = containers.get(container);
+        StoredBlob stored = found == null ? null : found.blobs.get(key);
+        if (stored == null) {
+            return null;
+        }
+        // Callers may change the blob, so it is rebuilt from the stored metadata each time
+        Blob blob = new BlobImpl(BlobStoreUtils.copy(stored.metadata));
+        Payload payload = Payloads.newByteSourcePayload(stored.allocation.content);
+        HttpUtils.copy(stored.metadata.getContentMetadata(), payload.getContentMetadata());
+        blob.setPayload(payload);
+        return blob;
+    }
+
+    @Override
+    public String putBlob(String container, Blob blob) throws IOException {
+        releaseLeakedStreams();
+        Container found = getContainer(container);
+        String key = blob.getMetadata().getName();
+        Allocation allocation = new Allocation();
+        List<ByteBuffer> buffers = new ArrayList<>();
+        long size = 0;
+        boolean stored = false;
+        try {
+            HashCode md5;
+            FileChannel spill = null;
+            try (HashingInputStream in = new HashingInputStream(Hashing.md5(), blob.getPayload().openStream())) {
+                byte[] chunk = new byte[TreeHash.CHUNK_SIZE];
+                int read;
+                while ((read = ByteStreams.read(in, chunk, 0, chunk.length)) > 0) {
+                    size += read;
+                    ByteBuffer buffer = spill == null ? acquireChunk() : null;
+                    if (buffer != null) {
+                        allocation.chunks.add(buffer);
+                        buffer.put(chunk, 0, read).flip();
+                        buffers.add(buffer.asReadOnlyBuffer());
+                        continue;
+                    }
+                    if (spill == null) {
+                        allocation.spillFile = Files.createTempFile(getSpillDirectory(), "blob", ".spill");
+                        spill = FileChannel.open(allocation.spillFile, StandardOpenOption.READ,
+                                StandardOpenOption.WRITE);
+                    }
+                    buffer = ByteBuffer.wrap(chunk, 0, read);
+                    while (buffer.hasRemaining()) {
+                        spill.write(buffer);
+                    }
+                    allocation.spilled += read;
+                }
+                for (long position = 0; position < allocation.spilled; position += MAX_MAPPING) {
+                    MappedByteBuffer mapping = spill.map(FileChannel.MapMode.READ_ONLY, position,
+                            Math.min(MAX_MAPPING, allocation.spilled - position));
+                    allocation.mappings.add(mapping);
+                    buffers.add(mapping);
+                }
+                md5 = in.hash();
+            } finally {
+                if (spill != null) {
+                    spill.close();
+                }
+            }
+            HashCode expected = blob.getPayload().getContentMetadata().getContentMD5AsHashCode();
+            if (expected != null && !expected.equals(md5)) {
+                throw new IOException(String.format("MD5 hash code mismatch, actual: %s expected: %s", md5,
+                        expected));
+            }
+
+            String eTag = base16().lowerCase().encode(md5.asBytes());
+            MutableBlobMetadata metadata = BlobStoreUtils.copy(blob.getMetadata());
+            HttpUtils.copy(blob.getPayload().getContentMetadata(), metadata.getContentMetadata());
+            metadata.getContentMetadata().setContentLength(size);
+            metadata.getContentMetadata().setContentMD5(md5);
+            metadata.setContainer(container);
+            metadata.setUri(URI.create("offheap://" + container + "/" + key));
+            metadata.setLastModified(new Date());
+            metadata.setSize(size);
+            metadata.setETag(eTag);
+            allocation.content = new BufferByteSource(buffers, size, allocation);
+            spilledBytes.addAndGet(allocation.spilled);
+            stored = true;
+            release(found.blobs.put(key, new StoredBlob(metadata, allocation)));
+            found.blobAccess.put(key, BlobAccess.PRIVATE);
+            return eTag;
+        } finally {
+            if (!stored) {
+                allocation.free();
+            }
+        }
+    }
+
+    @Override
+    public void removeBlob(String container, String key) {
+        Container found = containers.get(container);
+        if (found != null) {
+            release(found.blobs.remove(key));
+            found.blobAccess.remove(key);
+        }
+    }
+
+    @Override
+    public BlobAccess getBlobAccess(String container, String key) {
+        return getContainer(container).blobAccess.get(key);
+    }
+
+    @Override
+    public void setBlobAccess(String container, String key, BlobAccess access) {
+        getContainer(container).blobAccess.put(key, access);
+    }
+
+    @Override
+    public Location getLocation(String container) {
+        return getContainer(container).metadata.getLocation();
+    }
+
+    @Override
+    public String getSeparator() {
+        return "/";
+    }
+
+    /** Remove every blob, and the spill directory if it is a temporary one. */
+    @PreDestroy
+    void close() throws IOException {
+        for (String container : containers.keySet()) {
+            deleteContainer(container);
+        }
+        synchronized (this) {
+            if (temporarySpillDirectory) {
+                Files.deleteIfExists(spillDirectory);
+            }
+        }
+    }
+
+    private Container getContainer(String container) {
+        Container found = containers.get(container);
+        if (found == null) {
+            throw new ContainerNotFoundException(container, "not found");
+        }
+        return found;
+    }
+
+    private synchronized Path getSpillDirectory() throws IOException {
+        if (spillDirectory == null) {
+            if (configuredSpillDirectory.isEmpty()) {
+                spillDirectory = Files.createTempDirectory("glacier-proxy-spill");
+                temporarySpillDirectory = true;
+            } else {
+                spillDirectory = Files.createDirectories(Paths.get(configuredSpillDirectory));
+            }
+            logger.info("Spilling payloads beyond {} bytes of memory to {}", maxMemory, spillDirectory);
+        }
+        return spillDirectory;
+    }
+
+    /** @return a cleared chunk of the pool, or null if the chunks in use already reach the limit */
+    private ByteBuffer acquireChunk() {
+        synchronized (freeChunks) {
+            if (freeChunks.isEmpty()) {
+                long chunks = Math.min(SLAB_CHUNKS, (maxMemory - allocatedBytes) / TreeHash.CHUNK_SIZE);
+                if (chunks == 0) {
+                    return null;
+                }
+                ByteBuffer slab = ByteBuffer.allocateDirect((int) chunks * TreeHash.CHUNK_SIZE);
+                for (int i = 0; i < chunks; i++) {
+                    slab.limit((i + 1) * TreeHash.CHUNK_SIZE).position(i * TreeHash.CHUNK_SIZE);
+                    freeChunks.push(slab.slice());
+                }
+                allocatedBytes += slab.capacity();
+            }
+            memoryBytes.addAndGet(TreeHash.CHUNK_SIZE);
+            return freeChunks.pop();
+        }
+    }
+
+    private void releaseChunks(List<ByteBuffer> chunks) {
+        if (chunks.isEmpty()) {
+            return;
+        }
+        synchronized (freeChunks) {
+            for (ByteBuffer chunk : chunks) {
+                chunk.clear();
+                freeChunks.push(chunk);
+            }
+            memoryBytes.addAndGet(-(long) chunks.size() * TreeHash.CHUNK_SIZE);
+        }
+    }
+
+    /** Release the references of the streams that were collected without being closed or read to the end. */
+    void releaseLeakedStreams() {
+        int leaked = 0;
+        Reference<? extends BufferInputStream> reference;
+        while ((reference = leakedStreams.poll()) != null) {
+            if (((StreamReference) reference).release()) {
+                leaked++;
+            }
+        }
+        if (leaked > 0) {
+            logger.warn("Released {} blob streams that were never closed", leaked);
+        }
+    }
+
+    private void clear(Container container) {
+        for (String key : container.blobs.keySet()) {
+            release(container.blobs.remove(key));
+            container.blobAccess.remove(key);
+        }
+    }
+
+    private void release(StoredBlob blob) {
+        if (blob != null) {
+            blob.allocation.release();
+        }
+    }
+
+    /** @return a function that frees a mapping before it is collected, or does nothing if the JVM forbids it */
+    private static Consumer<ByteBuffer> unmapper() {
+        try {
+            // Java 9 and later
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+            Field field = unsafeClass.getDeclaredField("theUnsafe");
+            field.setAccessible(true);
+            Object unsafe = field.get(null);
+            return buffer -> invoke(invokeCleaner, unsafe, buffer);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            // Java 8
+        }
+        try {
+            Method cleaner = Class.forName("sun.nio.ch.DirectBuffer").getMethod("cleaner");
+            Method clean = Class.forName("sun.misc.Cleaner").getMethod("clean");
+            return buffer -> invoke(clean, invoke(cleaner, buffer));
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            logger.warn("Spill files will be unmapped by the garbage collector", e);
+            return buffer -> { };
+        }
+    }
+
+    private static Object invoke(Method method, Object target, Object... args) {
+        try {
+            return method.invoke(target, args);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static final class Container {
+        private final ConcurrentNavigableMap<String, StoredBlob> blobs = new ConcurrentSkipListMap<>();
+        private final Map<String, BlobAccess> blobAccess = new ConcurrentHashMap<>();
+        private final StorageMetadata metadata;
+        private volatile ContainerAccess access;
+
+        Container(StorageMetadata metadata, ContainerAccess access) {
+            this.metadata = metadata;
+            this.access = access;
+        }
+    }
+
+    private static final class StoredBlob {
+        private final MutableBlobMetadata metadata;
+        private final Allocation allocation;
+
+        StoredBlob(MutableBlobMetadata metadata, Allocation allocation) {
+            this.metadata = metadata;
+            this.allocation = allocation;
+        }
+    }
+
+    /**
+     * The memory of a blob, referenced by the store and by each open stream. The last reference frees it, so no
+     * reader ever sees a chunk reused by another blob or an unmapped file.
+     */
+    private final class Allocation {
+        private final AtomicInteger references = new AtomicInteger(1);
+        private final List<ByteBuffer> chunks = new ArrayList<>();
+        private final List<MappedByteBuffer> mappings = new ArrayList<>();
+        private Path spillFile;
+        private long spilled;
+        private ByteSource content;
+
+        /** @return false if the allocation is already freed */
+        boolean retain() {
+            int current;
+            do {
+                current = references.get();
+                if (current == 0) {
+                    return false;
+                }
+            } while (!references.compareAndSet(current, current + 1));
+            return true;
+        }
+
+        void release() {
+            if (references.decrementAndGet() == 0) {
+                spilledBytes.addAndGet(-spilled);
+                free();
+            }
+        }
+
+        /** @return a stream of buffers of this allocation, which holds a reference until it is done with them */
+        InputStream openStream(ByteBuffer[] buffers) throws IOException {
+            releaseLeakedStreams();
+            if (!retain()) {
+                throw new IOException("Blob was removed");
+            }
+            BufferInputStream stream = new BufferInputStream(buffers);
+            stream.reference = new StreamReference(stream, this);
+            return stream;
+        }
+
+        void free() {
+            releaseChunks(chunks);
+            mappings.forEach(UNMAPPER);
+            if (spillFile != null) {
+                try {
+                    Files.deleteIfExists(spillFile);
+                } catch (IOException e) {
+                    logger.warn("Failed to delete spill file {}", spillFile, e);
+                }
+            }
+        }
+    }
+
+    /**
+     * The content of a blob as a sequence of read-only buffers. LocalBlobStore serves ranges with
+     * {@link ByteSource#slice}, which only narrows the buffers here.
+     */
+    static final class BufferByteSource extends ByteSource {
+        private final ByteBuffer[] buffers;
+        private final long size;
+        private final Allocation allocation;
+
+        BufferByteSource(List<ByteBuffer> buffers, long size, Allocation allocation) {
+            this.buffers = buffers.toArray(new ByteBuffer[buffers.size()]);
+            this.size = size;
+            this.allocation = allocation;
+        }
+
+        @Override
+        public long size() {
+            return size;
+        }
+
+        @Override
+        public InputStream openStream() throws IOException {
+            return allocation.openStream(buffers);
+        }
+
+        @Override
+        public ByteSource slice(long offset, long length) {
+            if (offset < 0 || length < 0) {
+                throw new IllegalArgumentException(String.format("Invalid slice %d+%d", offset, length));
+            }
+            // The length is often Long.MAX_VALUE, for the rest of the content
+            long end = length > size - offset ? size : offset + length;
+            List<ByteBuffer> sliced = new ArrayList<>();
+            long position = 0;
+            for (ByteBuffer buffer : buffers) {
+                long bufferEnd = position + buffer.remaining();
+                if (bufferEnd > offset && position < end) {
+                    ByteBuffer slice = buffer.duplicate();
+                    slice.position(slice.position() + (int) (Math.max(offset, position) - position));
+                    slice.limit(slice.limit() - (int) (bufferEnd - Math.min(end, bufferEnd)));
+                    sliced.add(slice.slice());
+                }
+                position = bufferEnd;
+            }
+            return new BufferByteSource(sliced, Math.max(0, end - Math.min(offset, end)), allocation);
+        }
+    }
+
+    /**
+     * The reference of a stream to its allocation, released when the stream is closed or reaches the end, or else
+     * once the stream is collected.
+     */
+    private final class StreamReference extends PhantomReference<BufferInputStream> {
+        private final Allocation allocation;
+        private final AtomicBoolean released = new AtomicBoolean();
+
+        StreamReference(BufferInputStream stream, Allocation allocation) {
+            super(stream, leakedStreams);
+            this.allocation = allocation;
+            openStreams.add(this);
+        }
+
+        /** @return false if the reference was already released */
+        boolean release() {
+            if (!released.compareAndSet(false, true)) {
+                return false;
+            }
+            openStreams.remove(this);
+            allocation.release();
+            return true;
+        }
+    }
+
+    /** A stream that holds a reference to the allocation until it is closed or reaches the end. */
+    private static final class BufferInputStream extends InputStream {
+        private final ByteBuffer[] buffers;
+        private StreamReference reference;
+        private int index = -1;
+        private ByteBuffer current;
+
+        BufferInputStream(ByteBuffer[] buffers) {
+            this.buffers = buffers;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (!advance()) {
+                return -1;
+            }
+            return current.get() & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (!advance()) {
+                return -1;
+            }
+            int count = Math.min(len, current.remaining());
+            current.get(b, off, count);
+            return count;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = 0;
+            while (skipped < n && advance()) {
+                int count = (int) Math.min(n - skipped, current.remaining());
+                current.position(current.position() + count);
+                skipped += count;
+            }
+            return skipped;
+        }
+
+        @Override
+        public int available() {
+            return current == null ? 0 : current.remaining();
+        }
+
+        @Override
+        public void close() {
+            if (reference != null) {
+                reference.release();
+                reference = null;
+                current = null;
+            }
+        }
+
+        /** @return whether a buffer with remaining bytes is current */
+        private boolean advance() throws IOException {
+            if (reference == null) {
+                if (index == buffers.length) {
+                    return false;
+                }
+                throw new IOException("Stream closed");
+            }
+            while (current == null || !current.hasRemaining()) {
+                if (index + 1 >= buffers.length) {
+                    // The buffers are not read again
+                    index = buffers.length;
+                    close();
+                    return false;
+                }
+                current = buffers[++index].duplicate();
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,173 @@
+package com.bouncestorage.glacierproxy;
+
+import java.util.AbstractMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The resource and parameters of a request path such as {@code /{account}/vaults/{vault}/jobs/{job}/output}, parsed in
+ * a single pass over its segments. Handlers read the parameters through the Map interface under the keys "account",
+ * "vault" and "archive", "job" or "upload"; the holder is the only object allocated to route a request besides the
+ * parameter strings.
+ */
+final class PathParameters extends AbstractMap<String, String> {
+    enum Resource {
+        VAULTS(null),
+        ARCHIVES("archive"),
+        JOBS("job"),
+        MULTIPART_UPLOADS("upload");
+
+        private final String idKey;
+
+        Resource(String idKey) {
+            this.idKey = idKey;
+        }
+    }
+
+    private static final String VAULTS = "/vaults";
+    private static final int ACCOUNT_ID_LENGTH = 12;
+
+    private final Resource resource;
+    private final String account;
+    private final String vault;
+    private final String id;
+
+    private PathParameters(Resource resource, String account, String vault, String id) {
+        this.resource = resource;
+        this.account = account;
+        this.vault = vault;
+        this.id = id;
+    }
+
+    /**
+     * @return the parameters of the path, or null if it does not name a resource of the Glacier API
+     */
+    static PathParameters parse(String path) {
+        if (path.isEmpty() || path.charAt(0) != '/') {
+            return null;
+        }
+        // Callers may specify "-" and expect the account to be looked up from the credentials
+        int end = segmentEnd(path, 1);
+        if (!isAccount(path, 1, end) || !path.startsWith(VAULTS, end)) {
+            return null;
+        }
+        String account = path.substring(1, end);
+        int start = end + VAULTS.length();
+        if (start == path.length()) {
+            return new PathParameters(Resource.VAULTS, account, null, null);
+        }
+        if (path.charAt(start) != '/') {
+            return null;
+        }
+        end = segmentEnd(path, ++start);
+        if (!isName(path, start, end, true)) {
+            return null;
+        }
+        String vault = path.substring(start, end);
+        if (end == path.length()) {
+            return new PathParameters(Resource.VAULTS, account, vault, null);
+        }
+        start = end + 1;
+        end = segmentEnd(path, start);
+        Resource resource;
+        if (isSegment(path, start, end, "archives")) {
+            resource = Resource.ARCHIVES;
+        } else if (isSegment(path, start, end, "jobs")) {
+            resource = Resource.JOBS;
+        } else if (isSegment(path, start, end, "multipart-uploads")) {
+            resource = Resource.MULTIPART_UPLOADS;
+        } else {
+            return null;
+        }
+        if (end == path.length()) {
+            return new PathParameters(resource, account, vault, null);
+        }
+        start = end + 1;
+        end = segmentEnd(path, start);
+        if (!isName(path, start, end, false)) {
+            return null;
+        }
+        String id = path.substring(start, end);
+        // Only the output of a job is below its resource
+        if (end != path.length() && (resource != Resource.JOBS || !isSegment(path, end + 1, path.length(),
+                "output"))) {
+            return null;
+        }
+        return new PathParameters(resource, account, vault, id);
+    }
+
+    Resource getResource() {
+        return resource;
+    }
+
+    @Override
+    public String get(Object key) {
+        if ("account".equals(key)) {
+            return account;
+        } else if ("vault".equals(key)) {
+            return vault;
+        } else if (resource.idKey != null && resource.idKey.equals(key)) {
+            return id;
+        }
+        return null;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return get(key) != null;
+    }
+
+    @Override
+    public Set<Map.Entry<String, String>> entrySet() {
+        Map<String, String> map = new LinkedHashMap<>();
+        map.put("account", account);
+        if (vault != null) {
+            map.put("vault", vault);
+        }
+        if (id != null) {
+            map.put(resource.idKey, id);
+        }
+        return map.entrySet();
+    }
+
+    private static int segmentEnd(String path, int start) {
+        int end = path.indexOf('/', start);
+        return end < 0 ? path.length() : end;
+    }
+
+    private static boolean isSegment(String path, int start, int end, String segment) {
+        return end - start == segment.length() && path.startsWith(segment, start);
+    }
+
+    private static boolean isAccount(String path, int start, int end) {
+        if (end - start == 1 && path.charAt(start) == '-') {
+            return true;
+        }
+        if (end - start != ACCOUNT_ID_LENGTH) {
+            return false;
+        }
+        for (int i = start; i < end; i++) {
+            char c = path.charAt(i);
+            if (c < '0' || c > '9') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** Vault names may also contain periods; archive, job and upload IDs may not. */
+    private static boolean isName(String path, int start, int end, boolean allowPeriod) {
+        if (start == end) {
+            return false;
+        }
+        for (int i = start; i < end; i++) {
+            char c = path.charAt(i);
+            if (!((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '-' || c == '_'
+                    || (allowPeriod && c == '.'))) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,185 @@
+package com.bouncestorage.glacierproxy;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+
+/**
+ * Request rate limits per account and per vault, and upload and retrieval bandwidth limits per account, each kept in
+ * a {@link TokenBucket} that holds one second of its rate. Requests over a limit are rejected, as Glacier rejects them
+ * with a ThrottlingException; transfers over a limit are slowed down instead. A rate of 0 disables its limit.
+ * <p>
+ * A full bucket is no different from a new one, so full buckets are swept away once a minute, or sooner when there
+ * are too many, as new buckets are created. Buckets that still have reservations to pay back are kept. Transfers look
+ * their bucket up again whenever they pause, so a transfer never goes on with a bucket that was swept away.
+ */
+final class RateLimits {
+    private static final long MAXIMUM_BUCKETS = 100_000;
+    private static final long SWEEP_PERIOD = TimeUnit.MINUTES.toNanos(1);
+
+    private final long accountRequestRate;
+    private final long vaultRequestRate;
+    private final long uploadRate;
+    private final long retrievalRate;
+    private final ConcurrentMap<String, TokenBucket> accountRequests = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, TokenBucket> vaultRequests = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, TokenBucket> uploads = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, TokenBucket> retrievals = new ConcurrentHashMap<>();
+    private final List<ConcurrentMap<String, TokenBucket>> allBuckets = Arrays.asList(accountRequests,
+            vaultRequests, uploads, retrievals);
+    private final LongSupplier clock;
+    private final AtomicLong nextSweep;
+
+    /**
+     * @param accountRequestRate requests per second per account
+     * @param vaultRequestRate requests per second per vault
+     * @param uploadRate bytes of uploads per second per account
+     * @param retrievalRate bytes of job outputs per second per account
+     * @param clock current time in nanoseconds
+     */
+    RateLimits(long accountRequestRate, long vaultRequestRate, long uploadRate, long retrievalRate,
+               LongSupplier clock) {
+        this.accountRequestRate = accountRequestRate;
+        this.vaultRequestRate = vaultRequestRate;
+        this.uploadRate = uploadRate;
+        this.retrievalRate = retrievalRate;
+        this.clock = clock;
+        this.nextSweep = new AtomicLong(clock.getAsLong() + SWEEP_PERIOD);
+    }
+
+    RateLimits(long accountRequestRate, long vaultRequestRate, long uploadRate, long retrievalRate) {
+        this(accountRequestRate, vaultRequestRate, uploadRate, retrievalRate, System::nanoTime);
+    }
+
+    /**
+     * Count a request against the limits of its account and vault.
+     *
+     * @param vault the vault of the request, or null for requests on the account itself
+     * @return why the request is over a limit, or null if it may proceed
+     */
+    String acquireRequest(String account, String vault) {
+        // A request the vault limit rejects still counts against its account, as it does in Glacier
+        if (accountRequestRate > 0 && !bucket(accountRequests, account, accountRequestRate).tryAcquire(1)) {
+            return "Request rate of the account exceeded; retry the request later";
+        }
+        if (vault != null && vaultRequestRate > 0 &&
+                !bucket(vaultRequests, account + '/' + vault, vaultRequestRate).tryAcquire(1)) {
+            return "Request rate of vault " + vault + " exceeded; retry the request later";
+        }
+        return null;
+    }
+
+    /** Wrap the body of an upload so that it is read no faster than the upload rate of the account. */
+    InputStream throttleUpload(String account, InputStream in) {
+        if (uploadRate <= 0) {
+            return in;
+        }
+        return new ThrottledInputStream(in, () -> bucket(uploads, account, uploadRate));
+    }
+
+    /** Wrap the body of a job output so that it is written no faster than the retrieval rate of the account. */
+    OutputStream throttleRetrieval(String account, OutputStream out) {
+        if (retrievalRate <= 0) {
+            return out;
+        }
+        return new ThrottledOutputStream(out, () -> bucket(retrievals, account, retrievalRate));
+    }
+
+    /** @return the number of buckets, full or not */
+    long getBucketCount() {
+        return allBuckets.stream().mapToLong(ConcurrentMap::size).sum();
+    }
+
+    /** Remove the full buckets, which are created anew when their account or vault returns. */
+    void sweep() {
+        for (ConcurrentMap<String, TokenBucket> buckets : allBuckets) {
+            buckets.values().removeIf(TokenBucket::isFull);
+        }
+    }
+
+    private TokenBucket bucket(ConcurrentMap<String, TokenBucket> buckets, String key, long rate) {
+        // Only the first request of a key goes on to computeIfAbsent
+        TokenBucket bucket = buckets.get(key);
+        if (bucket == null) {
+            long now = clock.getAsLong();
+            long next = nextSweep.get();
+            if ((now - next >= 0 || buckets.size() >= MAXIMUM_BUCKETS) &&
+                    nextSweep.compareAndSet(next, now + SWEEP_PERIOD)) {
+                sweep();
+            }
+            bucket = buckets.computeIfAbsent(key, k -> new TokenBucket(rate, rate, clock));
+        }
+        return bucket;
+    }
+
+    private static void pause(Supplier<TokenBucket> bucket, long bytes) throws InterruptedIOException {
+        long nanos = bucket.get().reserve(bytes);
+        if (nanos > 0) {
+            try {
+                TimeUnit.NANOSECONDS.sleep(nanos);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while shaping a transfer");
+            }
+        }
+    }
+
+    private static final class ThrottledInputStream extends FilterInputStream {
+        private final Supplier<TokenBucket> bucket;
+
+        ThrottledInputStream(InputStream in, Supplier<TokenBucket> bucket) {
+            super(in);
+            this.bucket = bucket;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = in.read();
+            if (b != -1) {
+                pause(bucket, 1);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = in.read(b, off, len);
+            if (n > 0) {
+                pause(bucket, n);
+            }
+            return n;
+        }
+    }
+
+    private static final class ThrottledOutputStream extends FilterOutputStream {
+        private final Supplier<TokenBucket> bucket;
+
+        ThrottledOutputStream(OutputStream out, Supplier<TokenBucket> bucket) {
+            super(out);
+            this.bucket = bucket;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            pause(bucket, 1);
+            out.write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            pause(bucket, len);
+            out.write(b, off, len);
+        }
+    }
+}
@@ -0,0 +1,342 @@
+package com.bouncestorage.glacierproxy;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URI;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import com.google.common.base.Splitter;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.hash.Hashing;
+import com.google.common.io.BaseEncoding;
+import com.google.common.io.ByteStreams;
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+
+/**
+ * Verifies the AWS Signature Version 4 of requests against a set of access and secret keys. The signing key derived
+ * from a secret key is cached per date, region and service, so a request costs two SHA-256 hashes and one HMAC.
+ * Uploads are signed with their x-amz-content-sha256 header, which {@link TreeHashingInputStream} then checks against
+ * the body as it is streamed; the small bodies of other requests are read and hashed here.
+ */
+final class RequestAuthenticator {
+    static final String ALGORITHM = "AWS4-HMAC-SHA256";
+    static final String DATE_HEADER = "x-amz-date";
+    static final String CONTENT_HASH_HEADER = "x-amz-content-sha256";
+    static final DateTimeFormatter DATE_FORMAT = DateTimeFormatter.ofPattern("yyyyMMdd'T'HHmmss'Z'");
+
+    private static final String HMAC = "HmacSHA256";
+    private static final String TERMINATOR = "aws4_request";
+    private static final String EMPTY_PAYLOAD_HASH = Hashing.sha256().hashBytes(new byte[0]).toString();
+    // Glacier rejects requests signed more than 15 minutes away from its clock
+    private static final long MAX_SKEW = TimeUnit.MINUTES.toMillis(15);
+    // Bodies of requests other than uploads are JSON documents of a few hundred bytes
+    private static final int MAX_SIGNED_BODY = 1024 * 1024;
+    private static final Splitter AUTHORIZATION_SPLITTER = Splitter.on(',').trimResults();
+    private static final Splitter SEMICOLON_SPLITTER = Splitter.on(';');
+
+    private final Map<String, String> credentials;
+    private final LongSupplier clock;
+    // Signing keys by the Credential of the Authorization header: access key, date, region, service and terminator
+    private final Cache<String, byte[]> signingKeys = CacheBuilder.newBuilder().maximumSize(1024).build();
+
+    /**
+     * @param credentials secret keys by access key
+     * @param clock current time in milliseconds
+     */
+    RequestAuthenticator(Map<String, String> credentials, LongSupplier clock) {
+        this.credentials = ImmutableMap.copyOf(credentials);
+        this.clock = clock;
+    }
+
+    RequestAuthenticator(Map<String, String> credentials) {
+        this(credentials, System::currentTimeMillis);
+    }
+
+    /**
+     * Parse credentials written as comma-separated {@code access-key:secret-key} pairs.
+     */
+    static Map<String, String> parseCredentials(String value) {
+        return Splitter.on(',').trimResults().omitEmptyStrings().withKeyValueSeparator(':').split(value);
+    }
+
+    /**
+     * Verify the signature of a request, and send the error if it does not match.
+     *
+     * @return whether the request may proceed
+     */
+    boolean authenticate(HttpExchange httpExchange, PathParameters parameters) throws IOException {
+        String payloadHash;
+        if (isUpload(httpExchange.getRequestMethod(), parameters)) {
+            payloadHash = httpExchange.getRequestHeaders().getFirst(CONTENT_HASH_HEADER);
+            if (payloadHash == null) {
+                Util.sendBadRequest("Missing content or tree hash", httpExchange);
+                return false;
+            }
+        } else {
+            // The handler reads the body again from the buffer
+            byte[] body = ByteStreams.toByteArray(ByteStreams.limit(httpExchange.getRequestBody(),
+                    MAX_SIGNED_BODY + 1));
+            if (body.length > MAX_SIGNED_BODY) {
+                Util.sendBadRequest("Request body too large", httpExchange);
+                return false;
+            }
+            if (body.length == 0) {
+                payloadHash = EMPTY_PAYLOAD_HASH;
+            } else {
+                payloadHash = Hashing.sha256().hashBytes(body).toString();
+                httpExchange.setStreams(new ByteArrayInputStream(body), null);
+            }
+        }
+        try {
+            verify(httpExchange.getRequestMethod(), httpExchange.getRequestURI(), httpExchange.getRequestHeaders(),
+                    payloadHash);
+            return true;
+        } catch (SignatureException e) {
+            Util.sendAccessDenied(e.getCode(), e.getMessage(), httpExchange);
+            return false;
+        }
+    }
+
+    /** Archive uploads and upload parts, whose bodies are hashed as they are stored. */
+    private static boolean isUpload(String method, PathParameters parameters) {
+        switch (parameters.getResource()) {
+            case ARCHIVES:
+                return method.equals("POST");
+            case MULTIPART_UPLOADS:
+                return method.equals("PUT") && parameters.get("upload") != null;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * @param payloadHash hex SHA-256 of the request body
+     * @throws SignatureException if the request is not signed by one of the credentials
+     */
+    void verify(String method, URI uri, Headers headers, String payloadHash) throws SignatureException {
+        String authorization = headers.getFirst("Authorization");
+        if (authorization == null) {
+            throw new SignatureException("MissingAuthenticationTokenException", "Missing Authentication Token");
+        }
+        if (!authorization.startsWith(ALGORITHM + " ")) {
+            throw new SignatureException("IncompleteSignatureException",
+                    "Unsupported signature algorithm; expected " + ALGORITHM);
+        }
+        String credential = null;
+        String signedHeaders = null;
+        String signature = null;
+        for (String field : AUTHORIZATION_SPLITTER.split(authorization.substring(ALGORITHM.length() + 1))) {
+            if (field.startsWith("Credential=")) {
+                credential = field.substring("Credential=".length());
+            } else if (field.startsWith("SignedHeaders=")) {
+                signedHeaders = field.substring("SignedHeaders=".length());
+            } else if (field.startsWith("Signature=")) {
+                signature = field.substring("Signature=".length());
+            }
+        }
+        if (credential == null || signedHeaders == null || signature == null) {
+            throw new SignatureException("IncompleteSignatureException",
+                    "Authorization header requires Credential, SignedHeaders and Signature");
+        }
+        // access-key/date/region/service/aws4_request
+        String[] scope = credential.split("/", -1);
+        if (scope.length != 5 || !scope[4].equals(TERMINATOR)) {
+            throw new SignatureException("IncompleteSignatureException", "Malformed credential scope " + credential);
+        }
+        String secretKey = credentials.get(scope[0]);
+        if (secretKey == null) {
+            throw new SignatureException("UnrecognizedClientException",
+                    "The security token included in the request is invalid");
+        }
+        String date = headers.getFirst(DATE_HEADER);
+        if (date == null || !SEMICOLON_SPLITTER.splitToList(signedHeaders).contains("host")) {
+            throw new SignatureException("IncompleteSignatureException",
+                    "Requests must carry a signed x-amz-date header and sign the host header");
+        }
+        checkDate(date, scope[1]);
+
+        String canonicalRequest = canonicalRequest(method, uri, headers, signedHeaders, payloadHash);
+        String stringToSign = ALGORITHM + '\n' + date + '\n' + credential.substring(scope[0].length() + 1) + '\n' +
+                Hashing.sha256().hashString(canonicalRequest, StandardCharsets.UTF_8);
+        byte[] expected = hmac(signingKey(credential, secretKey, scope), stringToSign);
+        byte[] provided;
+        try {
+            provided = BaseEncoding.base16().lowerCase().decode(signature);
+        } catch (IllegalArgumentException e) {
+            provided = new byte[0];
+        }
+        // Compare in constant time, so that the time taken does not reveal how much of the signature matches
+        if (!MessageDigest.isEqual(expected, provided)) {
+            throw new SignatureException("InvalidSignatureException", "The request signature we calculated does " +
+                    "not match the signature you provided. Check your AWS Secret Access Key and signing method.");
+        }
+    }
+
+    private void checkDate(String date, String scopeDate) throws SignatureException {
+        long time;
+        try {
+            time = LocalDateTime.parse(date, DATE_FORMAT).toInstant(ZoneOffset.UTC).toEpochMilli();
+        } catch (DateTimeParseException e) {
+            throw new SignatureException("IncompleteSignatureException", "Malformed x-amz-date " + date);
+        }
+        if (!date.startsWith(scopeDate) || scopeDate.length() != 8) {
+            throw new SignatureException("InvalidSignatureException",
+                    "Credential should be scoped to a valid date: " + date.substring(0, 8));
+        }
+        if (Math.abs(clock.getAsLong() - time) > MAX_SKEW) {
+            throw new SignatureException("InvalidSignatureException", "Signature expired: " + date +
+                    " is more than 15 minutes away from the current time");
+        }
+    }
+
+    private byte[] signingKey(String credential, String secretKey, String[] scope) throws SignatureException {
+        try {
+            return signingKeys.get(credential, () -> {
+                byte[] key = hmac(("AWS4" + secretKey).getBytes(StandardCharsets.UTF_8), scope[1]);
+                key = hmac(key, scope[2]);
+                key = hmac(key, scope[3]);
+                return hmac(key, TERMINATOR);
+            });
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    private static String canonicalRequest(String method, URI uri, Headers headers, String signedHeaders,
+            String payloadHash) {
+        StringBuilder builder = new StringBuilder(256);
+        builder.append(method).append('\n');
+        encode(builder, uri.getPath(), false);
+        builder.append('\n');
+        appendCanonicalQuery(builder, uri.getRawQuery());
+        builder.append('\n');
+        for (String name : SEMICOLON_SPLITTER.split(signedHeaders)) {
+            builder.append(name).append(':');
+            List<String> values = headers.get(name);
+            if (values != null) {
+                for (int i = 0; i < values.size(); i++) {
+                    if (i > 0) {
+                        builder.append(',');
+                    }
+                    appendTrimmed(builder, values.get(i));
+                }
+            }
+            builder.append('\n');
+        }
+        builder.append('\n').append(signedHeaders).append('\n').append(payloadHash);
+        return builder.toString();
+    }
+
+    private static void appendCanonicalQuery(StringBuilder builder, String rawQuery) {
+        if (rawQuery == null || rawQuery.isEmpty()) {
+            return;
+        }
+        List<String> parameters = new ArrayList<>();
+        for (String parameter : Splitter.on('&').omitEmptyStrings().split(rawQuery)) {
+            int equals = parameter.indexOf('=');
+            String name = equals < 0 ? parameter : parameter.substring(0, equals);
+            String value = equals < 0 ? "" : parameter.substring(equals + 1);
+            StringBuilder encoded = new StringBuilder();
+            encode(encoded, decode(name), true);
+            encoded.append('=');
+            encode(encoded, decode(value), true);
+            parameters.add(encoded.toString());
+        }
+        Collections.sort(parameters);
+        for (int i = 0; i < parameters.size(); i++) {
+            if (i > 0) {
+                builder.append('&');
+            }
+            builder.append(parameters.get(i));
+        }
+    }
+
+    private static String decode(String component) {
+        try {
+            // URLDecoder decodes form data, in which a plus is a space; in a query string it is a plus
+            return URLDecoder.decode(component.replace("+", "%2B"), StandardCharsets.UTF_8.name());
+        } catch (UnsupportedEncodingException | IllegalArgumentException e) {
+            return component;
+        }
+    }
+
+    /** URI-encode all but the unreserved characters, and slashes unless {@code encodeSlash} is set. */
+    private static void encode(StringBuilder builder, String value, boolean encodeSlash) {
+        for (byte b : value.getBytes(StandardCharsets.UTF_8)) {
+            char c = (char) (b & 0xff);
+            if ((c >= 'A' && c <= 'Z') || (c >= 'a' && c <= 'z') || (c >= '0' && c <= '9') || c == '-' ||
+                    c == '_' || c == '.' || c == '~' || (c == '/' && !encodeSlash)) {
+                builder.append(c);
+            } else {
+                builder.append('%').append(Character.toUpperCase(Character.forDigit(c >> 4, 16)))
+                        .append(Character.toUpperCase(Character.forDigit(c & 0xf, 16)));
+            }
+        }
+    }
+
+    /** Append a header value with its surrounding whitespace removed and inner runs of spaces collapsed. */
+    private static void appendTrimmed(StringBuilder builder, String value) {
+        String trimmed = value.trim();
+        boolean space = false;
+        for (int i = 0; i < trimmed.length(); i++) {
+            char c = trimmed.charAt(i);
+            if (c == ' ') {
+                if (!space) {
+                    builder.append(c);
+                }
+                space = true;
+            } else {
+                builder.append(c);
+                space = false;
+            }
+        }
+    }
+
+    private static byte[] hmac(byte[] key, String data) {
+        try {
+            Mac mac = Mac.getInstance(HMAC);
+            mac.init(new SecretKeySpec(key, HMAC));
+            return mac.doFinal(data.getBytes(StandardCharsets.UTF_8));
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /** A request that is not signed by one of the credentials, with the Glacier error code to answer it with. */
+    static final class SignatureException extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        private final String code;
+
+        SignatureException(String code, String message) {
+            // Signature failures are answered, not debugged, so skip the stack trace
+            super(message, null, false, false);
+            this.code = code;
+        }
+
+        String getCode() {
+            return code;
+        }
+    }
+}
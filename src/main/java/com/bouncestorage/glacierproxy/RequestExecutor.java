@@ -0,0 +1,113 @@
+package com.bouncestorage.glacierproxy;
+
+import java.lang.reflect.InvocationTargetException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Executor handed to the HttpServer. Requests run on worker threads; once the number of admitted requests exceeds the
+ * worker count plus the queue limit, further requests are run on a separate thread that only answers them with a
+ * throttling error (see {@link #isRejected()}).
+ */
+final class RequestExecutor implements Executor {
+    private static final Logger logger = LoggerFactory.getLogger(RequestExecutor.class);
+    private static final ThreadLocal<Boolean> REJECTED = new ThreadLocal<>();
+    private static final int REJECTION_QUEUE_SIZE = 64;
+
+    private final ExecutorService workers;
+    private final ExecutorService rejections;
+    private final int maxInFlight;
+    private final AtomicInteger inFlight = new AtomicInteger();
+
+    RequestExecutor(String type, int threads, int maxQueued) {
+        this.workers = createWorkers(type, threads);
+        // Throttled requests are cheap to answer. If even this queue fills up, the dispatcher answers them itself.
+        this.rejections = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(REJECTION_QUEUE_SIZE), namedThreadFactory("glacier-proxy-throttle"),
+                new ThreadPoolExecutor.CallerRunsPolicy());
+        this.maxInFlight = threads + maxQueued;
+    }
+
+    /**
+     * @return true if the current request was not admitted to the worker pool and must be answered with a throttling
+     * error.
+     */
+    static boolean isRejected() {
+        return REJECTED.get() != null;
+    }
+
+    @Override
+    public void execute(Runnable command) {
+        if (inFlight.incrementAndGet() > maxInFlight) {
+            inFlight.decrementAndGet();
+            rejections.execute(() -> {
+                REJECTED.set(Boolean.TRUE);
+                try {
+                    command.run();
+                } finally {
+                    REJECTED.remove();
+                }
+            });
+            return;
+        }
+        workers.execute(() -> {
+            try {
+                command.run();
+            } finally {
+                inFlight.decrementAndGet();
+            }
+        });
+    }
+
+    int getInFlight() {
+        return inFlight.get();
+    }
+
+    /** @return the number of requests waiting for a worker thread */
+    int getQueueDepth() {
+        if (workers instanceof ThreadPoolExecutor) {
+            return ((ThreadPoolExecutor) workers).getQueue().size();
+        }
+        // Virtual threads never wait for a worker
+        return 0;
+    }
+
+    void shutdown() {
+        workers.shutdown();
+        rejections.shutdown();
+    }
+
+    private static ExecutorService createWorkers(String type, int threads) {
+        if (type.equals("virtual")) {
+            try {
+                return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+            } catch (NoSuchMethodException | IllegalAccessException | InvocationTargetException e) {
+                logger.warn("Virtual threads are not supported by this JVM; using {} platform threads", threads);
+            }
+        } else if (!type.equals("fixed")) {
+            throw new IllegalArgumentException("Unknown worker type " + type);
+        }
+        // The queue is unbounded because admission is already limited in execute()
+        return new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(),
+                namedThreadFactory("glacier-proxy-worker"));
+    }
+
+    static ThreadFactory namedThreadFactory(String prefix) {
+        AtomicInteger counter = new AtomicInteger();
+        return runnable -> {
+            Thread thread = new Thread(runnable, prefix + "-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+}
@@ -0,0 +1,509 @@
+package com.bouncestorage.glacierproxy;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+import org.jclouds.blobstore.domain.MultipartUpload;
+import org.jclouds.blobstore.domain.internal.BlobBuilderImpl;
+import org.jclouds.blobstore.options.PutOptions;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.io.BaseEncoding;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+
+/**
+ * Jobs and in-progress multipart uploads, kept in sorted in-memory maps and made durable by a write-ahead log of JSON
+ * records in the data directory. Every change is appended to the log before it is applied to the maps and synced before
+ * it is acknowledged, and the log is replayed when the proxy starts, so clients can keep polling their jobs and
+ * uploading parts across a restart.
+ *
+ * A job is logged in full whenever it changes, so the log accumulates superseded records, as do removed jobs and
+ * uploads; it is compacted to one record per job and upload when the superseded records outnumber the live ones.
+ */
+final class StateStore {
+    private static final Logger logger = LoggerFactory.getLogger(StateStore.class);
+    private static final int MIN_COMPACTION_RECORDS = 1024;
+    private static final String RECORD_JOB = "job";
+    private static final String RECORD_REMOVE_JOB = "remove-job";
+    private static final String RECORD_UPLOAD = "upload";
+    private static final String RECORD_PART = "part";
+    private static final String RECORD_REMOVE_PART = "remove-part";
+    private static final String RECORD_REMOVE_UPLOAD = "remove-upload";
+
+    private final Path path;
+    private final ConcurrentMap<String, ConcurrentNavigableMap<UUID, JsonObject>> jobs = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, ConcurrentNavigableMap<UUID, Multipart.Upload>> uploads =
+            new ConcurrentHashMap<>();
+    // Gauges of the uploads that are neither completed nor aborted, and of the bytes of their parts in the backend
+    private final AtomicLong uploadCount = new AtomicLong();
+    private final AtomicLong partBytes = new AtomicLong();
+    private final Object syncLock = new Object();
+    // Sequence numbers of the last record written to the log, under the lock of the store, and of the last one synced
+    private volatile long written;
+    private final AtomicLong synced = new AtomicLong();
+    private volatile FileChannel channel;
+    private int liveRecords;
+    private int deadRecords;
+
+    StateStore(Path path) throws IOException {
+        this.path = path;
+        Files.createDirectories(path.getParent());
+        if (Files.exists(path)) {
+            replay();
+        }
+        boolean created = !Files.exists(path);
+        channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.APPEND);
+        if (created) {
+            Util.syncDirectory(path.getParent());
+        }
+        if (deadRecords > liveRecords) {
+            compact();
+        }
+    }
+
+    NavigableMap<UUID, JsonObject> getJobs(String vault) {
+        return jobs.get(vault);
+    }
+
+    NavigableMap<UUID, Multipart.Upload> getUploads(String vault) {
+        return uploads.get(vault);
+    }
+
+    /** @return every vault that has uploads, with its uploads */
+    Map<String, ? extends NavigableMap<UUID, Multipart.Upload>> getAllUploads() {
+        return uploads;
+    }
+
+    long getUploadCount() {
+        return uploadCount.get();
+    }
+
+    long getPartBytes() {
+        return partBytes.get();
+    }
+
+    /** @return every vault that has jobs, with its jobs */
+    Map<String, ? extends NavigableMap<UUID, JsonObject>> getAllJobs() {
+        return jobs;
+    }
+
+    void putJob(String vault, UUID jobId, JsonObject job) throws IOException {
+        byte[] record = encode(jobRecord(vault, jobId, job));
+        long sequence;
+        synchronized (this) {
+            sequence = applyJob(vault, jobId, job, record);
+        }
+        sync(sequence);
+    }
+
+    /**
+     * Apply an update to a copy of the job and replace it, so that concurrent readers always see a consistent job.
+     */
+    void updateJob(String vault, UUID jobId, Consumer<JsonObject> update) throws IOException {
+        long sequence;
+        synchronized (this) {
+            Map<UUID, JsonObject> map = jobs.get(vault);
+            JsonObject job = map == null ? null : map.get(jobId);
+            if (job == null) {
+                return;
+            }
+            JsonObject copy = new JsonObject();
+            for (Map.Entry<String, JsonElement> entry : job.entrySet()) {
+                copy.add(entry.getKey(), entry.getValue());
+            }
+            update.accept(copy);
+            sequence = applyJob(vault, jobId, copy, encode(jobRecord(vault, jobId, copy)));
+        }
+        sync(sequence);
+    }
+
+    private long applyJob(String vault, UUID jobId, JsonObject job, byte[] record) throws IOException {
+        long sequence = append(record);
+        if (jobs.computeIfAbsent(vault, k -> new ConcurrentSkipListMap<>()).put(jobId, job) == null) {
+            liveRecords++;
+        } else {
+            deadRecords++;
+        }
+        maybeCompact();
+        return sequence;
+    }
+
+    void removeJob(String vault, UUID jobId) throws IOException {
+        long sequence;
+        synchronized (this) {
+            Map<UUID, JsonObject> map = jobs.get(vault);
+            if (map == null || !map.containsKey(jobId)) {
+                return;
+            }
+            sequence = append(encode(record(RECORD_REMOVE_JOB, vault, jobId)));
+            map.remove(jobId);
+            // The removal and the job
+            liveRecords--;
+            deadRecords += 2;
+            maybeCompact();
+        }
+        sync(sequence);
+    }
+
+    void putUpload(String vault, UUID uploadId, Multipart.Upload upload) throws IOException {
+        byte[] record = encode(uploadRecord(vault, uploadId, upload));
+        long sequence;
+        synchronized (this) {
+            sequence = append(record);
+            uploads.computeIfAbsent(vault, k -> new ConcurrentSkipListMap<>()).put(uploadId, upload);
+            uploadCount.incrementAndGet();
+            liveRecords++;
+            maybeCompact();
+        }
+        sync(sequence);
+    }
+
+    void addPart(String vault, UUID uploadId, Multipart.Upload upload, Multipart.UploadPart part)
+            throws IOException {
+        // Serializing the leaf hashes of a large part takes longer than writing them, so it is kept out of the lock
+        long now = System.currentTimeMillis();
+        byte[] record = encode(partRecord(vault, uploadId, part, now));
+        long sequence;
+        synchronized (this) {
+            Multipart.UploadPart previous = upload.parts.get(part.getPartNumber());
+            if (previous != null && previous.getSha256TreeHash().equals(part.getSha256TreeHash())
+                    && previous.getSize() == part.getSize()) {
+                // A retried upload of the same part changes nothing
+                upload.lastActivity = now;
+                return;
+            }
+            sequence = append(record);
+            upload.parts.put(part.getPartNumber(), part);
+            upload.lastActivity = now;
+            partBytes.addAndGet(part.getSize() - (previous == null ? 0 : previous.getSize()));
+            if (previous == null) {
+                liveRecords++;
+            } else {
+                deadRecords++;
+            }
+            maybeCompact();
+        }
+        sync(sequence);
+    }
+
+    /** Forget a part whose body was rejected after it reached the backend, so that it is not completed. */
+    void removePart(String vault, UUID uploadId, Multipart.Upload upload, int partNumber) throws IOException {
+        JsonObject record = record(RECORD_REMOVE_PART, vault, uploadId);
+        record.addProperty("partNumber", partNumber);
+        long sequence;
+        synchronized (this) {
+            if (!upload.parts.containsKey(partNumber)) {
+                return;
+            }
+            sequence = append(encode(record));
+            partBytes.addAndGet(-upload.parts.remove(partNumber).getSize());
+            // The removal and the part
+            liveRecords--;
+            deadRecords += 2;
+            maybeCompact();
+        }
+        sync(sequence);
+    }
+
+    void removeUpload(String vault, UUID uploadId) throws IOException {
+        long sequence;
+        synchronized (this) {
+            Map<UUID, Multipart.Upload> map = uploads.get(vault);
+            Multipart.Upload upload = map == null ? null : map.get(uploadId);
+            if (upload == null) {
+                return;
+            }
+            sequence = append(encode(record(RECORD_REMOVE_UPLOAD, vault, uploadId)));
+            map.remove(uploadId);
+            uploadCount.decrementAndGet();
+            partBytes.addAndGet(-upload.getPartBytes());
+            // The removal, the upload and its parts
+            int records = 2 + upload.parts.size();
+            liveRecords -= records - 1;
+            deadRecords += records;
+            maybeCompact();
+        }
+        sync(sequence);
+    }
+
+    synchronized void close() throws IOException {
+        channel.force(false);
+        synced.accumulateAndGet(written, Math::max);
+        channel.close();
+    }
+
+    private void maybeCompact() throws IOException {
+        if (deadRecords > liveRecords && deadRecords >= MIN_COMPACTION_RECORDS) {
+            compact();
+        }
+    }
+
+    /** Rewrite the log with one record per job, upload and part. */
+    private void compact() throws IOException {
+        Path compacted = path.resolveSibling(path.getFileName() + ".compact");
+        int records = 0;
+        try (FileChannel target = FileChannel.open(compacted, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            for (Map.Entry<String, ConcurrentNavigableMap<UUID, JsonObject>> vault : jobs.entrySet()) {
+                for (Map.Entry<UUID, JsonObject> job : vault.getValue().entrySet()) {
+                    write(target, encode(jobRecord(vault.getKey(), job.getKey(), job.getValue())));
+                    records++;
+                }
+            }
+            for (Map.Entry<String, ConcurrentNavigableMap<UUID, Multipart.Upload>> vault : uploads.entrySet()) {
+                for (Map.Entry<UUID, Multipart.Upload> upload : vault.getValue().entrySet()) {
+                    write(target, encode(uploadRecord(vault.getKey(), upload.getKey(), upload.getValue())));
+                    records++;
+                    for (Multipart.UploadPart part : upload.getValue().parts.values()) {
+                        write(target, encode(partRecord(vault.getKey(), upload.getKey(), part,
+                                upload.getValue().lastActivity)));
+                        records++;
+                    }
+                }
+            }
+            // The rename must not reach the disk before the records it points to
+            target.force(true);
+        }
+        channel.close();
+        Files.move(compacted, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        Util.syncDirectory(path.getParent());
+        channel = FileChannel.open(path, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        // The compacted log holds the changes of every record written so far
+        synced.accumulateAndGet(written, Math::max);
+        logger.debug("Compacted {} from {} to {} records", path, liveRecords + deadRecords, records);
+        liveRecords = records;
+        deadRecords = 0;
+    }
+
+    private void replay() throws IOException {
+        long size = Files.size(path);
+        long valid = 0;
+        long position = 0;
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(Files.newInputStream(path),
+                StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                position += line.getBytes(StandardCharsets.UTF_8).length + 1;
+                if (position > size) {
+                    // The record's newline was never written
+                    break;
+                }
+                JsonObject record;
+                try {
+                    record = JsonParser.parseString(line).getAsJsonObject();
+                } catch (JsonParseException | IllegalStateException e) {
+                    break;
+                }
+                apply(record);
+                valid = position;
+            }
+        }
+        // Drop a record that was only partially written when the proxy stopped
+        if (valid < size) {
+            logger.warn("Truncating {} to {} bytes", path, valid);
+            try (FileChannel truncate = FileChannel.open(path, StandardOpenOption.WRITE)) {
+                truncate.truncate(valid);
+            }
+        }
+        logger.info("Recovered {} jobs and {} multipart uploads from {}",
+                jobs.values().stream().mapToInt(Map::size).sum(),
+                uploads.values().stream().mapToInt(Map::size).sum(), path);
+    }
+
+    private void apply(JsonObject record) {
+        String vault = record.get("vault").getAsString();
+        UUID id = UUID.fromString(record.get("id").getAsString());
+        switch (record.get("type").getAsString()) {
+            case RECORD_JOB:
+                if (jobs.computeIfAbsent(vault, k -> new ConcurrentSkipListMap<>())
+                        .put(id, record.getAsJsonObject("job")) == null) {
+                    liveRecords++;
+                } else {
+                    deadRecords++;
+                }
+                break;
+            case RECORD_REMOVE_JOB:
+                Map<UUID, JsonObject> removedJobs = jobs.get(vault);
+                if (removedJobs == null || removedJobs.remove(id) == null) {
+                    deadRecords++;
+                } else {
+                    liveRecords--;
+                    deadRecords += 2;
+                }
+                break;
+            case RECORD_UPLOAD:
+                JsonElement description = record.get("description");
+                MultipartUpload mpu = MultipartUpload.create(vault, record.get("blobName").getAsString(),
+                        record.get("uploadId").getAsString(),
+                        new BlobBuilderImpl().name(record.get("blobName").getAsString()).build().getMetadata(),
+                        new PutOptions());
+                Multipart.Upload upload = new Multipart.Upload(record.get("partSize").getAsLong(),
+                        description == null || description.isJsonNull() ? null : description.getAsString(), mpu,
+                        record.get("creationDate").getAsLong());
+                uploads.computeIfAbsent(vault, k -> new ConcurrentSkipListMap<>()).put(id, upload);
+                uploadCount.incrementAndGet();
+                liveRecords++;
+                break;
+            case RECORD_PART:
+                Map<UUID, Multipart.Upload> partUploads = uploads.get(vault);
+                Multipart.Upload partUpload = partUploads == null ? null : partUploads.get(id);
+                if (partUpload == null) {
+                    deadRecords++;
+                    break;
+                }
+                byte[] leaves = BaseEncoding.base64().decode(record.get("leafHashes").getAsString());
+                List<byte[]> leafHashes = new ArrayList<>();
+                for (int offset = 0; offset < leaves.length; offset += TreeHash.HASH_SIZE) {
+                    byte[] leaf = new byte[TreeHash.HASH_SIZE];
+                    System.arraycopy(leaves, offset, leaf, 0, TreeHash.HASH_SIZE);
+                    leafHashes.add(leaf);
+                }
+                Multipart.UploadPart part = new Multipart.UploadPart(record.get("partNumber").getAsInt(),
+                        record.get("treeHash").getAsString(), record.get("size").getAsLong(), leafHashes);
+                partUpload.lastActivity = Math.max(partUpload.lastActivity, record.get("time").getAsLong());
+                Multipart.UploadPart replaced = partUpload.parts.put(part.getPartNumber(), part);
+                partBytes.addAndGet(part.getSize() - (replaced == null ? 0 : replaced.getSize()));
+                if (replaced == null) {
+                    liveRecords++;
+                } else {
+                    deadRecords++;
+                }
+                break;
+            case RECORD_REMOVE_PART:
+                Map<UUID, Multipart.Upload> removedPartUploads = uploads.get(vault);
+                Multipart.Upload removedPartUpload = removedPartUploads == null ? null : removedPartUploads.get(id);
+                Multipart.UploadPart removedPart = removedPartUpload == null ? null :
+                        removedPartUpload.parts.remove(record.get("partNumber").getAsInt());
+                if (removedPart == null) {
+                    deadRecords++;
+                } else {
+                    partBytes.addAndGet(-removedPart.getSize());
+                    liveRecords--;
+                    deadRecords += 2;
+                }
+                break;
+            case RECORD_REMOVE_UPLOAD:
+                Map<UUID, Multipart.Upload> map = uploads.get(vault);
+                Multipart.Upload removed = map == null ? null : map.remove(id);
+                if (removed != null) {
+                    uploadCount.decrementAndGet();
+                    partBytes.addAndGet(-removed.getPartBytes());
+                }
+                int records = 1 + (removed == null ? 0 : 1 + removed.parts.size());
+                liveRecords -= records - 1;
+                deadRecords += records;
+                break;
+            default:
+                throw new IllegalStateException("Unknown record type in " + path + ": " + record);
+        }
+    }
+
+    private static JsonObject record(String type, String vault, UUID id) {
+        JsonObject record = new JsonObject();
+        record.addProperty("type", type);
+        record.addProperty("vault", vault);
+        record.addProperty("id", id.toString());
+        return record;
+    }
+
+    private static JsonObject jobRecord(String vault, UUID jobId, JsonObject job) {
+        JsonObject record = record(RECORD_JOB, vault, jobId);
+        record.add("job", job);
+        return record;
+    }
+
+    private static JsonObject uploadRecord(String vault, UUID uploadId, Multipart.Upload upload) {
+        JsonObject record = record(RECORD_UPLOAD, vault, uploadId);
+        record.addProperty("description", upload.description);
+        record.addProperty("partSize", upload.partSize);
+        record.addProperty("blobName", upload.jcloudsUpload.blobName());
+        record.addProperty("uploadId", upload.jcloudsUpload.id());
+        record.addProperty("creationDate", upload.creationDate);
+        return record;
+    }
+
+    private static JsonObject partRecord(String vault, UUID uploadId, Multipart.UploadPart part, long time) {
+        JsonObject record = record(RECORD_PART, vault, uploadId);
+        record.addProperty("partNumber", part.getPartNumber());
+        record.addProperty("time", time);
+        record.addProperty("treeHash", part.getSha256TreeHash());
+        record.addProperty("size", part.getSize());
+        byte[] leaves = new byte[part.getLeafHashes().size() * TreeHash.HASH_SIZE];
+        for (int i = 0; i < part.getLeafHashes().size(); i++) {
+            System.arraycopy(part.getLeafHashes().get(i), 0, leaves, i * TreeHash.HASH_SIZE, TreeHash.HASH_SIZE);
+        }
+        record.addProperty("leafHashes", BaseEncoding.base64().encode(leaves));
+        return record;
+    }
+
+    /**
+     * Write a record to the log, without waiting for it to reach the disk.
+     *
+     * @return the sequence number of the record, to {@link #sync} once the lock is released
+     */
+    private long append(byte[] record) throws IOException {
+        write(channel, record);
+        return ++written;
+    }
+
+    /**
+     * Wait until the record with the given sequence number is on disk, so that a change is never acknowledged before
+     * it is durable. Every record written so far is synced at once, so the changes of concurrent requests share a
+     * single sync instead of queueing for one each.
+     */
+    private void sync(long sequence) throws IOException {
+        synchronized (syncLock) {
+            while (synced.get() < sequence) {
+                long target = written;
+                FileChannel current = channel;
+                try {
+                    current.force(false);
+                    synced.accumulateAndGet(target, Math::max);
+                } catch (ClosedChannelException e) {
+                    // A compaction replaced the log, and syncs every record once it completes
+                    synchronized (this) {
+                        if (channel == current) {
+                            throw e;
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    private static byte[] encode(JsonObject record) {
+        return (record.toString() + "\n").getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static void write(FileChannel target, byte[] record) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(record);
+        while (buffer.hasRemaining()) {
+            target.write(buffer);
+        }
+    }
+}
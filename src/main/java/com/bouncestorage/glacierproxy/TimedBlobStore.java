@@ -0,0 +1,51 @@
+package com.bouncestorage.glacierproxy;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Set;
+
+import org.jclouds.blobstore.BlobStore;
+
+import com.google.common.collect.ImmutableSet;
+
+/**
+ * Records the latency of every call to a {@link BlobStore} under the name of the method, and counts the calls that
+ * throw. A call that returns a stream is timed until the stream is returned, not until it is read.
+ */
+final class TimedBlobStore implements InvocationHandler {
+    private static final Set<String> LOCAL_METHODS = ImmutableSet.of("blobBuilder", "getContext");
+
+    private final BlobStore delegate;
+    private final Metrics metrics;
+
+    private TimedBlobStore(BlobStore delegate, Metrics metrics) {
+        this.delegate = delegate;
+        this.metrics = metrics;
+    }
+
+    static BlobStore wrap(BlobStore blobStore, Metrics metrics) {
+        return (BlobStore) Proxy.newProxyInstance(BlobStore.class.getClassLoader(), new Class<?>[] {BlobStore.class},
+                new TimedBlobStore(blobStore, metrics));
+    }
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+        // Builders and the context are local
+        if (method.getDeclaringClass() == Object.class || LOCAL_METHODS.contains(method.getName())) {
+            return method.invoke(delegate, args);
+        }
+        long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            Object result = method.invoke(delegate, args);
+            failed = false;
+            return result;
+        } catch (InvocationTargetException e) {
+            throw e.getCause();
+        } finally {
+            metrics.recordBackendCall(method.getName(), System.nanoTime() - start, failed);
+        }
+    }
+}
@@ -0,0 +1,75 @@
+package com.bouncestorage.glacierproxy;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+/**
+ * A token bucket that refills at a constant rate up to a burst of tokens. The bucket is a single {@link AtomicLong}:
+ * the time at which it would be full again, which is moved forward by a compare-and-set for every acquisition. Threads
+ * never block each other, and a bucket nobody takes from costs nothing.
+ */
+final class TokenBucket {
+    private final double nanosPerToken;
+    // How far in the future the bucket may be full again, which is the time the burst takes to refill
+    private final long burstNanos;
+    private final LongSupplier clock;
+    private final AtomicLong fullAt;
+
+    /**
+     * @param rate tokens added per second
+     * @param burst tokens the bucket holds, which are available at once when it is full
+     */
+    TokenBucket(double rate, double burst, LongSupplier clock) {
+        this.nanosPerToken = TimeUnit.SECONDS.toNanos(1) / rate;
+        this.burstNanos = (long) (burst * nanosPerToken);
+        this.clock = clock;
+        this.fullAt = new AtomicLong(clock.getAsLong());
+    }
+
+    TokenBucket(double rate, double burst) {
+        this(rate, burst, System::nanoTime);
+    }
+
+    /** Take the tokens if the bucket holds them; otherwise leave it unchanged. */
+    boolean tryAcquire(long tokens) {
+        long cost = cost(tokens);
+        while (true) {
+            long now = clock.getAsLong();
+            long current = fullAt.get();
+            long next = Math.max(current, now) + cost;
+            if (next - now > burstNanos) {
+                return false;
+            }
+            if (fullAt.compareAndSet(current, next)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Take the tokens even if the bucket does not hold them yet.
+     *
+     * @return nanoseconds to wait before using the tokens, 0 if they are available now
+     */
+    long reserve(long tokens) {
+        long cost = cost(tokens);
+        while (true) {
+            long now = clock.getAsLong();
+            long current = fullAt.get();
+            long next = Math.max(current, now) + cost;
+            if (fullAt.compareAndSet(current, next)) {
+                return Math.max(0, next - now - burstNanos);
+            }
+        }
+    }
+
+    /** @return whether the bucket holds its whole burst, which makes it no different from a new bucket */
+    boolean isFull() {
+        return fullAt.get() - clock.getAsLong() <= 0;
+    }
+
+    private long cost(long tokens) {
+        return (long) (tokens * nanosPerToken);
+    }
+}
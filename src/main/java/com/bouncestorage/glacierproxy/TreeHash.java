@@ -0,0 +1,61 @@
+package com.bouncestorage.glacierproxy;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+
+import com.google.common.io.BaseEncoding;
+
+/**
+ * Helpers for the Glacier SHA-256 tree hash: the payload is split into 1 MiB chunks, each chunk is hashed, and
+ * adjacent hashes are then concatenated and hashed pairwise until a single root hash remains. An odd hash at the end
+ * of a level is carried up unchanged.
+ */
+public final class TreeHash {
+    public static final int CHUNK_SIZE = 1 << 20;
+    public static final int HASH_SIZE = 32;
+
+    private TreeHash() {
+        throw new AssertionError("intentionally unimplemented");
+    }
+
+    public static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /** Combine leaf (or subtree) hashes into the root of the tree they form. */
+    public static byte[] root(List<byte[]> hashes) {
+        if (hashes.isEmpty()) {
+            return newDigest().digest();
+        }
+        MessageDigest digest = newDigest();
+        byte[][] level = hashes.toArray(new byte[hashes.size()][]);
+        int size = level.length;
+        while (size > 1) {
+            int next = 0;
+            for (int i = 0; i < size; i += 2) {
+                if (i + 1 < size) {
+                    digest.update(level[i]);
+                    digest.update(level[i + 1]);
+                    level[next++] = digest.digest();
+                } else {
+                    level[next++] = level[i];
+                }
+            }
+            size = next;
+        }
+        return level[0];
+    }
+
+    public static String toHex(byte[] hash) {
+        return BaseEncoding.base16().lowerCase().encode(hash);
+    }
+
+    public static byte[] fromHex(String hash) {
+        return BaseEncoding.base16().lowerCase().decode(hash.toLowerCase());
+    }
+}
@@ -0,0 +1,217 @@
+package com.bouncestorage.glacierproxy;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Computes the linear SHA-256 and the SHA-256 tree hash of a stream in one pass, as the stream is consumed by the
+ * blobstore. Only the current 1 MiB chunk is held in memory.
+ *
+ * When given an executor, the chunks are copied aside and their leaf hashes computed on the executor's threads, so
+ * that the reading thread only computes the linear hash. At most {@code maxPending} chunks are outstanding at a time.
+ */
+final class TreeHashingInputStream extends FilterInputStream {
+    private final MessageDigest linearDigest = TreeHash.newDigest();
+    private final List<byte[]> leafHashes = new ArrayList<>();
+    private long count;
+    private int chunkFill;
+    private byte[] linearHash;
+    private byte[] treeHash;
+
+    // Inline mode
+    private final MessageDigest leafDigest;
+
+    // Parallel mode
+    private final ExecutorService executor;
+    private final int maxPending;
+    private final ArrayDeque<Future<byte[]>> pending = new ArrayDeque<>();
+    private final ConcurrentLinkedQueue<byte[]> freeBuffers = new ConcurrentLinkedQueue<>();
+    private byte[] chunk;
+
+    TreeHashingInputStream(InputStream in) {
+        this(in, null, 0);
+    }
+
+    TreeHashingInputStream(InputStream in, ExecutorService executor, int maxPending) {
+        super(in);
+        this.executor = executor;
+        this.maxPending = maxPending;
+        if (executor == null) {
+            leafDigest = TreeHash.newDigest();
+        } else {
+            leafDigest = null;
+            chunk = new byte[TreeHash.CHUNK_SIZE];
+        }
+    }
+
+    @Override
+    public int read() throws IOException {
+        int b = in.read();
+        if (b >= 0) {
+            update(new byte[] { (byte) b }, 0, 1);
+        }
+        return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        int read = in.read(b, off, len);
+        if (read > 0) {
+            update(b, off, read);
+        }
+        return read;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        // Skipped bytes still have to be hashed
+        byte[] buffer = new byte[(int) Math.min(n, 8192)];
+        long skipped = 0;
+        while (skipped < n) {
+            int read = read(buffer, 0, (int) Math.min(n - skipped, buffer.length));
+            if (read < 0) {
+                break;
+            }
+            skipped += read;
+        }
+        return skipped;
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    @Override
+    public synchronized void mark(int readlimit) {
+    }
+
+    @Override
+    public synchronized void reset() throws IOException {
+        throw new IOException("mark/reset not supported");
+    }
+
+    private void update(byte[] b, int off, int len) throws IOException {
+        linearDigest.update(b, off, len);
+        count += len;
+        while (len > 0) {
+            int take = Math.min(len, TreeHash.CHUNK_SIZE - chunkFill);
+            if (executor == null) {
+                leafDigest.update(b, off, take);
+            } else {
+                System.arraycopy(b, off, chunk, chunkFill, take);
+            }
+            chunkFill += take;
+            off += take;
+            len -= take;
+            if (chunkFill == TreeHash.CHUNK_SIZE) {
+                finishChunk();
+            }
+        }
+    }
+
+    private void finishChunk() throws IOException {
+        if (executor == null) {
+            leafHashes.add(leafDigest.digest());
+        } else {
+            if (pending.size() >= maxPending) {
+                leafHashes.add(await(pending.removeFirst()));
+            }
+            byte[] buffer = chunk;
+            int length = chunkFill;
+            pending.addLast(executor.submit(() -> {
+                MessageDigest digest = TreeHash.newDigest();
+                digest.update(buffer, 0, length);
+                freeBuffers.add(buffer);
+                return digest.digest();
+            }));
+            chunk = freeBuffers.poll();
+            if (chunk == null) {
+                chunk = new byte[TreeHash.CHUNK_SIZE];
+            }
+        }
+        chunkFill = 0;
+    }
+
+    private static byte[] await(Future<byte[]> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        } catch (ExecutionException e) {
+            throw new IOException(e.getCause());
+        }
+    }
+
+    /**
+     * Completes the hashes once the stream has been consumed. Must be called before any of the getters.
+     */
+    void finish() throws IOException {
+        if (treeHash != null) {
+            return;
+        }
+        if (chunkFill > 0 || count == 0) {
+            finishChunk();
+        }
+        while (!pending.isEmpty()) {
+            leafHashes.add(await(pending.removeFirst()));
+        }
+        chunk = null;
+        freeBuffers.clear();
+        linearHash = linearDigest.digest();
+        treeHash = TreeHash.root(leafHashes);
+    }
+
+    /**
+     * @return a Glacier style description of the first hash that does not match the client supplied value, or null
+     * if both match
+     */
+    String verify(String contentHash, String treeHashHeader) throws IOException {
+        finish();
+        String calculated = TreeHash.toHex(linearHash);
+        if (!calculated.equalsIgnoreCase(contentHash)) {
+            return String.format("Checksum mismatch: expected %s (calculated), got %s", calculated, contentHash);
+        }
+        calculated = TreeHash.toHex(treeHash);
+        if (!calculated.equalsIgnoreCase(treeHashHeader)) {
+            return String.format("Tree hash mismatch: expected %s (calculated), got %s", calculated, treeHashHeader);
+        }
+        return null;
+    }
+
+    long getCount() {
+        return count;
+    }
+
+    byte[] getLinearHash() {
+        checkFinished();
+        return linearHash;
+    }
+
+    byte[] getTreeHash() {
+        checkFinished();
+        return treeHash;
+    }
+
+    List<byte[]> getLeafHashes() {
+        checkFinished();
+        return Collections.unmodifiableList(leafHashes);
+    }
+
+    private void checkFinished() {
+        if (treeHash == null) {
+            throw new IllegalStateException("finish() has not been called");
+        }
+    }
+}
@@ -0,0 +1,94 @@
+package com.bouncestorage.glacierproxy;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Aborts multipart uploads that have received no part for longer than their time to live, as Glacier does after a
+ * day, which frees their parts in the backend and their state in the proxy. Clients that neither complete nor abort
+ * their uploads would otherwise hold both forever.
+ */
+final class UploadReaper {
+    // Uploads are checked at least this often, and at least once per time to live
+    private static final long MAX_PERIOD = TimeUnit.MINUTES.toMillis(1);
+    private static final Logger logger = LoggerFactory.getLogger(UploadReaper.class);
+
+    private final GlacierProxy proxy;
+    private final long ttl;
+    private final LongSupplier clock;
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(
+            RequestExecutor.namedThreadFactory("glacier-proxy-upload-reaper"));
+    private final AtomicLong reclaimedUploads = new AtomicLong();
+    private final AtomicLong reclaimedBytes = new AtomicLong();
+
+    /**
+     * @param ttl milliseconds without a part after which an upload is aborted
+     * @param clock current time in milliseconds
+     */
+    UploadReaper(GlacierProxy proxy, long ttl, LongSupplier clock) {
+        this.proxy = proxy;
+        this.ttl = ttl;
+        this.clock = clock;
+        long period = Math.min(ttl, MAX_PERIOD);
+        executor.scheduleWithFixedDelay(this::reap, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    UploadReaper(GlacierProxy proxy, long ttl) {
+        this(proxy, ttl, System::currentTimeMillis);
+    }
+
+    /** @return the number of uploads aborted so far */
+    long getReclaimedUploads() {
+        return reclaimedUploads.get();
+    }
+
+    /** @return the bytes of the parts of the uploads aborted so far */
+    long getReclaimedBytes() {
+        return reclaimedBytes.get();
+    }
+
+    void shutdown() {
+        executor.shutdownNow();
+    }
+
+    void reap() {
+        long deadline = clock.getAsLong() - ttl;
+        int uploads = 0;
+        long bytes = 0;
+        for (Map.Entry<String, ? extends NavigableMap<UUID, Multipart.Upload>> vault :
+                proxy.getStateStore().getAllUploads().entrySet()) {
+            for (Map.Entry<UUID, Multipart.Upload> upload : vault.getValue().entrySet()) {
+                if (upload.getValue().lastActivity >= deadline) {
+                    continue;
+                }
+                long partBytes = upload.getValue().getPartBytes();
+                try {
+                    proxy.abortUpload(vault.getKey(), upload.getKey(), upload.getValue());
+                } catch (IOException | RuntimeException e) {
+                    // Tried again on the next run
+                    logger.warn("Failed to abort the abandoned upload {}", upload.getKey(), e);
+                    continue;
+                }
+                uploads++;
+                bytes += partBytes;
+            }
+        }
+        if (uploads > 0) {
+            reclaimedUploads.addAndGet(uploads);
+            reclaimedBytes.addAndGet(bytes);
+            logger.info("Aborted {} abandoned multipart uploads with {} bytes of parts; {} uploads with {} bytes of "
+                    + "parts remain", uploads, bytes, proxy.getStateStore().getUploadCount(),
+                    proxy.getStateStore().getPartBytes());
+        }
+    }
+}
@@ -3,11 +3,16 @@ package com.bouncestorage.glacierproxy;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
-import java.text.SimpleDateFormat;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
 import java.util.Date;
-import java.util.Map;
-import java.util.TimeZone;
+import java.util.Locale;
 
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
@@ -21,24 +26,28 @@ import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Iterables;
 import com.google.common.collect.LinkedHashMultimap;
 import com.google.common.collect.Multimap;
-import com.google.common.io.ByteSource;
+import com.google.common.io.ByteStreams;
 import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonIOException;
 import com.google.gson.JsonObject;
 import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonWriter;
 import com.sun.net.httpserver.HttpExchange;
 
 public class Util {
-    private static final String DATE_FORMAT = "yyyy-MM-dd'T'HH:mm:ssZ";
+    // DateTimeFormatter is immutable, unlike SimpleDateFormat, so a single instance serves every thread
+    private static final DateTimeFormatter TIMESTAMP_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ssZ",
+            Locale.ROOT).withZone(ZoneOffset.UTC);
     private static final String METADATA_SUFFIX = "_metadata";
-
-    public static String putMetadataBlob(Map<String, String> metadata, BlobStore blobStore, String vault,
-                                         String archiveName) {
-        Gson gson = new Gson();
-        String jsonString = gson.toJson(metadata);
-        Blob metadataBlob = blobStore.blobBuilder(getMetadataBlobName(archiveName))
-                .payload(ByteSource.wrap(jsonString.getBytes())).build();
-        return blobStore.putBlob(vault, metadataBlob);
-    }
+    private static final String TREE_HASH_SUFFIX = "_treehash";
+    private static final String INVENTORY_SUFFIX = "_inventory";
+    private static final String STAGING_SUFFIX = "_staging";
+    private static final Gson GSON = new GsonBuilder().serializeNulls().disableHtmlEscaping().create();
+    // Bytes of an unread request body that are read before a response without a body, as the JDK server drains them
+    private static final long DRAIN_LIMIT = 64 * 1024;
+    private static volatile TimeStamp lastTimeStamp = new TimeStamp(Long.MIN_VALUE, null);
 
     public static Multimap<String, String> parseQuery(String query) {
         Multimap<String, String> map = LinkedHashMultimap.create();
@@ -46,20 +55,21 @@ public class Util {
             return map;
         }
         for (String q : query.split("&")) {
-            String[] kv = q.split("=");
-            map.put(kv[0], kv[1]);
+            String[] kv = q.split("=", 2);
+            map.put(kv[0], kv.length > 1 ? kv[1] : "");
         }
         return map;
     }
 
     public static ListContainerOptions getOptions(String query) {
-        ListContainerOptions options = ListContainerOptions.NONE;
+        // ListContainerOptions.NONE is shared, so it must never be modified
+        ListContainerOptions options = new ListContainerOptions();
         if (query == null) {
             return options;
         }
         Multimap<String, String> queryParams = Util.parseQuery(query);
-        String marker = Iterables.get(queryParams.get("marker"), 0);
-        String limit = Iterables.get(queryParams.get("limit"), 0);
+        String marker = Iterables.getFirst(queryParams.get("marker"), null);
+        String limit = Iterables.getFirst(queryParams.get("limit"), null);
         if (limit != null) {
             options.maxResults(Integer.parseInt(limit));
         }
@@ -70,20 +80,96 @@ public class Util {
         return options;
     }
 
+    /** @return the date, or the current time if it is null, in the format of Glacier responses */
     public static String getTimeStamp(Date date) {
-        SimpleDateFormat format = new SimpleDateFormat(DATE_FORMAT);
-        format.setTimeZone(TimeZone.getTimeZone("GMT"));
-        if (date == null) {
-            return format.format(new Date());
+        return getTimeStamp(date == null ? System.currentTimeMillis() : date.getTime());
+    }
+
+    /**
+     * Format milliseconds since the epoch. Timestamps have a resolution of a second, and the last second formatted is
+     * cached, so formatting the current time or a run of entries created in the same second costs a comparison.
+     */
+    public static String getTimeStamp(long millis) {
+        long second = Math.floorDiv(millis, 1000);
+        TimeStamp cached = lastTimeStamp;
+        if (cached.second != second) {
+            cached = new TimeStamp(second, TIMESTAMP_FORMAT.format(Instant.ofEpochSecond(second)));
+            lastTimeStamp = cached;
+        }
+        return cached.formatted;
+    }
+
+    private static final class TimeStamp {
+        private final long second;
+        private final String formatted;
+
+        TimeStamp(long second, String formatted) {
+            this.second = second;
+            this.formatted = formatted;
         }
-        return format.format(date);
     }
 
     public static void sendJSON(HttpExchange httpExchange, Response.Status code, JsonObject json) throws IOException {
-        String jsonResponse = json.toString();
+        byte[] jsonResponse = json.toString().getBytes(StandardCharsets.UTF_8);
         httpExchange.getResponseHeaders().put("Content-type", ImmutableList.of(MediaType.APPLICATION_JSON));
-        httpExchange.sendResponseHeaders(code.getStatusCode(), jsonResponse.length());
-        httpExchange.getResponseBody().write(jsonResponse.getBytes(StandardCharsets.UTF_8));
+        httpExchange.sendResponseHeaders(code.getStatusCode(), jsonResponse.length);
+        httpExchange.getResponseBody().write(jsonResponse);
+    }
+
+    /**
+     * Sends a response without a body. The JDK server finishes such a response as soon as its headers are sent, and
+     * keeps the connection open only if the request body has been read to its end by then, so the rest of a small
+     * body is read first. The connection of a request that leaves a larger body unread is closed.
+     */
+    static void sendStatus(HttpExchange httpExchange, Response.Status code) throws IOException {
+        InputStream in = httpExchange.getRequestBody();
+        byte[] buffer = new byte[4096];
+        long remaining = DRAIN_LIMIT;
+        try {
+            while (remaining > 0) {
+                int read = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                if (read < 0) {
+                    break;
+                }
+                remaining -= read;
+            }
+        } catch (IOException e) {
+            // A body that was closed has already been drained by the server
+        }
+        httpExchange.sendResponseHeaders(code.getStatusCode(), -1);
+    }
+
+    /** Writes the body of a streamed JSON response. */
+    interface JsonBody {
+        void write(JsonWriter writer) throws IOException;
+    }
+
+    /**
+     * Sends a JSON response as it is written, with chunked transfer encoding, so that the memory it takes does not
+     * grow with its length. Elements of the body can be written with {@link #writeJSON}.
+     */
+    static void streamJSON(HttpExchange httpExchange, Response.Status code, JsonBody body) throws IOException {
+        httpExchange.getResponseHeaders().put("Content-type", ImmutableList.of(MediaType.APPLICATION_JSON));
+        httpExchange.sendResponseHeaders(code.getStatusCode(), 0);
+        JsonWriter writer = new JsonWriter(new OutputStreamWriter(httpExchange.getResponseBody(),
+                StandardCharsets.UTF_8));
+        try {
+            body.write(writer);
+        } catch (JsonIOException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw e;
+        }
+        writer.flush();
+    }
+
+    /**
+     * Writes an element, including its null members, to a streamed response. Write errors are thrown as a
+     * JsonIOException, so that elements can be written from lambdas.
+     */
+    static void writeJSON(JsonWriter writer, JsonElement element) {
+        GSON.toJson(element, writer);
     }
 
     public static void sendBadRequest(String message, HttpExchange httpExchange) throws IOException {
@@ -102,6 +188,30 @@ public class Util {
         sendJSON(httpExchange, Response.Status.SERVICE_UNAVAILABLE, response);
     }
 
+    public static void sendInvalidParameter(String message, HttpExchange httpExchange) throws IOException {
+        JsonObject response = new JsonObject();
+        response.addProperty("code", "InvalidParameterValueException");
+        response.addProperty("message", message);
+        response.addProperty("type", "client");
+        sendJSON(httpExchange, Response.Status.BAD_REQUEST, response);
+    }
+
+    public static void sendThrottlingError(String message, HttpExchange httpExchange) throws IOException {
+        JsonObject response = new JsonObject();
+        response.addProperty("code", "ThrottlingException");
+        response.addProperty("message", message);
+        response.addProperty("type", "client");
+        sendJSON(httpExchange, Response.Status.BAD_REQUEST, response);
+    }
+
+    public static void sendAccessDenied(String code, String message, HttpExchange httpExchange) throws IOException {
+        JsonObject response = new JsonObject();
+        response.addProperty("code", code);
+        response.addProperty("message", message);
+        response.addProperty("type", "client");
+        sendJSON(httpExchange, Response.Status.FORBIDDEN, response);
+    }
+
     public static void sendNotFound(String resourceType, String resourceId, HttpExchange httpExchange) throws
             IOException {
         JsonObject response = new JsonObject();
@@ -127,10 +237,43 @@ public class Util {
         return archiveName + METADATA_SUFFIX;
     }
 
+    public static String getTreeHashBlobName(String archiveName) {
+        return archiveName + TREE_HASH_SUFFIX;
+    }
+
+    public static String getInventoryBlobName(String jobId) {
+        return jobId + INVENTORY_SUFFIX;
+    }
+
+    public static boolean isInventoryBlob(String blobName) {
+        return blobName.endsWith(INVENTORY_SUFFIX);
+    }
+
+    /** @return the name of a blob that holds an upload part until its hashes are verified */
+    public static String getStagingBlobName(String name) {
+        return name + STAGING_SUFFIX;
+    }
+
+    public static boolean isStagingBlob(String blobName) {
+        return blobName.endsWith(STAGING_SUFFIX);
+    }
+
     public static boolean isMetadataBlob(String blobName) {
         return blobName.endsWith(METADATA_SUFFIX);
     }
 
+    public static String getMetadataBlobArchive(String blobName) {
+        return blobName.substring(0, blobName.length() - METADATA_SUFFIX.length());
+    }
+
+    /**
+     * @return true for blobs that the proxy keeps alongside the archives in a vault
+     */
+    public static boolean isInternalBlob(String blobName) {
+        return blobName.endsWith(METADATA_SUFFIX) || blobName.endsWith(TREE_HASH_SUFFIX) ||
+                blobName.endsWith(INVENTORY_SUFFIX) || blobName.endsWith(STAGING_SUFFIX);
+    }
+
     public static JsonObject getMetadata(BlobStore blobStore, String vault, String name) {
         Blob blob;
         try {
@@ -142,10 +285,35 @@ public class Util {
             return new JsonObject();
         }
         try (InputStream out = blob.getPayload().openStream()) {
-            JsonParser parser = new JsonParser();
-            return parser.parse(new InputStreamReader(out)).getAsJsonObject();
+            return JsonParser.parseReader(new InputStreamReader(out)).getAsJsonObject();
         } catch (IOException io) {
             return new JsonObject();
         }
     }
+
+    public static ArchiveTreeHash getTreeHash(BlobStore blobStore, String vault, String name) {
+        Blob blob;
+        try {
+            blob = blobStore.getBlob(vault, Util.getTreeHashBlobName(name));
+        } catch (ContainerNotFoundException cnfe) {
+            return null;
+        }
+        if (blob == null) {
+            return null;
+        }
+        try (InputStream in = blob.getPayload().openStream()) {
+            return ArchiveTreeHash.fromBytes(ByteStreams.toByteArray(in));
+        } catch (IOException io) {
+            return null;
+        }
+    }
+
+    /**
+     * Flush the directory's entries to disk, so that a file created or renamed in it survives a crash of the host.
+     */
+    static void syncDirectory(Path directory) throws IOException {
+        try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+            channel.force(true);
+        }
+    }
 }
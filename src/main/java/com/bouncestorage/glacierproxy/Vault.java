@@ -1,25 +1,30 @@
 package com.bouncestorage.glacierproxy;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
 import java.util.Map;
 
 import javax.ws.rs.core.Response;
 
+import org.jclouds.blobstore.ContainerNotFoundException;
 import org.jclouds.blobstore.domain.PageSet;
 import org.jclouds.blobstore.domain.StorageMetadata;
+import org.jclouds.blobstore.options.ListContainerOptions;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.google.common.collect.ImmutableList;
-import com.google.gson.JsonArray;
 import com.google.gson.JsonObject;
 import com.sun.net.httpserver.HttpExchange;
 
 public class Vault extends BaseRequestHandler {
     private static final Logger logger = LoggerFactory.getLogger(Vault.class);
+    private static final String ARN_VAULTS = ":vaults/";
 
     public Vault(GlacierProxy proxy) {
-        super(proxy);
+        super(proxy, "vaults");
     }
 
     @Override
@@ -29,28 +34,28 @@ public class Vault extends BaseRequestHandler {
             return;
         }
 
-        // TODO: Support pagination (markers) for vault listing
-        PageSet<? extends StorageMetadata> results = proxy.getBlobStore().list();
-        JsonObject response = new JsonObject();
-        if (results.getNextMarker() == null) {
-            response.add("Marker", null);
-        } else {
-            response.addProperty("Marker", results.getNextMarker());
-        }
-        JsonArray values = new JsonArray();
-        for (StorageMetadata value : results) {
-            JsonObject entry = new JsonObject();
-            entry.addProperty("CreationDate", Util.getTimeStamp(value.getCreationDate()));
-            entry.addProperty("LastInventoryDate", Util.getTimeStamp(value.getCreationDate()));
-            entry.addProperty("SizeInBytes", -1);
-            entry.addProperty("NumberOfArchives", 0);
-            entry.addProperty("VaultName", value.getName());
-            entry.addProperty("VaultARN", Util.getARN(parameters.get("account"), value.getName()));
-            values.add(entry);
+        ListOptions options;
+        try {
+            options = new ListOptions(Util.parseQuery(httpExchange.getRequestURI().getQuery()));
+        } catch (IllegalArgumentException e) {
+            Util.sendInvalidParameter(String.format("Invalid list vaults parameter: %s", e.getMessage()), httpExchange);
+            return;
         }
-        response.add("VaultList", values);
-        logger.debug("List vaults: {}", response.toString());
-        Util.sendJSON(httpExchange, Response.Status.OK, response);
+        String account = parameters.get("account");
+        logger.debug("List vaults from {}", options.getMarker());
+        Util.streamJSON(httpExchange, Response.Status.OK, writer -> {
+            writer.beginObject();
+            writer.name("VaultList").beginArray();
+            String nextMarker = options.page(proxy.getVaults(), getMarkerVault(options.getMarker()), date -> true,
+                    (name, creationDate) -> Util.writeJSON(writer, describe(account, name, creationDate)));
+            writer.endArray();
+            if (nextMarker == null) {
+                writer.name("Marker").nullValue();
+            } else {
+                writer.name("Marker").value(Util.getARN(account, nextMarker));
+            }
+            writer.endObject();
+        });
     }
 
     @Override
@@ -63,10 +68,11 @@ public class Vault extends BaseRequestHandler {
         String account = parameters.get("account");
 
         proxy.getBlobStore().createContainerInLocation(null, vault);
+        proxy.addVault(vault);
         logger.debug("Created a new vault {}", vault);
         httpExchange.getResponseHeaders().put("Location", ImmutableList.of(String.format("/%s/vaults/%s", account,
                 vault)));
-        httpExchange.sendResponseHeaders(Response.Status.CREATED.getStatusCode(), -1);
+        Util.sendStatus(httpExchange, Response.Status.CREATED);
     }
 
     @Override
@@ -78,35 +84,86 @@ public class Vault extends BaseRequestHandler {
         }
 
         String vault = parameters.get("vault");
+        removeInventories(vault);
         boolean result = proxy.getBlobStore().deleteContainerIfEmpty(vault);
         if (!result) {
             logger.warn("Failed to delete vault {}", vault);
             Util.sendBadRequest("Failed to delete vault. Vault possibly not empty", httpExchange);
             return;
         }
+        proxy.removeVault(vault);
+        proxy.getMetadataIndex().removeVault(vault);
         logger.debug("Deleted vault {}", vault);
-        httpExchange.sendResponseHeaders(Response.Status.NO_CONTENT.getStatusCode(), -1);
+        Util.sendStatus(httpExchange, Response.Status.NO_CONTENT);
+    }
+
+    /**
+     * Vault listing markers are vault ARNs, as in Glacier.
+     */
+    private static String getMarkerVault(String marker) {
+        if (marker == null) {
+            return null;
+        }
+        int index = marker.lastIndexOf(ARN_VAULTS);
+        return index < 0 ? marker : marker.substring(index + ARN_VAULTS.length());
+    }
+
+    /**
+     * Inventory job results, and parts left staged by a crash, are stored in the vault; they should not prevent it from
+     * being deleted.
+     */
+    private void removeInventories(String vault) {
+        List<String> inventories = new ArrayList<>();
+        ListContainerOptions options = new ListContainerOptions();
+        while (true) {
+            PageSet<? extends StorageMetadata> page;
+            try {
+                page = proxy.getBlobStore().list(vault, options);
+            } catch (ContainerNotFoundException cnfe) {
+                return;
+            }
+            for (StorageMetadata sm : page) {
+                if (!Util.isInternalBlob(sm.getName())) {
+                    // The vault still holds archives
+                    return;
+                }
+                if (Util.isInventoryBlob(sm.getName()) || Util.isStagingBlob(sm.getName())) {
+                    inventories.add(sm.getName());
+                }
+            }
+            if (page.getNextMarker() == null) {
+                break;
+            }
+            options = new ListContainerOptions().afterMarker(page.getNextMarker());
+        }
+        proxy.getBlobStore().removeBlobs(vault, inventories);
     }
 
     private void handleDescribe(HttpExchange httpExchange, Map<String, String> parameters) throws IOException {
         String vaultName = parameters.get("vault");
-        if (!proxy.getBlobStore().containerExists(vaultName)) {
+        Date creationDate = proxy.getVaults().get(vaultName);
+        if (creationDate == null) {
             logger.debug("Describe vault: vault {} does not exist", vaultName);
             Util.sendNotFound("vault", vaultName, httpExchange);
             return;
         }
         logger.debug("Describe vault request for {}", vaultName);
+        Util.sendJSON(httpExchange, Response.Status.OK, describe(parameters.get("account"), vaultName, creationDate));
+    }
+
+    /**
+     * The statistics are kept up to date as archives are created and deleted, rather than as of the last inventory as
+     * in Glacier.
+     */
+    private JsonObject describe(String account, String vaultName, Date creationDate) {
+        MetadataIndex.VaultStats stats = proxy.getMetadataIndex().getStats(vaultName);
         JsonObject vault = new JsonObject();
-        for (StorageMetadata container : proxy.getBlobStore().list()) {
-            if (!container.getName().equals(vaultName)) {
-                continue;
-            }
-            vault.addProperty("CreationDate", Util.getTimeStamp(container.getCreationDate()));
-            vault.addProperty("LastInventoryDate", Util.getTimeStamp(container.getCreationDate()));
-        }
-        vault.addProperty("SizeInBytes", -1);
-        vault.addProperty("VaultARN", Util.getARN(parameters.get("account"), parameters.get("vault")));
-        vault.addProperty("VaultName", parameters.get("vault"));
-        Util.sendJSON(httpExchange, Response.Status.OK, vault);
+        vault.addProperty("CreationDate", Util.getTimeStamp(creationDate));
+        vault.addProperty("LastInventoryDate", Util.getTimeStamp(creationDate));
+        vault.addProperty("NumberOfArchives", stats.getArchiveCount());
+        vault.addProperty("SizeInBytes", stats.getSize());
+        vault.addProperty("VaultARN", Util.getARN(account, vaultName));
+        vault.addProperty("VaultName", vaultName);
+        return vault;
     }
 }
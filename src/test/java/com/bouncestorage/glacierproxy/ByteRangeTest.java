@@ -0,0 +1,40 @@
+package com.bouncestorage.glacierproxy;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import org.junit.Test;
+
+public class ByteRangeTest {
+    private static final long MB = TreeHash.CHUNK_SIZE;
+
+    @Test
+    public void testRetrievalRange() {
+        long size = 3 * MB + 10;
+        assertThat(ByteRange.parseRetrievalRange("0-" + (MB - 1), size)).isEqualTo(new ByteRange(0, MB - 1));
+        assertThat(ByteRange.parseRetrievalRange(MB + "-" + (size - 1), size)).isEqualTo(new ByteRange(MB, size - 1));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUnalignedRetrievalRange() {
+        ByteRange.parseRetrievalRange("1-" + (MB - 1), 2 * MB);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRetrievalRangeOutsideArchive() {
+        ByteRange.parseRetrievalRange("0-" + (2 * MB - 1), MB);
+    }
+
+    @Test
+    public void testHeader() {
+        assertThat(ByteRange.parseHeader("bytes=10-19", 100)).isEqualTo(new ByteRange(10, 19));
+        assertThat(ByteRange.parseHeader("bytes=90-", 100)).isEqualTo(new ByteRange(90, 99));
+        assertThat(ByteRange.parseHeader("bytes=-5", 100)).isEqualTo(new ByteRange(95, 99));
+        assertThat(ByteRange.parseHeader("bytes=50-1000", 100)).isEqualTo(new ByteRange(50, 99));
+        assertThat(ByteRange.parseHeader("bytes=100-", 100)).isNull();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testMultipleRangesHeader() {
+        ByteRange.parseHeader("bytes=0-1,5-6", 100);
+    }
+}
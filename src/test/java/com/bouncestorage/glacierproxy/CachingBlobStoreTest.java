@@ -0,0 +1,97 @@
+package com.bouncestorage.glacierproxy;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.lang.reflect.Proxy;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.jclouds.blobstore.BlobStore;
+import org.jclouds.blobstore.domain.Blob;
+import org.jclouds.blobstore.domain.internal.BlobBuilderImpl;
+import org.jclouds.blobstore.domain.internal.MutableBlobMetadataImpl;
+import org.junit.Before;
+import org.junit.Test;
+
+public class CachingBlobStoreTest {
+    private static final String VAULT = "vault";
+
+    private final Set<String> containers = new HashSet<>();
+    private final Set<String> blobs = new HashSet<>();
+    private final AtomicInteger lookups = new AtomicInteger();
+    private CachingBlobStore cache;
+    private BlobStore blobStore;
+
+    @Before
+    public void setUp() {
+        // A backend that counts its lookups
+        BlobStore backend = (BlobStore) Proxy.newProxyInstance(BlobStore.class.getClassLoader(),
+                new Class<?>[] {BlobStore.class}, (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "containerExists":
+                            lookups.incrementAndGet();
+                            return containers.contains(args[0]);
+                        case "blobMetadata":
+                            lookups.incrementAndGet();
+                            return blobs.contains(args[1]) ? new MutableBlobMetadataImpl() : null;
+                        case "createContainerInLocation":
+                            return containers.add((String) args[1]);
+                        case "putBlob":
+                            blobs.add(((Blob) args[1]).getMetadata().getName());
+                            return "etag";
+                        case "removeBlob":
+                            blobs.remove(args[1]);
+                            return null;
+                        case "deleteContainerIfEmpty":
+                            blobs.clear();
+                            return containers.remove(args[0]);
+                        default:
+                            throw new UnsupportedOperationException(method.getName());
+                    }
+                });
+        cache = new CachingBlobStore(backend, 100, 60 * 1000);
+        blobStore = cache.asBlobStore();
+    }
+
+    @Test
+    public void testContainers() {
+        assertThat(blobStore.containerExists(VAULT)).isFalse();
+        assertThat(blobStore.containerExists(VAULT)).isFalse();
+        assertThat(lookups.get()).isEqualTo(1);
+
+        blobStore.createContainerInLocation(null, VAULT);
+        assertThat(blobStore.containerExists(VAULT)).isTrue();
+        assertThat(blobStore.containerExists(VAULT)).isTrue();
+        assertThat(lookups.get()).isEqualTo(2);
+
+        blobStore.deleteContainerIfEmpty(VAULT);
+        assertThat(blobStore.containerExists(VAULT)).isFalse();
+        assertThat(lookups.get()).isEqualTo(3);
+        assertThat(cache.stats().hitCount()).isEqualTo(2);
+        assertThat(cache.stats().missCount()).isEqualTo(3);
+    }
+
+    @Test
+    public void testBlobs() {
+        blobStore.createContainerInLocation(null, VAULT);
+        assertThat(blobStore.blobExists(VAULT, "archive")).isFalse();
+        blobStore.putBlob(VAULT, new BlobBuilderImpl().name("archive").payload(new byte[1]).build());
+        assertThat(blobStore.blobExists(VAULT, "archive")).isTrue();
+        assertThat(blobStore.blobMetadata(VAULT, "archive")).isNotNull();
+        assertThat(lookups.get()).isEqualTo(2);
+
+        blobStore.removeBlob(VAULT, "archive");
+        assertThat(blobStore.blobMetadata(VAULT, "archive")).isNull();
+        assertThat(blobStore.blobExists(VAULT, "archive")).isFalse();
+        assertThat(lookups.get()).isEqualTo(3);
+
+        blobStore.putBlob(VAULT, new BlobBuilderImpl().name("archive").payload(new byte[1]).build());
+        assertThat(blobStore.blobExists(VAULT, "archive")).isTrue();
+        // Deleting the vault forgets its blobs
+        blobStore.deleteContainerIfEmpty(VAULT);
+        assertThat(blobStore.blobExists(VAULT, "archive")).isFalse();
+        assertThat(lookups.get()).isEqualTo(5);
+        assertThat(cache.size()).isEqualTo(1);
+    }
+}
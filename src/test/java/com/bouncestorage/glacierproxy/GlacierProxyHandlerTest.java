@@ -6,8 +6,42 @@ import org.junit.Test;
 
 public class GlacierProxyHandlerTest {
     @Test
-    public void testVaultsRE() {
-        assertThat("/123456789123/vaults").matches(GlacierProxyHandler.VAULTS_RE);
-        assertThat("/-/vaults").matches(GlacierProxyHandler.VAULTS_RE);
+    public void testVaultsPath() {
+        assertThat(PathParameters.parse("/123456789123/vaults").getResource())
+                .isEqualTo(PathParameters.Resource.VAULTS);
+        assertThat(PathParameters.parse("/-/vaults").getResource()).isEqualTo(PathParameters.Resource.VAULTS);
+        PathParameters parameters = PathParameters.parse("/-/vaults/my.vault-1_");
+        assertThat(parameters.getResource()).isEqualTo(PathParameters.Resource.VAULTS);
+        assertThat(parameters.get("account")).isEqualTo("-");
+        assertThat(parameters.get("vault")).isEqualTo("my.vault-1_");
+    }
+
+    @Test
+    public void testResourcePaths() {
+        PathParameters parameters = PathParameters.parse("/123456789123/vaults/vault/jobs/job-id/output");
+        assertThat(parameters.getResource()).isEqualTo(PathParameters.Resource.JOBS);
+        assertThat(parameters).containsEntry("account", "123456789123").containsEntry("vault", "vault")
+                .containsEntry("job", "job-id").hasSize(3);
+        assertThat(parameters.containsKey("archive")).isFalse();
+
+        parameters = PathParameters.parse("/-/vaults/vault/archives/archive-id");
+        assertThat(parameters.getResource()).isEqualTo(PathParameters.Resource.ARCHIVES);
+        assertThat(parameters.get("archive")).isEqualTo("archive-id");
+
+        parameters = PathParameters.parse("/-/vaults/vault/multipart-uploads");
+        assertThat(parameters.getResource()).isEqualTo(PathParameters.Resource.MULTIPART_UPLOADS);
+        assertThat(parameters.containsKey("upload")).isFalse();
+    }
+
+    @Test
+    public void testInvalidPaths() {
+        assertThat(PathParameters.parse("/")).isNull();
+        assertThat(PathParameters.parse("/12345/vaults")).isNull();
+        assertThat(PathParameters.parse("/-/vaults/")).isNull();
+        assertThat(PathParameters.parse("/-/vaults/bad vault")).isNull();
+        assertThat(PathParameters.parse("/-/vaults/vault/tags")).isNull();
+        assertThat(PathParameters.parse("/-/vaults/vault/archives/id/output")).isNull();
+        assertThat(PathParameters.parse("/-/vaults/vault/jobs/id.x")).isNull();
+        assertThat(PathParameters.parse("/-/vaults/vault/jobs/id/output/more")).isNull();
     }
 }
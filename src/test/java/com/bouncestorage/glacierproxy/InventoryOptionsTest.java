@@ -0,0 +1,54 @@
+package com.bouncestorage.glacierproxy;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.IOException;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+import org.junit.Test;
+
+import com.google.gson.JsonObject;
+
+public class InventoryOptionsTest {
+    private static final Instant START = Instant.parse("2017-01-01T00:00:00Z");
+
+    @Test
+    public void testPagesOfDateRange() throws IOException {
+        // Archive i is created on day i
+        NavigableMap<String, MetadataIndex.Entry> entries = new TreeMap<>();
+        for (int i = 0; i < 10; i++) {
+            String archiveId = "archive" + i;
+            entries.put(archiveId, new MetadataIndex.Entry(archiveId, null, "", "", 0,
+                    START.plusSeconds(i * 86400L).toEpochMilli(), false));
+        }
+        JsonObject parameters = new JsonObject();
+        parameters.addProperty("StartDate", "2017-01-03T00:00:00Z");
+        parameters.addProperty("EndDate", "2017-01-08T00:00:00Z");
+        parameters.addProperty("Limit", "2");
+        List<String> archives = new ArrayList<>();
+        String marker;
+        do {
+            marker = new InventoryOptions(parameters).page(entries, entry -> archives.add(entry.getArchiveId()));
+            parameters.addProperty("Marker", marker);
+        } while (marker != null);
+        assertThat(archives).containsExactly("archive2", "archive3", "archive4", "archive5", "archive6");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidLimit() {
+        JsonObject parameters = new JsonObject();
+        parameters.addProperty("Limit", "0");
+        new InventoryOptions(parameters);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidDate() {
+        JsonObject parameters = new JsonObject();
+        parameters.addProperty("StartDate", "yesterday");
+        new InventoryOptions(parameters);
+    }
+}
@@ -0,0 +1,156 @@
+package com.bouncestorage.glacierproxy;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.IOException;
+import java.lang.reflect.Proxy;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import org.jclouds.blobstore.BlobStore;
+import org.jclouds.blobstore.domain.StorageMetadata;
+import org.jclouds.blobstore.domain.internal.PageSetImpl;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.gson.JsonObject;
+
+public class JobSchedulerTest {
+    private static final String VAULT = "vault";
+    private static final long TTL = TimeUnit.HOURS.toMillis(1);
+
+    // Blob names of a backend with a single vault
+    private final Set<String> blobs = new HashSet<>();
+    private Path directory;
+    private StateStore store;
+    private MetadataIndex index;
+    private JobScheduler scheduler;
+    private long now = TimeUnit.DAYS.toMillis(1000);
+
+    @Before
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("glacier-proxy-test");
+        store = new StateStore(directory.resolve("state.log"));
+        BlobStore blobStore = (BlobStore) Proxy.newProxyInstance(BlobStore.class.getClassLoader(),
+                new Class<?>[] {BlobStore.class}, (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "blobExists":
+                            return blobs.contains(args[1]);
+                        case "removeBlob":
+                            blobs.remove(args[1]);
+                            return null;
+                        case "list":
+                            // An empty vault, so the metadata index has nothing to migrate
+                            return new PageSetImpl<StorageMetadata>(Collections.emptyList(), null);
+                        default:
+                            throw new UnsupportedOperationException(method.getName());
+                    }
+                });
+        index = new MetadataIndex(directory.resolve("metadata"), blobStore);
+        GlacierProxy glacierProxy = new GlacierProxy() {
+            @Override
+            StateStore getStateStore() {
+                return store;
+            }
+
+            @Override
+            MetadataIndex getMetadataIndex() {
+                return index;
+            }
+
+            @Override
+            public BlobStore getBlobStore() {
+                return blobStore;
+            }
+
+            @Override
+            public JsonObject getJob(String vault, UUID jobId) {
+                return store.getJobs(vault) == null ? null : store.getJobs(vault).get(jobId);
+            }
+
+            @Override
+            public void updateJob(String vault, UUID jobId, Consumer<JsonObject> update) throws IOException {
+                store.updateJob(vault, jobId, update);
+            }
+        };
+        scheduler = new JobScheduler(glacierProxy, 0, 0, 0, TTL, () -> now);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        scheduler.shutdown();
+        store.close();
+        index.close();
+        Files.walk(directory).sorted(Collections.reverseOrder()).forEach(path -> path.toFile().delete());
+    }
+
+    @Test
+    public void testCompletion() throws IOException {
+        index.put(VAULT, new MetadataIndex.Entry("archive", null, "", "", 0, now, false), null);
+        blobs.add("unindexed");
+        UUID retrieval = putRetrieval("archive");
+        UUID unindexed = putRetrieval("unindexed");
+        UUID deleted = putRetrieval("deleted");
+
+        scheduler.complete(VAULT, retrieval);
+        scheduler.complete(VAULT, unindexed);
+        scheduler.complete(VAULT, deleted);
+        assertThat(store.getJobs(VAULT).get(retrieval).get("StatusCode").getAsString())
+                .isEqualTo(Job.STATUS_SUCCEEDED);
+        assertThat(store.getJobs(VAULT).get(unindexed).get("StatusCode").getAsString())
+                .isEqualTo(Job.STATUS_SUCCEEDED);
+        assertThat(store.getJobs(VAULT).get(retrieval).has(Job.COMPLETION_DATE)).isTrue();
+        assertThat(store.getJobs(VAULT).get(deleted).get("StatusCode").getAsString()).isEqualTo(Job.STATUS_FAILED);
+
+        // A job removed in the meantime is skipped
+        store.removeJob(VAULT, retrieval);
+        scheduler.complete(VAULT, retrieval);
+        assertThat(store.getJobs(VAULT).keySet()).containsOnly(unindexed, deleted);
+    }
+
+    @Test
+    public void testExpiry() throws IOException {
+        UUID expired = putJob("inventory-retrieval", now - TTL - 1);
+        blobs.add(Util.getInventoryBlobName(expired.toString()));
+        UUID recent = putJob("archive-retrieval", now - TTL + 1);
+        UUID inProgress = putJob("inventory-retrieval", null);
+
+        scheduler.expire();
+        assertThat(store.getJobs(VAULT).keySet()).containsOnly(recent, inProgress);
+        assertThat(blobs).isEmpty();
+        store.close();
+        store = new StateStore(directory.resolve("state.log"));
+        assertThat(store.getJobs(VAULT).keySet()).containsOnly(recent, inProgress);
+
+        now += 2;
+        scheduler.expire();
+        assertThat(store.getJobs(VAULT).keySet()).containsExactly(inProgress);
+    }
+
+    private UUID putRetrieval(String archiveId) throws IOException {
+        UUID jobId = putJob("archive-retrieval", null);
+        store.updateJob(VAULT, jobId, job -> {
+            job.addProperty("ArchiveId", archiveId);
+            Job.setStatus(job, Job.STATUS_IN_PROGRESS, Job.STATUS_IN_PROGRESS);
+        });
+        return jobId;
+    }
+
+    private UUID putJob(String type, Long completionDate) throws IOException {
+        UUID jobId = UUID.randomUUID();
+        JsonObject job = new JsonObject();
+        job.addProperty("Type", type);
+        if (completionDate != null) {
+            job.addProperty(Job.COMPLETION_DATE, completionDate);
+        }
+        store.putJob(VAULT, jobId, job);
+        return jobId;
+    }
+}
@@ -0,0 +1,43 @@
+package com.bouncestorage.glacierproxy;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+import org.junit.Test;
+
+public class ListOptionsTest {
+    @Test
+    public void testPages() {
+        NavigableMap<Integer, Integer> map = new TreeMap<>();
+        for (int i = 0; i < 10; i++) {
+            map.put(i, i);
+        }
+        ListOptions options = new ListOptions(Util.parseQuery("limit=3"));
+        List<Integer> keys = new ArrayList<>();
+        Integer marker = null;
+        do {
+            marker = options.page(map, marker, value -> value % 2 == 0, (key, value) -> keys.add(key));
+            assertThat(marker == null || marker % 2 == 0).isTrue();
+        } while (marker != null);
+        assertThat(keys).containsExactly(0, 2, 4, 6, 8);
+    }
+
+    @Test
+    public void testLastPageHasNoMarker() {
+        NavigableMap<Integer, Integer> map = new TreeMap<>();
+        map.put(1, 1);
+        map.put(2, 2);
+        ListOptions options = new ListOptions(Util.parseQuery("limit=2"));
+        assertThat(options.page(map, null, value -> true, (key, value) -> { })).isNull();
+        assertThat(options.page(map, 3, value -> true, (key, value) -> { })).isNull();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidLimit() {
+        new ListOptions(Util.parseQuery("limit=1001"));
+    }
+}
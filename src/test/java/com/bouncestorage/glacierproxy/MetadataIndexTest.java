@@ -0,0 +1,103 @@
+package com.bouncestorage.glacierproxy;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class MetadataIndexTest {
+    private static final String VAULT = "vault";
+
+    private Path directory;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("glacier-proxy-test");
+        // An existing log means the vault is never migrated from sidecar blobs, so no blob store is needed
+        Files.createFile(directory.resolve(VAULT + ".log"));
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        Files.walk(directory).sorted(Collections.reverseOrder()).forEach(path -> path.toFile().delete());
+    }
+
+    @Test
+    public void testReplay() throws IOException {
+        ArchiveTreeHash treeHash = ArchiveTreeHash.fromLeaves(Collections.singletonList(TreeHash.newDigest().digest()));
+        MetadataIndex index = new MetadataIndex(directory, null);
+        index.put(VAULT, new MetadataIndex.Entry("a", "first", "hash-a", null, 1, 10, false), treeHash);
+        index.put(VAULT, new MetadataIndex.Entry("b", null, "hash-b", "content-b", 2, 20, false), null);
+        index.put(VAULT, new MetadataIndex.Entry("c", "third", "hash-c", null, 3, 30, false), treeHash);
+        index.remove(VAULT, "c");
+        index.close();
+
+        index = new MetadataIndex(directory, null);
+        assertThat(index.list(VAULT)).extracting("archiveId").containsExactly("a", "b");
+        MetadataIndex.Entry entry = index.get(VAULT, "a");
+        assertThat(entry.getDescription()).isEqualTo("first");
+        assertThat(entry.getSize()).isEqualTo(1);
+        assertThat(entry.getCreationDate()).isEqualTo(10);
+        assertThat(index.getTreeHash(VAULT, "a").getRoot()).isEqualTo(treeHash.getRoot());
+        assertThat(index.get(VAULT, "b").getContentHash()).isEqualTo("content-b");
+        assertThat(index.getTreeHash(VAULT, "b")).isNull();
+        index.close();
+    }
+
+    @Test
+    public void testCompaction() throws IOException {
+        MetadataIndex index = new MetadataIndex(directory, null);
+        for (int i = 0; i < 100; i++) {
+            index.put(VAULT, new MetadataIndex.Entry("archive" + i, null, "hash", null, i, i, false), null);
+            if (i > 0) {
+                index.remove(VAULT, "archive" + (i - 1));
+            }
+        }
+        index.close();
+        long size = Files.size(directory.resolve(VAULT + ".log"));
+
+        index = new MetadataIndex(directory, null);
+        assertThat(index.list(VAULT)).extracting("archiveId").containsExactly("archive99");
+        assertThat(Files.size(directory.resolve(VAULT + ".log"))).isLessThan(size);
+        index.close();
+    }
+
+    @Test
+    public void testStats() throws IOException {
+        MetadataIndex index = new MetadataIndex(directory, null);
+        index.put(VAULT, new MetadataIndex.Entry("a", null, "hash", null, 100, 0, false), null);
+        index.put(VAULT, new MetadataIndex.Entry("b", null, "hash", null, 20, 0, false), null);
+        index.put(VAULT, new MetadataIndex.Entry("a", null, "hash", null, 10, 0, false), null);
+        index.put(VAULT, new MetadataIndex.Entry("c", null, "hash", null, 3, 0, false), null);
+        index.remove(VAULT, "c");
+        index.remove(VAULT, "missing");
+        assertThat(index.getStats(VAULT).getArchiveCount()).isEqualTo(2);
+        assertThat(index.getStats(VAULT).getSize()).isEqualTo(30);
+        index.close();
+
+        index = new MetadataIndex(directory, null);
+        assertThat(index.getStats(VAULT).getArchiveCount()).isEqualTo(2);
+        assertThat(index.getStats(VAULT).getSize()).isEqualTo(30);
+        assertThat(index.getArchiveBytes()).isEqualTo(30);
+        index.close();
+    }
+
+    @Test
+    public void testCompactEmptyVault() throws IOException {
+        MetadataIndex index = new MetadataIndex(directory, null);
+        index.put(VAULT, new MetadataIndex.Entry("a", null, "hash", null, 1, 0, false), null);
+        index.remove(VAULT, "a");
+        index.close();
+
+        index = new MetadataIndex(directory, null);
+        assertThat(index.list(VAULT)).isEmpty();
+        assertThat(Files.size(directory.resolve(VAULT + ".log"))).isZero();
+        index.close();
+    }
+}
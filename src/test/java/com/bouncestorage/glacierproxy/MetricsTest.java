@@ -0,0 +1,38 @@
+package com.bouncestorage.glacierproxy;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.StringWriter;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class MetricsTest {
+    @Test
+    public void testPrometheusFormat() throws Exception {
+        Metrics metrics = new Metrics();
+        metrics.recordRequest("archives", "POST", 201, TimeUnit.MILLISECONDS.toNanos(3), 1024, 0);
+        metrics.recordRequest("archives", "POST", 201, TimeUnit.SECONDS.toNanos(2), 1024, 0);
+        metrics.gauge("glacier_proxy_test", "A \"test\" gauge", () -> 42);
+
+        StringWriter writer = new StringWriter();
+        metrics.write(writer);
+        String text = writer.toString();
+        assertThat(text).contains("# TYPE glacier_proxy_requests_total counter\n"
+                + "glacier_proxy_requests_total{route=\"archives\",method=\"POST\",status=\"201\"} 2\n");
+        assertThat(text).contains(
+                "glacier_proxy_request_duration_seconds_bucket{route=\"archives\",method=\"POST\",status=\"201\","
+                        + "le=\"0.0025\"} 0\n")
+                .contains("le=\"0.005\"} 1\n")
+                .contains("le=\"2.5\"} 2\n")
+                .contains("le=\"+Inf\"} 2\n")
+                .contains("glacier_proxy_request_duration_seconds_sum{route=\"archives\",method=\"POST\","
+                        + "status=\"201\"} 2.003\n")
+                .contains("glacier_proxy_request_duration_seconds_count{route=\"archives\",method=\"POST\","
+                        + "status=\"201\"} 2\n");
+        assertThat(text).contains("glacier_proxy_received_bytes_total{route=\"archives\"} 2048\n")
+                .doesNotContain("glacier_proxy_sent_bytes_total{");
+        assertThat(text).contains("glacier_proxy_throttled_requests_total 0\n")
+                .contains("# TYPE glacier_proxy_test gauge\nglacier_proxy_test 42\n");
+    }
+}
@@ -0,0 +1,175 @@
+package com.bouncestorage.glacierproxy;
+
+import static com.bouncestorage.glacierproxy.TestUtils.randomBytes;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.fail;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.jclouds.blobstore.domain.Blob;
+import org.jclouds.blobstore.domain.internal.BlobBuilderImpl;
+import org.jclouds.blobstore.options.CreateContainerOptions;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.hash.Hashing;
+import com.google.common.io.ByteSource;
+import com.google.common.io.ByteStreams;
+
+public class OffHeapStorageStrategyTest {
+    private static final String CONTAINER = "vault";
+    private static final int SIZE = TreeHash.CHUNK_SIZE * 3 / 2;
+
+    private Path directory;
+    private OffHeapStorageStrategy storage;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("glacier-proxy-test");
+        storage = new OffHeapStorageStrategy(2 * TreeHash.CHUNK_SIZE, directory.toString());
+        storage.createContainerInLocation(CONTAINER, null, CreateContainerOptions.NONE);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        storage.close();
+        Files.walk(directory).sorted(Collections.reverseOrder()).forEach(path -> path.toFile().delete());
+    }
+
+    @Test
+    public void testSpill() throws IOException {
+        byte[] first = randomBytes(SIZE, 1);
+        byte[] second = randomBytes(SIZE, 2);
+        storage.putBlob(CONTAINER, blob("first", first));
+        assertThat(storage.getMemoryBytes()).isEqualTo(2 * TreeHash.CHUNK_SIZE);
+        assertThat(storage.getSpilledBytes()).isZero();
+
+        // Both chunks are taken by the first blob
+        storage.putBlob(CONTAINER, blob("second", second));
+        assertThat(storage.getMemoryBytes()).isEqualTo(2 * TreeHash.CHUNK_SIZE);
+        assertThat(storage.getSpilledBytes()).isEqualTo(SIZE);
+        assertThat(Files.list(directory).count()).isEqualTo(1);
+        assertThat(read(storage.getBlob(CONTAINER, "first"))).isEqualTo(first);
+        assertThat(read(storage.getBlob(CONTAINER, "second"))).isEqualTo(second);
+        assertThat(storage.getBlob(CONTAINER, "second").getMetadata().getSize()).isEqualTo(SIZE);
+
+        storage.removeBlob(CONTAINER, "second");
+        assertThat(storage.getSpilledBytes()).isZero();
+        assertThat(Files.list(directory).count()).isZero();
+
+        storage.removeBlob(CONTAINER, "first");
+        assertThat(storage.getMemoryBytes()).isZero();
+        storage.putBlob(CONTAINER, blob("first", new byte[10]));
+        assertThat(storage.getMemoryBytes()).isEqualTo(TreeHash.CHUNK_SIZE);
+        storage.deleteContainer(CONTAINER);
+        assertThat(storage.getMemoryBytes()).isZero();
+        assertThat(storage.containerExists(CONTAINER)).isFalse();
+    }
+
+    @Test
+    public void testReaderKeepsRemovedBlob() throws IOException {
+        // One chunk in memory and the rest in a spill file
+        byte[] content = randomBytes(SIZE + 2 * TreeHash.CHUNK_SIZE, 4);
+        storage.putBlob(CONTAINER, blob("blob", content));
+        Blob blob = storage.getBlob(CONTAINER, "blob");
+        try (InputStream in = blob.getPayload().openStream()) {
+            assertThat(in.read()).isEqualTo(content[0] & 0xff);
+            storage.removeBlob(CONTAINER, "blob");
+            assertThat(storage.getMemoryBytes()).isEqualTo(2 * TreeHash.CHUNK_SIZE);
+            assertThat(Files.list(directory).count()).isEqualTo(1);
+            assertThat(ByteStreams.toByteArray(in)).isEqualTo(Arrays.copyOfRange(content, 1, content.length));
+        }
+        assertThat(storage.getMemoryBytes()).isZero();
+        assertThat(storage.getSpilledBytes()).isZero();
+        assertThat(Files.list(directory).count()).isZero();
+        try {
+            blob.getPayload().openStream();
+            fail("Expected IOException");
+        } catch (IOException e) {
+            assertThat(e.getMessage()).contains("removed");
+        }
+
+        // The chunks are reused
+        storage.putBlob(CONTAINER, blob("blob", content));
+        assertThat(read(storage.getBlob(CONTAINER, "blob"))).isEqualTo(content);
+        assertThat(storage.getMemoryBytes()).isEqualTo(2 * TreeHash.CHUNK_SIZE);
+    }
+
+    @Test
+    public void testLeakedStreamIsReleased() throws IOException, InterruptedException {
+        storage.putBlob(CONTAINER, blob("blob", randomBytes(SIZE, 5)));
+        leakStream(storage.getBlob(CONTAINER, "blob"));
+        storage.removeBlob(CONTAINER, "blob");
+        assertThat(storage.getMemoryBytes()).isEqualTo(2 * TreeHash.CHUNK_SIZE);
+
+        for (int i = 0; i < 100 && storage.getMemoryBytes() > 0; i++) {
+            System.gc();
+            Thread.sleep(10);
+            storage.releaseLeakedStreams();
+        }
+        assertThat(storage.getMemoryBytes()).isZero();
+    }
+
+    @Test
+    public void testSlice() throws IOException {
+        // Two buffers in memory and a mapping of the spill file
+        byte[] content = randomBytes(3 * TreeHash.CHUNK_SIZE, 3);
+        storage.putBlob(CONTAINER, blob("blob", content));
+        assertThat(storage.getSpilledBytes()).isEqualTo(TreeHash.CHUNK_SIZE);
+        ByteSource source = (ByteSource) storage.getBlob(CONTAINER, "blob").getPayload().getRawContent();
+        assertThat(source.size()).isEqualTo(content.length);
+
+        long[][] slices = {
+                {0, 10}, {TreeHash.CHUNK_SIZE - 5, 10}, {TreeHash.CHUNK_SIZE, TreeHash.CHUNK_SIZE},
+                {100, 2 * TreeHash.CHUNK_SIZE + 100}, {content.length - 1, Long.MAX_VALUE},
+                {content.length, 10}, {content.length + 10, 10},
+        };
+        for (long[] slice : slices) {
+            int from = (int) Math.min(slice[0], content.length);
+            int to = (int) Math.min(content.length, slice[0] + Math.min(slice[1], content.length));
+            assertThat(source.slice(slice[0], slice[1]).read()).isEqualTo(Arrays.copyOfRange(content, from, to));
+        }
+
+        try (InputStream in = source.openStream()) {
+            assertThat(in.skip(TreeHash.CHUNK_SIZE + 1)).isEqualTo(TreeHash.CHUNK_SIZE + 1);
+            assertThat(in.read()).isEqualTo(content[TreeHash.CHUNK_SIZE + 1] & 0xff);
+            assertThat(in.skip(content.length)).isEqualTo(content.length - TreeHash.CHUNK_SIZE - 2);
+            assertThat(in.read()).isEqualTo(-1);
+        }
+    }
+
+    @Test
+    public void testDigestMismatch() throws IOException {
+        Blob blob = new BlobBuilderImpl().name("blob").payload(new byte[100])
+                .contentMD5(Hashing.md5().hashInt(1)).build();
+        try {
+            storage.putBlob(CONTAINER, blob);
+            fail("Expected IOException");
+        } catch (IOException e) {
+            assertThat(e.getMessage()).contains("mismatch");
+        }
+        assertThat(storage.getMemoryBytes()).isZero();
+        assertThat(storage.blobExists(CONTAINER, "blob")).isFalse();
+    }
+
+    private static Blob blob(String name, byte[] content) {
+        return new BlobBuilderImpl().name(name).payload(content).build();
+    }
+
+    private static void leakStream(Blob blob) throws IOException {
+        InputStream in = blob.getPayload().openStream();
+        assertThat(in.read()).isNotNegative();
+    }
+
+    private static byte[] read(Blob blob) throws IOException {
+        try (InputStream in = blob.getPayload().openStream()) {
+            return ByteStreams.toByteArray(in);
+        }
+    }
+}
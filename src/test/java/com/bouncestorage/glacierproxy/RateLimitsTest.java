@@ -0,0 +1,85 @@
+package com.bouncestorage.glacierproxy;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.google.common.io.ByteStreams;
+
+public class RateLimitsTest {
+    private long now = 1000;
+
+    @Test
+    public void testRequestRates() {
+        RateLimits limits = new RateLimits(3, 2, 0, 0, () -> now);
+        assertThat(limits.acquireRequest("account", "vault")).isNull();
+        assertThat(limits.acquireRequest("account", "vault")).isNull();
+        assertThat(limits.acquireRequest("account", "vault")).contains("vault");
+        // The rejected request still counted against the account
+        assertThat(limits.acquireRequest("account", null)).contains("account");
+        assertThat(limits.acquireRequest("other", null)).isNull();
+
+        now += TimeUnit.MILLISECONDS.toNanos(500);
+        assertThat(limits.acquireRequest("account", "vault")).isNull();
+    }
+
+    @Test
+    public void testSweepKeepsBucketsThatAreNotFull() {
+        RateLimits limits = new RateLimits(1, 0, 0, 0, () -> now);
+        assertThat(limits.acquireRequest("account", null)).isNull();
+        assertThat(limits.acquireRequest("idle", null)).isNull();
+        now += TimeUnit.MILLISECONDS.toNanos(500);
+
+        // New buckets would let both accounts through at once
+        limits.sweep();
+        assertThat(limits.getBucketCount()).isEqualTo(2);
+        assertThat(limits.acquireRequest("account", null)).isNotNull();
+        assertThat(limits.acquireRequest("idle", null)).isNotNull();
+
+        now += TimeUnit.MILLISECONDS.toNanos(500);
+        limits.sweep();
+        assertThat(limits.getBucketCount()).isZero();
+    }
+
+    @Test
+    public void testNewBucketsSweepOncePerMinute() {
+        RateLimits limits = new RateLimits(1, 0, 0, 0, () -> now);
+        assertThat(limits.acquireRequest("first", null)).isNull();
+        now += TimeUnit.SECONDS.toNanos(59);
+        assertThat(limits.acquireRequest("second", null)).isNull();
+        assertThat(limits.getBucketCount()).isEqualTo(2);
+
+        now += TimeUnit.SECONDS.toNanos(1);
+        assertThat(limits.acquireRequest("third", null)).isNull();
+        assertThat(limits.getBucketCount()).isEqualTo(1);
+    }
+
+    @Test
+    public void testThrottledUploadSurvivesSweep() throws IOException {
+        // The clock stands still, so a transfer sleeps exactly for the bytes beyond the burst
+        RateLimits limits = new RateLimits(0, 0, 1000, 0, () -> now);
+        InputStream first = limits.throttleUpload("account", new ByteArrayInputStream(new byte[1000]));
+        assertThat(ByteStreams.toByteArray(first)).hasSize(1000);
+
+        // The reservations of the first upload are still owed, so the bucket stays and slows the second one
+        limits.sweep();
+        assertThat(limits.getBucketCount()).isEqualTo(1);
+        InputStream second = limits.throttleUpload("account", new ByteArrayInputStream(new byte[100]));
+        long start = System.nanoTime();
+        assertThat(ByteStreams.toByteArray(second)).hasSize(100);
+        assertThat(System.nanoTime() - start).isGreaterThanOrEqualTo(TimeUnit.MILLISECONDS.toNanos(100));
+
+        // Once the bucket is full and swept, the first upload goes on with a new one
+        now += TimeUnit.SECONDS.toNanos(2);
+        limits.sweep();
+        assertThat(limits.getBucketCount()).isZero();
+        first = limits.throttleUpload("account", new ByteArrayInputStream(new byte[1000]));
+        assertThat(ByteStreams.toByteArray(first)).hasSize(1000);
+        assertThat(limits.getBucketCount()).isEqualTo(1);
+    }
+}
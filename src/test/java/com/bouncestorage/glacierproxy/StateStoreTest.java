@@ -0,0 +1,192 @@
+package com.bouncestorage.glacierproxy;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.jclouds.blobstore.domain.MultipartUpload;
+import org.jclouds.blobstore.domain.internal.BlobBuilderImpl;
+import org.jclouds.blobstore.options.PutOptions;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.gson.JsonObject;
+
+public class StateStoreTest {
+    private static final String VAULT = "vault";
+
+    private Path directory;
+    private Path log;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("glacier-proxy-test");
+        log = directory.resolve("state.log");
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        Files.walk(directory).sorted(Collections.reverseOrder()).forEach(path -> path.toFile().delete());
+    }
+
+    @Test
+    public void testReplay() throws IOException {
+        UUID jobId = UUID.randomUUID();
+        UUID uploadId = UUID.randomUUID();
+        UUID abortedId = UUID.randomUUID();
+        byte[] leaf = TreeHash.newDigest().digest();
+
+        StateStore store = new StateStore(log);
+        JsonObject job = new JsonObject();
+        job.addProperty("Type", "inventory-retrieval");
+        store.putJob(VAULT, jobId, job);
+        store.updateJob(VAULT, jobId, copy -> copy.addProperty("StatusCode", "Succeeded"));
+        Multipart.Upload upload = newUpload("archive");
+        store.putUpload(VAULT, uploadId, upload);
+        store.addPart(VAULT, uploadId, upload, new Multipart.UploadPart(1, "hash", 1 << 20,
+                Collections.singletonList(leaf)));
+        store.putUpload(VAULT, abortedId, newUpload("aborted"));
+        store.removeUpload(VAULT, abortedId);
+        store.close();
+
+        store = new StateStore(log);
+        assertThat(store.getJobs(VAULT).get(jobId).get("StatusCode").getAsString()).isEqualTo("Succeeded");
+        assertThat(store.getUploads(VAULT).keySet()).containsExactly(uploadId);
+        Multipart.Upload recovered = store.getUploads(VAULT).get(uploadId);
+        assertThat(recovered.jcloudsUpload.blobName()).isEqualTo("archive");
+        assertThat(recovered.jcloudsUpload.id()).isEqualTo("archive-id");
+        assertThat(recovered.description).isEqualTo("description");
+        assertThat(recovered.creationDate).isEqualTo(42);
+        assertThat(recovered.parts).hasSize(1);
+        assertThat(recovered.parts.get(1).getLeafHashes().get(0)).isEqualTo(leaf);
+        store.close();
+    }
+
+    @Test
+    public void testOutOfOrderParts() throws IOException {
+        UUID uploadId = UUID.randomUUID();
+        StateStore store = new StateStore(log);
+        Multipart.Upload upload = newUpload("archive");
+        store.putUpload(VAULT, uploadId, upload);
+        store.addPart(VAULT, uploadId, upload, newPart(3, "first"));
+        store.addPart(VAULT, uploadId, upload, newPart(1, "first"));
+        store.addPart(VAULT, uploadId, upload, newPart(3, "second"));
+        store.addPart(VAULT, uploadId, upload, newPart(3, "second"));
+        assertThat(store.getUploadCount()).isEqualTo(1);
+        assertThat(store.getPartBytes()).isEqualTo(2 << 20);
+        store.close();
+        assertThat(Files.readAllLines(log)).hasSize(4);
+
+        store = new StateStore(log);
+        Multipart.Upload recovered = store.getUploads(VAULT).get(uploadId);
+        assertThat(recovered.parts.keySet()).containsExactly(1, 3);
+        assertThat(recovered.parts.get(3).getSha256TreeHash()).isEqualTo("second");
+        assertThat(store.getPartBytes()).isEqualTo(2 << 20);
+
+        // A part rejected after it reached the backend is forgotten
+        store.removePart(VAULT, uploadId, recovered, 3);
+        store.close();
+        store = new StateStore(log);
+        recovered = store.getUploads(VAULT).get(uploadId);
+        assertThat(recovered.parts.keySet()).containsExactly(1);
+        assertThat(store.getPartBytes()).isEqualTo(1 << 20);
+        store.removeUpload(VAULT, uploadId);
+        assertThat(store.getUploadCount()).isEqualTo(0);
+        assertThat(store.getPartBytes()).isEqualTo(0);
+        store.close();
+    }
+
+    @Test
+    public void testTruncatedRecord() throws IOException {
+        UUID jobId = UUID.randomUUID();
+        StateStore store = new StateStore(log);
+        store.putJob(VAULT, jobId, new JsonObject());
+        store.close();
+        long size = Files.size(log);
+        store = new StateStore(log);
+        store.putJob(VAULT, UUID.randomUUID(), new JsonObject());
+        store.close();
+        try (FileChannel channel = FileChannel.open(log, StandardOpenOption.WRITE)) {
+            channel.truncate(Files.size(log) - 3);
+        }
+
+        store = new StateStore(log);
+        assertThat(store.getJobs(VAULT).keySet()).containsExactly(jobId);
+        assertThat(Files.size(log)).isEqualTo(size);
+        store.close();
+    }
+
+    @Test
+    public void testCompaction() throws IOException {
+        UUID jobId = UUID.randomUUID();
+        StateStore store = new StateStore(log);
+        store.putJob(VAULT, jobId, new JsonObject());
+        for (int i = 0; i < 2000; i++) {
+            int count = i;
+            store.updateJob(VAULT, jobId, job -> job.addProperty("count", count));
+        }
+        store.close();
+        assertThat(Files.readAllLines(log).size()).isLessThan(2000);
+
+        store = new StateStore(log);
+        assertThat(store.getJobs(VAULT).get(jobId).get("count").getAsInt()).isEqualTo(1999);
+        store.close();
+    }
+
+    @Test
+    public void testConcurrentWriters() throws Exception {
+        UUID uploadId = UUID.randomUUID();
+        UUID jobId = UUID.randomUUID();
+        StateStore store = new StateStore(log);
+        Multipart.Upload upload = newUpload("archive");
+        store.putUpload(VAULT, uploadId, upload);
+        store.putJob(VAULT, jobId, new JsonObject());
+        // Parts and job updates from many threads, with the job updates compacting the log along the way
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        List<Future<?>> futures = new ArrayList<>();
+        for (int i = 1; i <= 400; i++) {
+            int partNumber = i;
+            futures.add(executor.submit(() -> {
+                store.addPart(VAULT, uploadId, upload, newPart(partNumber, "hash" + partNumber));
+                for (int j = 0; j < 10; j++) {
+                    store.updateJob(VAULT, jobId, job -> job.addProperty("part", partNumber));
+                }
+                return null;
+            }));
+        }
+        for (Future<?> future : futures) {
+            future.get();
+        }
+        executor.shutdown();
+        store.close();
+
+        StateStore recovered = new StateStore(log);
+        assertThat(recovered.getUploads(VAULT).get(uploadId).parts).hasSize(400);
+        assertThat(recovered.getJobs(VAULT).keySet()).containsExactly(jobId);
+        assertThat(recovered.getPartBytes()).isEqualTo(400L << 20);
+        recovered.close();
+    }
+
+    private static Multipart.UploadPart newPart(int partNumber, String treeHash) {
+        return new Multipart.UploadPart(partNumber, treeHash, 1 << 20,
+                Collections.singletonList(TreeHash.newDigest().digest()));
+    }
+
+    private static Multipart.Upload newUpload(String blobName) {
+        MultipartUpload mpu = MultipartUpload.create(VAULT, blobName, blobName + "-id",
+                new BlobBuilderImpl().name(blobName).build().getMetadata(), new PutOptions());
+        return new Multipart.Upload(1 << 20, "description", mpu, 42);
+    }
+}
@@ -0,0 +1,16 @@
+package com.bouncestorage.glacierproxy;
+
+import java.util.Random;
+
+final class TestUtils {
+    private TestUtils() {
+        throw new AssertionError("intentionally unimplemented");
+    }
+
+    /** @return reproducible pseudorandom bytes, which unlike repeated patterns catch misplaced offsets */
+    static byte[] randomBytes(int size, long seed) {
+        byte[] bytes = new byte[size];
+        new Random(seed).nextBytes(bytes);
+        return bytes;
+    }
+}
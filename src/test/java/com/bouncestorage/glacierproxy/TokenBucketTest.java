@@ -0,0 +1,43 @@
+package com.bouncestorage.glacierproxy;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class TokenBucketTest {
+    private long now = 1000;
+
+    @Test
+    public void testTryAcquire() {
+        // 10 tokens per second, 5 at once
+        TokenBucket bucket = new TokenBucket(10, 5, () -> now);
+        for (int i = 0; i < 5; i++) {
+            assertThat(bucket.tryAcquire(1)).isTrue();
+        }
+        assertThat(bucket.tryAcquire(1)).isFalse();
+
+        now += TimeUnit.MILLISECONDS.toNanos(100);
+        assertThat(bucket.tryAcquire(1)).isTrue();
+        assertThat(bucket.tryAcquire(1)).isFalse();
+
+        // A long idle time refills no more than the burst
+        now += TimeUnit.SECONDS.toNanos(10);
+        assertThat(bucket.tryAcquire(6)).isFalse();
+        assertThat(bucket.tryAcquire(5)).isTrue();
+    }
+
+    @Test
+    public void testReserve() {
+        // 1000 bytes per second, one second at once
+        TokenBucket bucket = new TokenBucket(1000, 1000, () -> now);
+        assertThat(bucket.reserve(1000)).isZero();
+        assertThat(bucket.reserve(500)).isEqualTo(TimeUnit.MILLISECONDS.toNanos(500));
+        assertThat(bucket.reserve(500)).isEqualTo(TimeUnit.SECONDS.toNanos(1));
+        assertThat(bucket.tryAcquire(1)).isFalse();
+
+        now += TimeUnit.SECONDS.toNanos(2);
+        assertThat(bucket.reserve(1000)).isZero();
+    }
+}
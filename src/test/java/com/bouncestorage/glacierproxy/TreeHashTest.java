@@ -0,0 +1,157 @@
+package com.bouncestorage.glacierproxy;
+
+import static com.bouncestorage.glacierproxy.TestUtils.randomBytes;
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.Test;
+
+import com.google.common.io.ByteStreams;
+
+public class TreeHashTest {
+    private static final int SIZE = 5 * TreeHash.CHUNK_SIZE + 12345;
+
+    @Test
+    public void testEmptyPayload() throws IOException {
+        TreeHashingInputStream in = new TreeHashingInputStream(new ByteArrayInputStream(new byte[0]));
+        ByteStreams.copy(in, ByteStreams.nullOutputStream());
+        in.finish();
+        byte[] empty = TreeHash.newDigest().digest();
+        assertThat(in.getLinearHash()).isEqualTo(empty);
+        assertThat(in.getTreeHash()).isEqualTo(empty);
+    }
+
+    @Test
+    public void testInlineHashes() throws IOException {
+        byte[] data = randomBytes(SIZE, 42);
+        TreeHashingInputStream in = new TreeHashingInputStream(new ByteArrayInputStream(data));
+        ByteStreams.copy(in, ByteStreams.nullOutputStream());
+        in.finish();
+        assertThat(in.getCount()).isEqualTo(SIZE);
+        assertThat(in.getLinearHash()).isEqualTo(TreeHash.newDigest().digest(data));
+        assertThat(in.getLeafHashes()).hasSize(6);
+        assertThat(in.getTreeHash()).isEqualTo(referenceTreeHash(data));
+    }
+
+    @Test
+    public void testParallelHashes() throws IOException {
+        byte[] data = randomBytes(SIZE, 42);
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            TreeHashingInputStream in = new TreeHashingInputStream(new SmallReads(data), executor, 2);
+            ByteStreams.copy(in, ByteStreams.nullOutputStream());
+            in.finish();
+            assertThat(in.getLinearHash()).isEqualTo(TreeHash.newDigest().digest(data));
+            assertThat(in.getTreeHash()).isEqualTo(referenceTreeHash(data));
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testVerify() throws IOException {
+        byte[] data = randomBytes(SIZE, 42);
+        String linear = TreeHash.toHex(TreeHash.newDigest().digest(data));
+        String tree = TreeHash.toHex(referenceTreeHash(data));
+
+        TreeHashingInputStream in = new TreeHashingInputStream(new ByteArrayInputStream(data));
+        ByteStreams.copy(in, ByteStreams.nullOutputStream());
+        assertThat(in.verify(linear.toUpperCase(), tree)).isNull();
+        assertThat(in.verify(linear, linear)).startsWith("Tree hash mismatch");
+        assertThat(in.verify(tree, tree)).startsWith("Checksum mismatch");
+    }
+
+    @Test
+    public void testArchiveTreeHash() throws IOException {
+        byte[] data = randomBytes(SIZE, 42);
+        TreeHashingInputStream in = new TreeHashingInputStream(new ByteArrayInputStream(data));
+        ByteStreams.copy(in, ByteStreams.nullOutputStream());
+        in.finish();
+        ArchiveTreeHash treeHash = ArchiveTreeHash.fromBytes(ArchiveTreeHash.fromLeaves(in.getLeafHashes()).toBytes());
+        assertThat(treeHash.getRoot()).isEqualTo(referenceTreeHash(data));
+        assertThat(treeHash.getRangeHash(0, SIZE - 1, SIZE)).isEqualTo(referenceTreeHash(data));
+
+        int mb = TreeHash.CHUNK_SIZE;
+        assertThat(treeHash.getRangeHash(mb, 2 * mb - 1, SIZE)).isEqualTo(referenceTreeHash(range(data, mb, 2 * mb)));
+        assertThat(treeHash.getRangeHash(2 * mb, 4 * mb - 1, SIZE))
+                .isEqualTo(referenceTreeHash(range(data, 2 * mb, 4 * mb)));
+        assertThat(treeHash.getRangeHash(0, 3 * mb - 1, SIZE)).isEqualTo(referenceTreeHash(range(data, 0, 3 * mb)));
+        assertThat(treeHash.getRangeHash(4 * mb, SIZE - 1, SIZE))
+                .isEqualTo(referenceTreeHash(range(data, 4 * mb, SIZE)));
+
+        // Not composed of whole subtrees of the archive
+        assertThat(treeHash.getRangeHash(mb, 3 * mb - 1, SIZE)).isNull();
+        // Not megabyte aligned
+        assertThat(treeHash.getRangeHash(1, mb - 1, SIZE)).isNull();
+        assertThat(treeHash.getRangeHash(0, mb, SIZE)).isNull();
+    }
+
+    @Test
+    public void testPartTreeHashes() throws IOException {
+        byte[] data = randomBytes(SIZE, 42);
+        int partSize = 2 * TreeHash.CHUNK_SIZE;
+        List<byte[]> partHashes = new ArrayList<>();
+        for (int start = 0; start < SIZE; start += partSize) {
+            partHashes.add(referenceTreeHash(range(data, start, Math.min(start + partSize, SIZE))));
+        }
+        assertThat(TreeHash.root(partHashes)).isEqualTo(referenceTreeHash(data));
+    }
+
+    private static byte[] range(byte[] data, int start, int end) {
+        byte[] range = new byte[end - start];
+        System.arraycopy(data, start, range, 0, range.length);
+        return range;
+    }
+
+    // Straightforward implementation of the algorithm from the Glacier documentation
+    private static byte[] referenceTreeHash(byte[] data) throws IOException {
+        List<byte[]> hashes = new ArrayList<>();
+        for (int offset = 0; offset < data.length; offset += TreeHash.CHUNK_SIZE) {
+            MessageDigest digest = TreeHash.newDigest();
+            digest.update(data, offset, Math.min(TreeHash.CHUNK_SIZE, data.length - offset));
+            hashes.add(digest.digest());
+        }
+        while (hashes.size() > 1) {
+            List<byte[]> next = new ArrayList<>();
+            for (int i = 0; i < hashes.size(); i += 2) {
+                if (i + 1 == hashes.size()) {
+                    next.add(hashes.get(i));
+                } else {
+                    MessageDigest digest = TreeHash.newDigest();
+                    digest.update(hashes.get(i));
+                    digest.update(hashes.get(i + 1));
+                    next.add(digest.digest());
+                }
+            }
+            hashes = next;
+        }
+        return hashes.get(0);
+    }
+
+    /** Returns odd-sized reads so that chunk boundaries fall in the middle of a read. */
+    private static final class SmallReads extends InputStream {
+        private final ByteArrayInputStream in;
+
+        SmallReads(byte[] data) {
+            in = new ByteArrayInputStream(data);
+        }
+
+        @Override
+        public int read() {
+            return in.read();
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            return in.read(b, off, Math.min(len, 7919));
+        }
+    }
+}
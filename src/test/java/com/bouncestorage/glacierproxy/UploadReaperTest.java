@@ -0,0 +1,106 @@
+package com.bouncestorage.glacierproxy;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import org.jclouds.blobstore.domain.MultipartUpload;
+import org.jclouds.blobstore.domain.internal.BlobBuilderImpl;
+import org.jclouds.blobstore.options.PutOptions;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class UploadReaperTest {
+    private static final String VAULT = "vault";
+    private static final long TTL = TimeUnit.DAYS.toMillis(1);
+
+    private Path directory;
+    private StateStore store;
+    private UploadReaper reaper;
+    private long now = TimeUnit.DAYS.toMillis(1000);
+    // Set to make aborting uploads fail as a backend outage would
+    private boolean failAborts;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("glacier-proxy-test");
+        store = new StateStore(directory.resolve("state.log"));
+        GlacierProxy glacierProxy = new GlacierProxy() {
+            @Override
+            StateStore getStateStore() {
+                return store;
+            }
+
+            @Override
+            public void abortUpload(String vault, UUID uploadId, Multipart.Upload upload) throws IOException {
+                if (failAborts) {
+                    throw new IOException("backend unavailable");
+                }
+                store.removeUpload(vault, uploadId);
+            }
+        };
+        reaper = new UploadReaper(glacierProxy, TTL, () -> now);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        reaper.shutdown();
+        store.close();
+        Files.walk(directory).sorted(Collections.reverseOrder()).forEach(path -> path.toFile().delete());
+    }
+
+    @Test
+    public void testReap() throws IOException {
+        putUpload(now - TTL - 1, 2);
+        UUID active = putUpload(now - TTL + 1, 1);
+
+        reaper.reap();
+        assertThat(store.getAllUploads().get(VAULT).keySet()).containsExactly(active);
+        assertThat(reaper.getReclaimedUploads()).isEqualTo(1);
+        assertThat(reaper.getReclaimedBytes()).isEqualTo(2 << 20);
+
+        now += 2;
+        reaper.reap();
+        assertThat(store.getAllUploads().get(VAULT)).isEmpty();
+        assertThat(reaper.getReclaimedUploads()).isEqualTo(2);
+        assertThat(reaper.getReclaimedBytes()).isEqualTo(3 << 20);
+    }
+
+    @Test
+    public void testFailedAbortIsRetried() throws IOException {
+        UUID abandoned = putUpload(now - TTL - 1, 1);
+
+        failAborts = true;
+        reaper.reap();
+        assertThat(store.getAllUploads().get(VAULT).keySet()).containsExactly(abandoned);
+        assertThat(reaper.getReclaimedUploads()).isZero();
+
+        failAborts = false;
+        reaper.reap();
+        assertThat(store.getAllUploads().get(VAULT)).isEmpty();
+        assertThat(reaper.getReclaimedUploads()).isEqualTo(1);
+        assertThat(reaper.getReclaimedBytes()).isEqualTo(1 << 20);
+    }
+
+    private UUID putUpload(long lastActivity, int parts) throws IOException {
+        UUID uploadId = UUID.randomUUID();
+        String blobName = uploadId.toString();
+        MultipartUpload mpu = MultipartUpload.create(VAULT, blobName, blobName + "-id",
+                new BlobBuilderImpl().name(blobName).build().getMetadata(), new PutOptions());
+        Multipart.Upload upload = new Multipart.Upload(1 << 20, "description", mpu, lastActivity);
+        store.putUpload(VAULT, uploadId, upload);
+        for (int i = 0; i < parts; i++) {
+            store.addPart(VAULT, uploadId, upload, new Multipart.UploadPart(i + 1, "hash", 1 << 20,
+                    Collections.singletonList(TreeHash.newDigest().digest())));
+        }
+        // Adding a part counts as activity at the wall clock time
+        upload.lastActivity = lastActivity;
+        return uploadId;
+    }
+}
@@ -0,0 +1,23 @@
+package com.bouncestorage.glacierproxy;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.TimeZone;
+
+import org.junit.Test;
+
+public class UtilTest {
+    @Test
+    public void testTimeStamp() {
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ssZ");
+        format.setTimeZone(TimeZone.getTimeZone("GMT"));
+        for (long millis : new long[] {0, 999, 1000, 1_445_000_000_123L, 1_445_000_000_999L, 1_445_000_001_000L,
+                -1}) {
+            assertThat(Util.getTimeStamp(millis)).isEqualTo(format.format(new Date(millis)));
+            assertThat(Util.getTimeStamp(new Date(millis))).isEqualTo(format.format(new Date(millis)));
+        }
+        assertThat(Util.getTimeStamp(1_445_000_000_123L)).isEqualTo("2015-10-16T12:53:20+0000");
+    }
+}
@@ -12,8 +12,8 @@ pushd glacier-tests
 ./bootstrap
 popd
 
-# launch glacier proxy using HTTP and a fixed port
-java -jar $GLACIER_PROXY_JAR &
+# launch glacier proxy using HTTP, a fixed port and the keys of glacier-tests.conf
+java -Dglacier-proxy.credentials=proxy-test:proxy-test -jar $GLACIER_PROXY_JAR &
 GLACIER_PROXY_PID=$!
 
 # wait for glacier proxy to start